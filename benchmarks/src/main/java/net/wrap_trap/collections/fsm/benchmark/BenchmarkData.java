@@ -0,0 +1,74 @@
+package net.wrap_trap.collections.fsm.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The keys and the values shared by the benchmarks.
+ */
+public final class BenchmarkData {
+
+    // "Aa" and "BB" have the same hash code, so do the keys which differ only in them.
+    private static final String[] COLLIDING_PREFIXES = { "Aa", "BB" };
+
+    private BenchmarkData() {}
+
+    /**
+     * Returns the keys in random order. The ratio of collisionRate of the keys are in the pairs of the same hash code.
+     */
+    public static String[] createKeys(int keyCount, double collisionRate, long seed) {
+        String[] keys = new String[keyCount];
+        int colliding = ((int) (keyCount * collisionRate)) & ~1;
+        for (int i = 0; i < keyCount; i++) {
+            if (i < colliding) {
+                keys[i] = COLLIDING_PREFIXES[i % 2] + "key" + (i / 2);
+            } else {
+                keys[i] = "Cckey" + i;
+            }
+        }
+        Random random = new Random(seed);
+        for (int i = keyCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String tmp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = tmp;
+        }
+        return keys;
+    }
+
+    public static String createString(int size, long seed) {
+        Random random = new Random(seed);
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    public static Payload createPayload(int size, long seed) {
+        Payload payload = new Payload();
+        payload.setName("name" + seed);
+        payload.setSal((int) seed);
+        payload.setCreatedAt(new Date(seed));
+        payload.setDescription(createString(size, seed));
+        return payload;
+    }
+
+    public static File createDirectory(String name) throws IOException {
+        File dir = File.createTempFile("fsm-" + name, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Failed to create directory: " + dir.getPath());
+        }
+        return dir;
+    }
+
+    public static void deleteDirectory(File dir) {
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException ignore) {}
+    }
+}
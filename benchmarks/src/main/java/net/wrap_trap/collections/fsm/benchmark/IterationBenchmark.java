@@ -0,0 +1,108 @@
+package net.wrap_trap.collections.fsm.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.EntryVisitor;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The iterations over all the entries of FileStoredMap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IterationBenchmark {
+
+    @Param({ "100", "1000" })
+    public int valueSize;
+
+    @Param({ "10000", "100000" })
+    public int keyCount;
+
+    @Param({ "1024", "65536" })
+    public int bucketSize;
+
+    @Param({ "0", "0.1" })
+    public double collisionRate;
+
+    private File dir;
+    private FileStoredMap<String> map;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkData.createDirectory("iteration");
+        Configuration configuration = new Configuration();
+        configuration.setDirPath(dir.getPath());
+        configuration.setBucketSize(bucketSize);
+        map = new FileStoredMap<String>(configuration);
+        String value = BenchmarkData.createString(valueSize, 3L);
+        for (String key : BenchmarkData.createKeys(keyCount, collisionRate, 1L)) {
+            map.put(key, value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        map.close();
+        BenchmarkData.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void keySet(Blackhole blackhole) {
+        for (String key : map.keySet()) {
+            blackhole.consume(key);
+        }
+    }
+
+    @Benchmark
+    public void entrySet(Blackhole blackhole) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            blackhole.consume(entry.getKey());
+            blackhole.consume(entry.getValue());
+        }
+    }
+
+    @Benchmark
+    public void parallelForEach(final Blackhole blackhole) {
+        map.parallelForEach(new EntryVisitor<String, String>() {
+            @Override
+            public void visit(String key, String value) {
+                blackhole.consume(key);
+                blackhole.consume(value);
+            }
+        }, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public void scan(final Blackhole blackhole) {
+        map.scan(new EntryVisitor<String, String>() {
+            @Override
+            public void visit(String key, String value) {
+                blackhole.consume(key);
+                blackhole.consume(value);
+            }
+        });
+    }
+}
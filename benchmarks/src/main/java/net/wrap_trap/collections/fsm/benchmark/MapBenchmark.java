@@ -0,0 +1,125 @@
+package net.wrap_trap.collections.fsm.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The point operations of FileStoredMap on the keys which have been put in the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int valueSize;
+
+    @Param({ "10000", "100000" })
+    public int keyCount;
+
+    @Param({ "1024", "65536" })
+    public int bucketSize;
+
+    @Param({ "0", "0.1" })
+    public double collisionRate;
+
+    @Param({ "FILE", "MAPPED", "KEYDIR" })
+    public String indexType;
+
+    @Param({ "false", "true" })
+    public boolean bloomFilter;
+
+    private File dir;
+    private FileStoredMap<String> map;
+    private String[] keys;
+    private String[] missingKeys;
+    private String value;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index;
+
+        public int next(int count) {
+            index = (index + 1 == count) ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkData.createDirectory("map");
+        Configuration configuration = new Configuration();
+        configuration.setDirPath(dir.getPath());
+        configuration.setBucketSize(bucketSize);
+        configuration.setIndexType(Configuration.IndexType.valueOf(indexType));
+        configuration.setBloomFilterEnabled(bloomFilter);
+        map = new FileStoredMap<String>(configuration);
+        keys = BenchmarkData.createKeys(keyCount, collisionRate, 1L);
+        missingKeys = BenchmarkData.createKeys(keyCount, collisionRate, 2L);
+        for (int i = 0; i < keyCount; i++) {
+            missingKeys[i] = "missing" + missingKeys[i];
+        }
+        value = BenchmarkData.createString(valueSize, 3L);
+        for (String key : keys) {
+            map.put(key, value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        map.close();
+        BenchmarkData.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public String get(Cursor cursor) {
+        return map.get(keys[cursor.next(keyCount)]);
+    }
+
+    @Benchmark
+    public String getMissing(Cursor cursor) {
+        return map.get(missingKeys[cursor.next(keyCount)]);
+    }
+
+    @Benchmark
+    public boolean containsKey(Cursor cursor) {
+        return map.containsKey(keys[cursor.next(keyCount)]);
+    }
+
+    @Benchmark
+    public String put(Cursor cursor) {
+        return map.put(keys[cursor.next(keyCount)], value);
+    }
+
+    /**
+     * Removes the key and puts it back, so the number of keys is kept.
+     */
+    @Benchmark
+    public String removeAndPut(Cursor cursor) {
+        String key = keys[cursor.next(keyCount)];
+        String removed = map.remove(key);
+        map.put(key, value);
+        return removed;
+    }
+}
@@ -0,0 +1,52 @@
+package net.wrap_trap.collections.fsm.benchmark;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * POJO value as the Employee of the tests, with a description of the value size.
+ */
+public class Payload implements Serializable {
+
+    /**
+     * serialVersionUID
+     */
+    private static final long serialVersionUID = 3074425211830327165L;
+
+    private String name;
+    private int sal;
+    private Date createdAt;
+    private String description;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getSal() {
+        return sal;
+    }
+
+    public void setSal(int sal) {
+        this.sal = sal;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+}
@@ -0,0 +1,96 @@
+package net.wrap_trap.collections.fsm.benchmark.workload;
+
+import java.util.Random;
+
+/**
+ * Chooses the record numbers from 0 to (itemCount - 1).
+ */
+public abstract class KeyGenerator {
+
+    protected final long itemCount;
+
+    protected KeyGenerator(long itemCount) {
+        this.itemCount = itemCount;
+    }
+
+    public abstract long next(Random random);
+
+    public static KeyGenerator create(String distribution, long itemCount, double zipfianConstant) {
+        if ("uniform".equals(distribution))
+            return new UniformGenerator(itemCount);
+        if ("zipfian".equals(distribution))
+            return new ScrambledZipfianGenerator(itemCount, zipfianConstant);
+        throw new IllegalArgumentException("Unknown distribution: " + distribution);
+    }
+
+    /**
+     * FNV-1a 64bit hash of the number, to spread the record numbers.
+     */
+    public static long fnvHash64(long value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash & Long.MAX_VALUE;
+    }
+
+    static class UniformGenerator extends KeyGenerator {
+
+        UniformGenerator(long itemCount) {
+            super(itemCount);
+        }
+
+        @Override
+        public long next(Random random) {
+            return (long) (random.nextDouble() * itemCount);
+        }
+    }
+
+    /**
+     * <pre>
+     * Zipfian distribution by the algorithm of Gray et al. "Quickly Generating
+     * Billion-Record Synthetic Databases", as YCSB. The popular items are scattered
+     * over the record numbers by hashing, so they are not clustered in the data files.
+     * </pre>
+     */
+    static class ScrambledZipfianGenerator extends KeyGenerator {
+
+        private final double theta;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+
+        ScrambledZipfianGenerator(long itemCount, double theta) {
+            super(itemCount);
+            this.theta = theta;
+            this.zetan = zeta(itemCount, theta);
+            double zeta2 = zeta(2, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / itemCount, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        @Override
+        public long next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = Math.min(itemCount - 1, (long) (itemCount * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            return fnvHash64(rank) % itemCount;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.wrap_trap.collections.fsm.benchmark.workload;
+
+import java.util.Properties;
+import java.util.Random;
+
+import net.wrap_trap.collections.fsm.Configuration;
+
+/**
+ * <pre>
+ * The parameters of a workload, in the properties as YCSB.
+ *
+ * recordcount        the number of records loaded before running (default 100000)
+ * operationcount     the number of operations of all the threads (default 100000)
+ * threadcount        (default 1)
+ * readproportion     (default 0.95)
+ * updateproportion   (default 0.05)
+ * insertproportion   (default 0)
+ * scanproportion     (default 0)
+ * scanlength         the number of records read by a scan (default 100)
+ * requestdistribution  zipfian or uniform (default zipfian)
+ * zipfianconstant    (default 0.99)
+ * valuesize          the length of a value (default 1000)
+ * load               whether to load the records (default true)
+ * dir                the directory of the store (default tmp/workload)
+ * indextype, bucketsize, datafilesize, durability, cachetype, cachemaximumbytes
+ *                    Configuration of the store
+ * </pre>
+ */
+public class Workload {
+
+    public enum Operation {
+        READ, UPDATE, INSERT, SCAN
+    }
+
+    private final Properties properties;
+    private final long recordCount;
+    private final long operationCount;
+    private final int threadCount;
+    private final double[] proportions = new double[Operation.values().length];
+    private final int scanLength;
+    private final int valueSize;
+    private final KeyGenerator keyGenerator;
+
+    public Workload(Properties properties) {
+        this.properties = properties;
+        this.recordCount = Long.parseLong(properties.getProperty("recordcount", "100000"));
+        this.operationCount = Long.parseLong(properties.getProperty("operationcount", "100000"));
+        this.threadCount = Integer.parseInt(properties.getProperty("threadcount", "1"));
+        this.proportions[Operation.READ.ordinal()] = getDouble("readproportion", 0.95);
+        this.proportions[Operation.UPDATE.ordinal()] = getDouble("updateproportion", 0.05);
+        this.proportions[Operation.INSERT.ordinal()] = getDouble("insertproportion", 0);
+        this.proportions[Operation.SCAN.ordinal()] = getDouble("scanproportion", 0);
+        this.scanLength = Integer.parseInt(properties.getProperty("scanlength", "100"));
+        this.valueSize = Integer.parseInt(properties.getProperty("valuesize", "1000"));
+        this.keyGenerator = KeyGenerator.create(properties.getProperty("requestdistribution", "zipfian"),
+                                                recordCount, getDouble("zipfianconstant", 0.99));
+    }
+
+    protected double getDouble(String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        return (value == null) ? defaultValue : Double.parseDouble(value);
+    }
+
+    public Configuration createConfiguration() {
+        Configuration configuration = new Configuration();
+        configuration.setDirPath(properties.getProperty("dir", "tmp/workload"));
+        String value = properties.getProperty("indextype");
+        if (value != null) {
+            configuration.setIndexType(Configuration.IndexType.valueOf(value.toUpperCase()));
+        }
+        value = properties.getProperty("bucketsize");
+        if (value != null) {
+            configuration.setBucketSize(Integer.parseInt(value));
+        }
+        value = properties.getProperty("datafilesize");
+        if (value != null) {
+            configuration.setDataFileSize(Long.parseLong(value));
+        }
+        value = properties.getProperty("durability");
+        if (value != null) {
+            configuration.setDurability(Configuration.Durability.valueOf(value.toUpperCase()));
+        }
+        value = properties.getProperty("cachetype");
+        if (value != null) {
+            configuration.setCacheType(Configuration.CacheType.valueOf(value.toUpperCase()));
+        }
+        value = properties.getProperty("cachemaximumbytes");
+        if (value != null) {
+            configuration.setCacheMaximumBytes(Long.parseLong(value));
+        }
+        return configuration;
+    }
+
+    public Operation nextOperation(Random random) {
+        double total = 0;
+        for (double proportion : proportions) {
+            total += proportion;
+        }
+        double r = random.nextDouble() * total;
+        for (Operation operation : Operation.values()) {
+            r -= proportions[operation.ordinal()];
+            if (r < 0)
+                return operation;
+        }
+        return Operation.READ;
+    }
+
+    /**
+     * Returns the record number to be read or updated.
+     */
+    public long nextRecord(Random random) {
+        return keyGenerator.next(random);
+    }
+
+    public static String toKey(long recordNumber) {
+        return "user" + KeyGenerator.fnvHash64(recordNumber);
+    }
+
+    public String createValue(Random random) {
+        char[] chars = new char[valueSize];
+        for (int i = 0; i < valueSize; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getOperationCount() {
+        return operationCount;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public int getScanLength() {
+        return scanLength;
+    }
+
+    public boolean isLoad() {
+        return Boolean.parseBoolean(properties.getProperty("load", "true"));
+    }
+}
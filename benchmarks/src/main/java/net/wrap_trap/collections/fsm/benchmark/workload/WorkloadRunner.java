@@ -0,0 +1,198 @@
+package net.wrap_trap.collections.fsm.benchmark.workload;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.benchmark.workload.Workload.Operation;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * <pre>
+ * Runs a workload on FileStoredMap as YCSB, and reports the throughput and the
+ * latency percentiles of each operation.
+ *
+ *   java -cp target/benchmarks.jar net.wrap_trap.collections.fsm.benchmark.workload.WorkloadRunner \
+ *       [-P workload.properties] [-p name=value ...]
+ *
+ * The records are loaded by putAll in batches, and the records of the run are read,
+ * updated or scanned in the chosen distribution. The inserted records follow the
+ * loaded ones, and they are not read in the run. A scan reads scanlength records
+ * which follow the chosen one in the record numbers, since the map has no order of
+ * keys.
+ * </pre>
+ */
+public class WorkloadRunner {
+
+    private static final int LOAD_BATCH_SIZE = 10000;
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final Workload workload;
+    private final FileStoredMap<String> map;
+    private final AtomicLong insertCount = new AtomicLong();
+
+    public WorkloadRunner(Workload workload, FileStoredMap<String> map) {
+        this.workload = workload;
+        this.map = map;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if ("-P".equals(args[i]) && (i + 1 < args.length)) {
+                InputStream in = new FileInputStream(args[++i]);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } else if ("-p".equals(args[i]) && (i + 1 < args.length)) {
+                String property = args[++i];
+                int index = property.indexOf('=');
+                properties.setProperty(property.substring(0, index), property.substring(index + 1));
+            } else {
+                System.err.println("Usage: WorkloadRunner [-P workload.properties] [-p name=value ...]");
+                System.exit(1);
+            }
+        }
+        Workload workload = new Workload(properties);
+        FileStoredMap<String> map = new FileStoredMap<String>(workload.createConfiguration());
+        try {
+            WorkloadRunner runner = new WorkloadRunner(workload, map);
+            if (workload.isLoad()) {
+                runner.load(System.out);
+            }
+            runner.run(System.out);
+        } finally {
+            map.close();
+        }
+    }
+
+    public void load(PrintStream out) {
+        long start = System.nanoTime();
+        Random random = new Random(0L);
+        Map<String, String> batch = new HashMap<String, String>();
+        for (long i = 0; i < workload.getRecordCount(); i++) {
+            batch.put(Workload.toKey(i), workload.createValue(random));
+            if (batch.size() >= LOAD_BATCH_SIZE) {
+                map.putAll(batch);
+                batch.clear();
+            }
+        }
+        map.putAll(batch);
+        long elapsed = System.nanoTime() - start;
+        out.printf("[LOAD] records: %d, elapsed: %.3f s, throughput: %.1f ops/s%n", workload.getRecordCount(),
+                   elapsed / 1e9, workload.getRecordCount() * 1e9 / elapsed);
+    }
+
+    public void run(PrintStream out) throws Exception {
+        int threadCount = workload.getThreadCount();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<Histogram[]>> futures = new ArrayList<Future<Histogram[]>>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                long operations = workload.getOperationCount() / threadCount +
+                                  ((i < workload.getOperationCount() % threadCount) ? 1 : 0);
+                futures.add(executor.submit(new Client(operations, new Random(i + 1))));
+            }
+            Histogram[] histograms = createHistograms();
+            for (Future<Histogram[]> future : futures) {
+                Histogram[] result = future.get();
+                for (int i = 0; i < histograms.length; i++) {
+                    histograms[i].add(result[i]);
+                }
+            }
+            report(out, histograms, System.nanoTime() - start);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    protected static Histogram[] createHistograms() {
+        Histogram[] histograms = new Histogram[Operation.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        }
+        return histograms;
+    }
+
+    protected void report(PrintStream out, Histogram[] histograms, long elapsed) {
+        long total = 0;
+        for (Histogram histogram : histograms) {
+            total += histogram.getTotalCount();
+        }
+        out.printf("[OVERALL] operations: %d, elapsed: %.3f s, throughput: %.1f ops/s%n", total, elapsed / 1e9,
+                   total * 1e9 / elapsed);
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = histograms[operation.ordinal()];
+            if (histogram.getTotalCount() == 0)
+                continue;
+            out.printf("[%s] operations: %d, throughput: %.1f ops/s, latency(us) mean: %.1f, p50: %d, p99: %d, "
+                       + "p99.9: %d, max: %d%n", operation, histogram.getTotalCount(),
+                       histogram.getTotalCount() * 1e9 / elapsed, histogram.getMean(),
+                       histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                       histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+        }
+    }
+
+    class Client implements Callable<Histogram[]> {
+
+        private final long operations;
+        private final Random random;
+
+        Client(long operations, Random random) {
+            this.operations = operations;
+            this.random = random;
+        }
+
+        @Override
+        public Histogram[] call() {
+            Histogram[] histograms = createHistograms();
+            for (long i = 0; i < operations; i++) {
+                Operation operation = workload.nextOperation(random);
+                long start = System.nanoTime();
+                execute(operation);
+                long micros = (System.nanoTime() - start) / 1000L;
+                histograms[operation.ordinal()].recordValue(Math.min(micros, HIGHEST_TRACKABLE_MICROS));
+            }
+            return histograms;
+        }
+
+        protected void execute(Operation operation) {
+            switch (operation) {
+            case READ:
+                map.get(Workload.toKey(workload.nextRecord(random)));
+                break;
+            case UPDATE:
+                map.put(Workload.toKey(workload.nextRecord(random)), workload.createValue(random));
+                break;
+            case INSERT:
+                long recordNumber = workload.getRecordCount() + insertCount.getAndIncrement();
+                map.put(Workload.toKey(recordNumber), workload.createValue(random));
+                break;
+            case SCAN:
+                long first = workload.nextRecord(random);
+                for (int i = 0; i < workload.getScanLength(); i++) {
+                    map.get(Workload.toKey((first + i) % workload.getRecordCount()));
+                }
+                break;
+            }
+        }
+    }
+}
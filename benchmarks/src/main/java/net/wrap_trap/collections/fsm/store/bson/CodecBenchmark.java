@@ -0,0 +1,116 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+
+import net.wrap_trap.collections.fsm.benchmark.BenchmarkData;
+import net.wrap_trap.collections.fsm.benchmark.Payload;
+import net.wrap_trap.collections.fsm.codec.PojoValueCodec;
+import net.wrap_trap.collections.fsm.codec.StringValueCodec;
+
+import org.bson.BSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The encoding and the decoding of values by the codecs, without the I/O. The POJO values are encoded by
+ * BsonValueCodec and PojoValueCodec, and the string values are encoded by BsonValueCodec and StringValueCodec. This is
+ * in the package of BsonValueCodec to call its protected methods.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int valueSize;
+
+    private BsonValueCodec<Payload> codec;
+    private Payload payload;
+    private byte[] bytes;
+    private BSONObject bsonObject;
+
+    private PojoValueCodec<Payload> pojoCodec;
+    private byte[] pojoBytes;
+
+    private BsonValueCodec<String> bsonStringCodec;
+    private StringValueCodec stringCodec;
+    private String string;
+    private byte[] bsonStringBytes;
+    private byte[] stringBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        codec = new BsonValueCodec<Payload>();
+        payload = BenchmarkData.createPayload(valueSize, 1L);
+        bytes = codec.toByteArray("key", payload);
+        bsonObject = codec.decodeObject(bytes);
+
+        pojoCodec = new PojoValueCodec<Payload>(Payload.class);
+        pojoBytes = pojoCodec.encode("key", payload);
+
+        bsonStringCodec = new BsonValueCodec<String>();
+        stringCodec = new StringValueCodec();
+        string = BenchmarkData.createString(valueSize, 1L);
+        bsonStringBytes = bsonStringCodec.encode("key", string);
+        stringBytes = stringCodec.encode("key", string);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+        return codec.toByteArray("key", payload);
+    }
+
+    @Benchmark
+    public Payload rebuildValue() {
+        return codec.rebuildValue(bsonObject);
+    }
+
+    @Benchmark
+    public Payload decodeAndRebuildValue() {
+        return codec.decode(bytes);
+    }
+
+    @Benchmark
+    public byte[] encodePojo() {
+        return pojoCodec.encode("key", payload);
+    }
+
+    @Benchmark
+    public Payload decodePojo() {
+        return pojoCodec.decode(pojoBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeStringInBson() {
+        return bsonStringCodec.encode("key", string);
+    }
+
+    @Benchmark
+    public String decodeStringInBson() {
+        return bsonStringCodec.decode(bsonStringBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeString() {
+        return stringCodec.encode("key", string);
+    }
+
+    @Benchmark
+    public String decodeString() {
+        return stringCodec.decode(stringBytes);
+    }
+}
@@ -0,0 +1,98 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.benchmark.BenchmarkData;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+import net.wrap_trap.collections.fsm.store.StoreMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The reads of the data blocks by RandomAccessFileEntityRepository. The positions are read with or without the block
+ * sizes, as the key directory and the index file give them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataBlockBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int valueSize;
+
+    @Param({ "10000", "100000" })
+    public int blockCount;
+
+    private File dir;
+    private WriteAheadLog writeAheadLog;
+    private RandomAccessFileEntityRepository repository;
+    private BsonDataBlockPosition[] positions;
+    private BsonDataBlockPosition[] sizedPositions;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index;
+
+        public int next(int count) {
+            index = (index + 1 == count) ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkData.createDirectory("datablock");
+        Configuration configuration = new Configuration();
+        configuration.setDirPath(dir.getPath());
+        writeAheadLog = new WriteAheadLog(configuration, null);
+        repository = new RandomAccessFileEntityRepository(configuration, writeAheadLog, new StoreMetrics(false));
+        byte[] body = BenchmarkData.createString(valueSize, 1L).getBytes("UTF-8");
+        positions = new BsonDataBlockPosition[blockCount];
+        sizedPositions = new BsonDataBlockPosition[blockCount];
+        String[] keys = BenchmarkData.createKeys(blockCount, 0, 1L);
+        for (int i = 0; i < blockCount; i++) {
+            sizedPositions[i] = repository.writeTo(new BinaryKey(keys[i]), (byte) 0, body);
+            positions[i] = new BsonDataBlockPosition(sizedPositions[i].getFileNumber(), sizedPositions[i].getPointer());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repository.close();
+        writeAheadLog.close();
+        BenchmarkData.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public BsonDataBlock getDataBlock(Cursor cursor) throws IOException {
+        return repository.getDataBlock(positions[cursor.next(blockCount)]);
+    }
+
+    @Benchmark
+    public BsonDataBlock getDataBlockOfKnownSize(Cursor cursor) throws IOException {
+        return repository.getDataBlock(sizedPositions[cursor.next(blockCount)]);
+    }
+
+    @Benchmark
+    public BsonDataBlock getDataBlockHeader(Cursor cursor) throws IOException {
+        return repository.getDataBlockHeader(positions[cursor.next(blockCount)]);
+    }
+}
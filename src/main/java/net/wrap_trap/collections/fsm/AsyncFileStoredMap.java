@@ -0,0 +1,60 @@
+package net.wrap_trap.collections.fsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import net.wrap_trap.collections.fsm.store.AsyncStore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * <pre>
+ * The asynchronous facade of a GenericFileStoredMap for the callers which must not
+ * be blocked by the I/O, such as the event loops.
+ *
+ * The requests are run on the I/O threads of the number given, and the requests of
+ * the same key are run in the order of submission. The map is not closed by this
+ * facade, and may be used synchronously at the same time.
+ * </pre>
+ */
+public class AsyncFileStoredMap<K, V> implements Closeable {
+
+    private GenericFileStoredMap<K, V> map;
+    private AsyncStore<V> asyncStore;
+
+    public AsyncFileStoredMap(GenericFileStoredMap<K, V> map, int threads) {
+        this.map = map;
+        this.asyncStore = new AsyncStore<V>(map.getStore(), threads);
+    }
+
+    public GenericFileStoredMap<K, V> getMap() {
+        return map;
+    }
+
+    public ListenableFuture<V> getAsync(Object key) {
+        return asyncStore.getAsync(map.toBinaryKey(key, false));
+    }
+
+    /**
+     * Puts the value, and the future returns the previous value.
+     */
+    public ListenableFuture<V> putAsync(K key, V value) {
+        return asyncStore.putAsync(map.toBinaryKey(key, true), value);
+    }
+
+    public ListenableFuture<V> removeAsync(Object key) {
+        return asyncStore.removeAsync(map.toBinaryKey(key, false));
+    }
+
+    public ListenableFuture<Boolean> containsKeyAsync(Object key) {
+        return asyncStore.containsKeyAsync(map.toBinaryKey(key, false));
+    }
+
+    /**
+     * Waits for the requests submitted already, and rejects the new requests.
+     */
+    @Override
+    public void close() throws IOException {
+        asyncStore.close();
+    }
+}
@@ -1,19 +1,143 @@
 package net.wrap_trap.collections.fsm;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import net.wrap_trap.collections.fsm.codec.ValueCodec;
+
 public class Configuration {
 
+    public enum IndexType {
+        /** read and write the index file through RandomAccessFile. */
+        FILE,
+        /** map the index file into memory through MappedByteBuffer. */
+        MAPPED,
+        /** keep the key directory in memory instead of the index file, it is rebuilt from the data files. */
+        KEYDIR
+    }
+
+    public enum Durability {
+        /** never force the files to disk. */
+        NONE,
+        /** commit the write-ahead log at the interval of commitInterval, the updates in the interval may be lost. */
+        BATCHED,
+        /** return from the update after the write-ahead log including it has been committed. */
+        SYNC
+    }
+
+    public enum CacheType {
+        /** read every value from the data files. */
+        NONE,
+        /** cache the encoded values in the Java heap. */
+        HEAP,
+        /** cache the encoded values in a direct buffer of cacheMaximumBytes out of the Java heap. */
+        DIRECT
+    }
+
+    public enum CompressionType {
+        /** write the values as they are encoded. */
+        NONE,
+        /** compress the values with Deflater, if they are not shorter than compressionThreshold. */
+        DEFLATE
+    }
+
     private static final String DEFAULT_DIR_PATH = "tmp";
     private static final int DEFAULT_BUCKET_SIZE = 4096;
     private static final int DEFAULT_DATA_FILE_SIZE = 1024 * 1024 * 512;
+    private static final IndexType DEFAULT_INDEX_TYPE = IndexType.FILE;
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+    private static final long DEFAULT_COMPACTION_INTERVAL = 60 * 1000L;
+    private static final double DEFAULT_COMPACTION_DEAD_RATIO = 0.5;
+    private static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 8 * 1024 * 1024L;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+    private static final Durability DEFAULT_DURABILITY = Durability.NONE;
+    private static final long DEFAULT_COMMIT_INTERVAL = 10L;
+    private static final long DEFAULT_CHECKPOINT_SIZE = 64 * 1024 * 1024L;
+    private static final CacheType DEFAULT_CACHE_TYPE = CacheType.NONE;
+    private static final long DEFAULT_CACHE_MAXIMUM_SIZE = 10000L;
+    private static final CompressionType DEFAULT_COMPRESSION_TYPE = CompressionType.NONE;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+    private static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
 
     private int bucketSize;
     private String dirPath;
     private long dataFileSize;
+    private IndexType indexType;
+    private float loadFactor;
+    private boolean compactionEnabled;
+    private long compactionInterval;
+    private double compactionDeadRatio;
+    private long compactionBytesPerSecond;
+    private int concurrencyLevel;
+    private Durability durability;
+    private long commitInterval;
+    private long checkpointSize;
+    private CacheType cacheType;
+    private long cacheMaximumSize;
+    private long cacheMaximumBytes;
+    private boolean metricsEnabled;
+    private boolean jmxEnabled;
+    private ValueCodec<?> valueCodec;
+    private CompressionType compressionType;
+    private int compressionThreshold;
+    private boolean bloomFilterEnabled;
+    private double bloomFilterFalsePositiveRate;
+    private List<String> shardDirPaths;
 
     public Configuration() {
         this.dirPath = DEFAULT_DIR_PATH;
         this.bucketSize = DEFAULT_BUCKET_SIZE;
         this.dataFileSize = DEFAULT_DATA_FILE_SIZE;
+        this.indexType = DEFAULT_INDEX_TYPE;
+        this.loadFactor = DEFAULT_LOAD_FACTOR;
+        this.compactionEnabled = false;
+        this.compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+        this.compactionDeadRatio = DEFAULT_COMPACTION_DEAD_RATIO;
+        this.compactionBytesPerSecond = DEFAULT_COMPACTION_BYTES_PER_SECOND;
+        this.concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+        this.durability = DEFAULT_DURABILITY;
+        this.commitInterval = DEFAULT_COMMIT_INTERVAL;
+        this.checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+        this.cacheType = DEFAULT_CACHE_TYPE;
+        this.cacheMaximumSize = DEFAULT_CACHE_MAXIMUM_SIZE;
+        this.cacheMaximumBytes = 0L;
+        this.metricsEnabled = false;
+        this.jmxEnabled = false;
+        this.compressionType = DEFAULT_COMPRESSION_TYPE;
+        this.compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        this.bloomFilterEnabled = false;
+        this.bloomFilterFalsePositiveRate = DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE;
+    }
+
+    /**
+     * Copies the configuration, such as for each shard of a store.
+     */
+    public Configuration(Configuration configuration) {
+        this.dirPath = configuration.dirPath;
+        this.bucketSize = configuration.bucketSize;
+        this.dataFileSize = configuration.dataFileSize;
+        this.indexType = configuration.indexType;
+        this.loadFactor = configuration.loadFactor;
+        this.compactionEnabled = configuration.compactionEnabled;
+        this.compactionInterval = configuration.compactionInterval;
+        this.compactionDeadRatio = configuration.compactionDeadRatio;
+        this.compactionBytesPerSecond = configuration.compactionBytesPerSecond;
+        this.concurrencyLevel = configuration.concurrencyLevel;
+        this.durability = configuration.durability;
+        this.commitInterval = configuration.commitInterval;
+        this.checkpointSize = configuration.checkpointSize;
+        this.cacheType = configuration.cacheType;
+        this.cacheMaximumSize = configuration.cacheMaximumSize;
+        this.cacheMaximumBytes = configuration.cacheMaximumBytes;
+        this.metricsEnabled = configuration.metricsEnabled;
+        this.jmxEnabled = configuration.jmxEnabled;
+        this.valueCodec = configuration.valueCodec;
+        this.compressionType = configuration.compressionType;
+        this.compressionThreshold = configuration.compressionThreshold;
+        this.bloomFilterEnabled = configuration.bloomFilterEnabled;
+        this.bloomFilterFalsePositiveRate = configuration.bloomFilterFalsePositiveRate;
+        this.shardDirPaths = (configuration.shardDirPaths == null) ? null
+                                                                   : new ArrayList<String>(configuration.shardDirPaths);
     }
 
     public long getDataFileSize() {
@@ -39,4 +163,237 @@ public class Configuration {
     public void setDirPath(String dirPath) {
         this.dirPath = dirPath;
     }
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    public void setIndexType(IndexType indexType) {
+        this.indexType = indexType;
+    }
+
+    public float getLoadFactor() {
+        return loadFactor;
+    }
+
+    /**
+     * The average number of entries per bucket over which the bucket table is grown by splitting a bucket. The
+     * bucket table is fixed at bucketSize if this is 0.
+     */
+    public void setLoadFactor(float loadFactor) {
+        this.loadFactor = loadFactor;
+    }
+
+    public boolean isCompactionEnabled() {
+        return compactionEnabled;
+    }
+
+    /**
+     * Runs the compaction of data files in background if true.
+     */
+    public void setCompactionEnabled(boolean compactionEnabled) {
+        this.compactionEnabled = compactionEnabled;
+    }
+
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    /**
+     * The interval in milliseconds between the checks of data files to be compacted.
+     */
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    public double getCompactionDeadRatio() {
+        return compactionDeadRatio;
+    }
+
+    /**
+     * The ratio of dead bytes in a data file over which the data file is compacted.
+     */
+    public void setCompactionDeadRatio(double compactionDeadRatio) {
+        this.compactionDeadRatio = compactionDeadRatio;
+    }
+
+    public long getCompactionBytesPerSecond() {
+        return compactionBytesPerSecond;
+    }
+
+    /**
+     * The upper limit of the bytes rewritten by compaction per second. Not limited if this is 0.
+     */
+    public void setCompactionBytesPerSecond(long compactionBytesPerSecond) {
+        this.compactionBytesPerSecond = compactionBytesPerSecond;
+    }
+
+    public int getConcurrencyLevel() {
+        return concurrencyLevel;
+    }
+
+    /**
+     * The upper limit of the number of locks which the buckets are striped over. The number of locks is the largest
+     * divisor of bucketSize not larger than this, so bucketSize should be a multiple of this.
+     */
+    public void setConcurrencyLevel(int concurrencyLevel) {
+        this.concurrencyLevel = concurrencyLevel;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public long getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * The interval in milliseconds between the commits of the write-ahead log in Durability.BATCHED.
+     */
+    public void setCommitInterval(long commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    public long getCheckpointSize() {
+        return checkpointSize;
+    }
+
+    /**
+     * The size of the write-ahead log over which the files are forced to disk and the log is truncated.
+     */
+    public void setCheckpointSize(long checkpointSize) {
+        this.checkpointSize = checkpointSize;
+    }
+
+    public CacheType getCacheType() {
+        return cacheType;
+    }
+
+    public void setCacheType(CacheType cacheType) {
+        this.cacheType = cacheType;
+    }
+
+    public long getCacheMaximumSize() {
+        return cacheMaximumSize;
+    }
+
+    /**
+     * The maximum number of the values in the cache. It is ignored by CacheType.HEAP if cacheMaximumBytes is set.
+     */
+    public void setCacheMaximumSize(long cacheMaximumSize) {
+        this.cacheMaximumSize = cacheMaximumSize;
+    }
+
+    public long getCacheMaximumBytes() {
+        return cacheMaximumBytes;
+    }
+
+    /**
+     * The maximum total size in bytes of the encoded values in the cache, 0 to bound the cache by cacheMaximumSize.
+     * CacheType.DIRECT requires it, and allocates the direct buffer of this size at once.
+     */
+    public void setCacheMaximumBytes(long cacheMaximumBytes) {
+        this.cacheMaximumBytes = cacheMaximumBytes;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Counts the operations and the I/O in StoreMetrics if true. false by default, since the counters are shared by
+     * all the threads of the store and every get, put and remove updates them.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Registers the metrics of the store to the platform MBeanServer while the store is open if true. The counters
+     * stay 0 unless metricsEnabled is true too.
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public ValueCodec<?> getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * The codec of the values, null to encode the values in BSON. A store must be opened with the codec which has
+     * written it.
+     */
+    public void setValueCodec(ValueCodec<?> valueCodec) {
+        this.valueCodec = valueCodec;
+    }
+
+    public CompressionType getCompressionType() {
+        return compressionType;
+    }
+
+    /**
+     * The compression of the values in the data files. The blocks are flagged when they are compressed, so a store
+     * can be opened with any compression type regardless of the one which has written it.
+     */
+    public void setCompressionType(CompressionType compressionType) {
+        this.compressionType = compressionType;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * The minimum length in bytes of the encoded values to be compressed. The shorter values are written as they are,
+     * since they are hardly made shorter.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isBloomFilterEnabled() {
+        return bloomFilterEnabled;
+    }
+
+    /**
+     * Whether get() and containsKey() consult the bloom filter of the keys before the index, so that most of the
+     * misses read no file. It is ignored with IndexType.KEYDIR, whose misses read no file already.
+     */
+    public void setBloomFilterEnabled(boolean bloomFilterEnabled) {
+        this.bloomFilterEnabled = bloomFilterEnabled;
+    }
+
+    public double getBloomFilterFalsePositiveRate() {
+        return bloomFilterFalsePositiveRate;
+    }
+
+    /**
+     * The rate of the misses which the bloom filter fails to answer, and which read the index as before.
+     */
+    public void setBloomFilterFalsePositiveRate(double bloomFilterFalsePositiveRate) {
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+    }
+
+    public List<String> getShardDirPaths() {
+        return shardDirPaths;
+    }
+
+    /**
+     * The directories of the shards, null not to shard the store. The keys are partitioned over the stores in the
+     * directories by the hash codes, and dirPath is not used. A sharded store must be opened with the same directories
+     * in the same order always, since the shard of a key is chosen by its position.
+     */
+    public void setShardDirPaths(List<String> shardDirPaths) {
+        this.shardDirPaths = shardDirPaths;
+    }
 }
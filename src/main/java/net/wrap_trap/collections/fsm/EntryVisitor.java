@@ -0,0 +1,10 @@
+package net.wrap_trap.collections.fsm;
+
+/**
+ * Receives the entries of a map. The visitor is called from multiple threads at once by
+ * GenericFileStoredMap#parallelForEach, so it must be thread-safe.
+ */
+public interface EntryVisitor<K, V> {
+
+    void visit(K key, V value);
+}
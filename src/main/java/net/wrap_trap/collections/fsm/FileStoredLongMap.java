@@ -0,0 +1,81 @@
+package net.wrap_trap.collections.fsm;
+
+import java.io.IOException;
+
+import net.wrap_trap.collections.fsm.codec.LongKeyCodec;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+/**
+ * <pre>
+ * The map of the long keys, encoded by LongKeyCodec.
+ *
+ * The keys are stored in 8 bytes big-endian as the keys of the data blocks, and
+ * the buckets are selected by the 64-bit finalizer of MurmurHash3, so the
+ * sequential IDs are spread over the buckets. The values are read and written
+ * by get(long), put(long, Object), remove(long) and containsKey(long) without
+ * boxing the keys.
+ * </pre>
+ */
+public class FileStoredLongMap<V> extends GenericFileStoredMap<Long, V> {
+
+    public FileStoredLongMap(String dirPath) throws IOException {
+        super(dirPath, new LongKeyCodec());
+    }
+
+    public FileStoredLongMap(Configuration configuration) throws IOException {
+        super(configuration, new LongKeyCodec());
+    }
+
+    public V get(long key) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("get, key:{}", key);
+        }
+        try {
+            return getStore().get(toBinaryKey(key, false));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public V put(long key, V value) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("put, key:{}, value:{}", key, value);
+        }
+        try {
+            return getStore().put(toBinaryKey(key, true), value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public V remove(long key) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("remove, key:{}", key);
+        }
+        try {
+            return getStore().remove(toBinaryKey(key, false));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("containsKey, key:{}", key);
+        }
+        try {
+            return getStore().containsKey(toBinaryKey(key, false));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the key encoded in 8 bytes. The key is named by its decimal string only to be put, since the name is
+     * given to the value codec.
+     */
+    protected static BinaryKey toBinaryKey(long key, boolean named) {
+        return new BinaryKey(LongKeyCodec.encodeLong(key), LongKeyCodec.hashLong(key), named ? Long.toString(key)
+                                                                                              : null);
+    }
+}
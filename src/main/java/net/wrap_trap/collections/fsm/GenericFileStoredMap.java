@@ -0,0 +1,361 @@
+package net.wrap_trap.collections.fsm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.wrap_trap.collections.fsm.codec.KeyCodec;
+import net.wrap_trap.collections.fsm.store.BinaryEntryVisitor;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+import net.wrap_trap.collections.fsm.store.ShardedStore;
+import net.wrap_trap.collections.fsm.store.Store;
+import net.wrap_trap.collections.fsm.store.StoreMetrics;
+import net.wrap_trap.collections.fsm.store.bson.BsonStore;
+import net.wrap_trap.collections.fsm.store.bson.utils.LazyIterator;
+import net.wrap_trap.collections.fsm.store.bson.utils.LazySet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * <pre>
+ * The map of the keys encoded by a KeyCodec, such as UUIDs, composite keys and
+ * byte arrays.
+ *
+ * The keys are stored as the encoded bytes in the headers of the data blocks, and
+ * compared by the bytes without being decoded. The keys are decoded only by
+ * keySet() and entrySet(). A directory must be opened with the same KeyCodec
+ * always.
+ * </pre>
+ */
+public class GenericFileStoredMap<K, V> implements Map<K, V> {
+
+    protected static Logger logger = LoggerFactory.getLogger(GenericFileStoredMap.class);
+
+    private Store<V> store;
+    private KeyCodec<K> keyCodec;
+
+    public GenericFileStoredMap(String dirPath, KeyCodec<K> keyCodec) throws IOException {
+        Configuration configuration = new Configuration();
+        configuration.setDirPath(dirPath);
+        this.keyCodec = keyCodec;
+        initialize(configuration);
+    }
+
+    public GenericFileStoredMap(Configuration configuration, KeyCodec<K> keyCodec) throws IOException {
+        this.keyCodec = keyCodec;
+        initialize(configuration);
+    }
+
+    /**
+     * Opens the store in the directory, or the sharded store over the stores in the directories of the shards.
+     */
+    protected void initialize(Configuration configuration) throws IOException {
+        List<String> shardDirPaths = configuration.getShardDirPaths();
+        if ((shardDirPaths == null) || shardDirPaths.isEmpty()) {
+            store = new BsonStore<V>(configuration);
+            return;
+        }
+        StoreMetrics metrics = new StoreMetrics(configuration.isMetricsEnabled());
+        List<Store<V>> shards = new ArrayList<Store<V>>();
+        try {
+            for (String shardDirPath : shardDirPaths) {
+                // every shard has its own configuration, since the bucket size is replaced with the one in the index.
+                Configuration shardConfiguration = new Configuration(configuration);
+                shardConfiguration.setDirPath(shardDirPath);
+                shards.add(new BsonStore<V>(shardConfiguration, metrics));
+            }
+        } catch (IOException ex) {
+            for (Store<V> shard : shards) {
+                Closeables.closeQuietly(shard);
+            }
+            throw ex;
+        }
+        store = new ShardedStore<V>(shards, metrics);
+    }
+
+    protected Store<V> getStore() {
+        return store;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("putAll, size:{}", map.size());
+        }
+        List<BinaryKey> keys = new ArrayList<BinaryKey>(map.size());
+        List<V> values = new ArrayList<V>(map.size());
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            keys.add(toBinaryKey(entry.getKey(), true));
+            values.add(entry.getValue());
+        }
+        try {
+            store.putAll(keys, values);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Collection<V> values() {
+        if (logger.isTraceEnabled()) {
+            logger.trace("values, ");
+        }
+        try {
+            return store.values();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean containsValue(Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void clear() {
+        if (logger.isTraceEnabled()) {
+            logger.trace("clear, ");
+        }
+        try {
+            store.clear();
+            store.initialize();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("containsKey, key:{}", key);
+        }
+        try {
+            return store.containsKey(toBinaryKey(key, false));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (logger.isTraceEnabled()) {
+            logger.trace("entrySet, ");
+        }
+        try {
+            return decodeEntrySet(store.binaryEntrySet());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public V get(Object key) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("get, key:{}", key);
+        }
+        try {
+            return store.get(toBinaryKey(key, false));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isEmpty() {
+        if (logger.isTraceEnabled()) {
+            logger.trace("isEmpty, ");
+        }
+        try {
+            return (store.size() == 0);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public Set<K> keySet() {
+        if (logger.isTraceEnabled()) {
+            logger.trace("keySet, ");
+        }
+        try {
+            return decodeKeySet(store.binaryKeySet());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public V remove(Object key) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("remove, key:{}", key);
+        }
+        try {
+            return store.remove(toBinaryKey(key, false));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public V put(K key, V value) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("put, key:{}, value:{}", key, value);
+        }
+        try {
+            return store.put(toBinaryKey(key, true), value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int size() {
+        if (logger.isTraceEnabled()) {
+            logger.trace("size, ");
+        }
+        try {
+            return store.size();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Passes every entry to the visitor from the threads of the parallelism, which read the ranges of the buckets
+     * independently. The entries put or removed while iterating may or may not be visited, but the others are visited
+     * exactly once.
+     */
+    public void parallelForEach(final EntryVisitor<K, V> visitor, int parallelism) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("parallelForEach, parallelism:{}", parallelism);
+        }
+        try {
+            store.parallelForEach(new BinaryEntryVisitor<V>() {
+                @Override
+                public void visit(BinaryKey key, V value) {
+                    visitor.visit(keyCodec.decode(key.getBytes()), value);
+                }
+            }, parallelism);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Passes every entry to the visitor in the order of the data files, which are read sequentially from the head
+     * instead of following the chains of the buckets. The entries put or removed while scanning may or may not be
+     * visited, and an entry updated while scanning may be visited twice, but the others are visited exactly once.
+     */
+    public void scan(final EntryVisitor<K, V> visitor) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scan, ");
+        }
+        try {
+            store.scan(new BinaryEntryVisitor<V>() {
+                @Override
+                public void visit(BinaryKey key, V value) {
+                    visitor.visit(keyCodec.decode(key.getBytes()), value);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the counters of the operations and the I/O, which are kept while the map is open.
+     */
+    public StoreMetrics getMetrics() {
+        return store.getMetrics();
+    }
+
+    /**
+     * Returns the snapshot of the entries at this point in time, which are iterated as they were while the map is
+     * updated. The snapshot must be closed, and cannot be used after the map is closed.
+     */
+    public MapSnapshot<K, V> snapshot() {
+        if (logger.isTraceEnabled()) {
+            logger.trace("snapshot, ");
+        }
+        try {
+            return new MapSnapshot<K, V>(this, store.snapshot());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        store.close();
+    }
+
+    /**
+     * Returns the view of the entries whose keys are decoded by the KeyCodec.
+     */
+    protected Set<Map.Entry<K, V>> decodeEntrySet(final Set<Map.Entry<BinaryKey, V>> binaryEntrySet) {
+        return new LazySet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                final Iterator<Map.Entry<BinaryKey, V>> binaryEntryIterator = binaryEntrySet.iterator();
+                return new LazyIterator<Map.Entry<K, V>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return binaryEntryIterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        Map.Entry<BinaryKey, V> entry = binaryEntryIterator.next();
+                        return Maps.immutableEntry(keyCodec.decode(entry.getKey().getBytes()), entry.getValue());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return binaryEntrySet.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the view of the keys decoded by the KeyCodec.
+     */
+    protected Set<K> decodeKeySet(final Set<BinaryKey> binaryKeySet) {
+        return new LazySet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                final Iterator<BinaryKey> binaryKeyIterator = binaryKeySet.iterator();
+                return new LazyIterator<K>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return binaryKeyIterator.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        return keyCodec.decode(binaryKeyIterator.next().getBytes());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return binaryKeySet.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the key encoded by the KeyCodec. The key is named by String#valueOf(Object) only to be put, since the
+     * name is given to the value codec.
+     *
+     * @throws ClassCastException if the key is not of the type of the KeyCodec.
+     */
+    @SuppressWarnings("unchecked")
+    protected BinaryKey toBinaryKey(Object key, boolean named) {
+        Preconditions.checkNotNull(key, "null key is not supported.");
+        K k = (K) key;
+        byte[] bytes = keyCodec.encode(k);
+        return new BinaryKey(bytes, keyCodec.hash(k, bytes), named ? String.valueOf(k) : null);
+    }
+}
@@ -0,0 +1,54 @@
+package net.wrap_trap.collections.fsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import net.wrap_trap.collections.fsm.store.StoreSnapshot;
+
+/**
+ * <pre>
+ * The entries of a GenericFileStoredMap at the point in time when the snapshot is
+ * taken, such as for a backup or a report while the map is updated.
+ *
+ * The entries put, updated or removed after the snapshot are not seen through it.
+ * The snapshot must be closed, since the data files are not compacted while any
+ * snapshot is open.
+ * </pre>
+ */
+public class MapSnapshot<K, V> implements Closeable {
+
+    private GenericFileStoredMap<K, V> map;
+    private StoreSnapshot<V> storeSnapshot;
+
+    protected MapSnapshot(GenericFileStoredMap<K, V> map, StoreSnapshot<V> storeSnapshot) {
+        this.map = map;
+        this.storeSnapshot = storeSnapshot;
+    }
+
+    public int size() {
+        return storeSnapshot.size();
+    }
+
+    public Set<K> keySet() {
+        try {
+            return map.decodeKeySet(storeSnapshot.binaryKeySet());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        try {
+            return map.decodeEntrySet(storeSnapshot.binaryEntrySet());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        storeSnapshot.close();
+    }
+}
@@ -0,0 +1,44 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Stores byte arrays as they are, hashed by MurmurHash3. The keys are compared by their contents, unlike the byte
+ * arrays in java.util.HashMap. The arrays must not be modified after they are given to the map.
+ */
+public class ByteArrayKeyCodec implements KeyCodec<byte[]> {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#encode(java.lang.Object)
+     */
+    @Override
+    public byte[] encode(byte[] key) {
+        return key;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#decode(byte[])
+     */
+    @Override
+    public byte[] decode(byte[] bytes) {
+        return bytes;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#hash(java.lang.Object,
+     * byte[])
+     */
+    @Override
+    public int hash(byte[] key, byte[] bytes) {
+        return HASH_FUNCTION.hashBytes(bytes).asInt();
+    }
+}
@@ -0,0 +1,28 @@
+package net.wrap_trap.collections.fsm.codec;
+
+/**
+ * Stores byte arrays as they are. The arrays are not copied, so they must not be modified after put and get.
+ */
+public class ByteArrayValueCodec implements ValueCodec<byte[]> {
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#encode(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public byte[] encode(String key, byte[] value) {
+        return value;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#decode(byte[])
+     */
+    @Override
+    public byte[] decode(byte[] bytes) {
+        return bytes;
+    }
+}
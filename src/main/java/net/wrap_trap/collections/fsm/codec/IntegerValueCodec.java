@@ -0,0 +1,30 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores integers in 4 bytes of big endian.
+ */
+public class IntegerValueCodec implements ValueCodec<Integer> {
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#encode(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public byte[] encode(String key, Integer value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#decode(byte[])
+     */
+    @Override
+    public Integer decode(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+}
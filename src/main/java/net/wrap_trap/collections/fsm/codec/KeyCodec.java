@@ -0,0 +1,24 @@
+package net.wrap_trap.collections.fsm.codec;
+
+/**
+ * <pre>
+ * Encodes the keys into the bytes stored in the headers of the data blocks, and
+ * decodes them.
+ *
+ * The keys are compared by the encoded bytes, so the equal keys must be encoded
+ * into the same bytes. The hash code selects the bucket of the key, and must be
+ * the same for the same bytes. The data files are written by the codec, so a store
+ * must be opened with the same codec always. A codec is shared between threads.
+ * </pre>
+ */
+public interface KeyCodec<K> {
+
+    byte[] encode(K key);
+
+    K decode(byte[] bytes);
+
+    /**
+     * Returns the hash code of the key, which has been encoded into the bytes.
+     */
+    int hash(K key, byte[] bytes);
+}
@@ -0,0 +1,75 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Stores longs in 8 bytes of big endian. The keys are hashed by the 64-bit finalizer of MurmurHash3, so the
+ * sequential IDs are spread over the buckets.
+ */
+public class LongKeyCodec implements KeyCodec<Long> {
+
+    public static final int KEY_LENGTH = 8;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#encode(java.lang.Object)
+     */
+    @Override
+    public byte[] encode(Long key) {
+        return encodeLong(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#decode(byte[])
+     */
+    @Override
+    public Long decode(byte[] bytes) {
+        return decodeLong(bytes);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#hash(java.lang.Object,
+     * byte[])
+     */
+    @Override
+    public int hash(Long key, byte[] bytes) {
+        return hashLong(key);
+    }
+
+    public static byte[] encodeLong(long key) {
+        byte[] bytes = new byte[KEY_LENGTH];
+        long value = key;
+        for (int i = KEY_LENGTH - 1; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    public static long decodeLong(byte[] bytes) {
+        Preconditions.checkArgument(bytes.length == KEY_LENGTH, "not a long key, length: %s", bytes.length);
+        long key = 0L;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            key = (key << 8) | (bytes[i] & 0xffL);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the hash code of the key mixed by the 64-bit finalizer of MurmurHash3, folded into 32 bits.
+     */
+    public static int hashLong(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,30 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores longs in 8 bytes of big endian.
+ */
+public class LongValueCodec implements ValueCodec<Long> {
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#encode(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public byte[] encode(String key, Long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#decode(byte[])
+     */
+    @Override
+    public Long decode(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+}
@@ -0,0 +1,624 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <pre>
+ * Codec which encodes POJOs into a compact binary form without BSON.
+ *
+ * The properties of a class, which have both a getter and a setter, are found
+ * once and kept in the plan of the class with the accessors, the constructor and
+ * the types of the elements of the collections. The plans are cached per class,
+ * so the accessors are never looked up again for the following values.
+ *
+ *  value format
+ * +--+--------------+
+ * |t.|    body      |
+ * +--+--------------+
+ *
+ * t. a type tag, and the body is
+ *   NULL:         nothing
+ *   STRING:       length[integer] and UTF-8 bytes
+ *   INTEGER..CHARACTER: the primitive value in big endian
+ *   DATE:         the time in milliseconds[long]
+ *   BYTES:        length[integer] and bytes
+ *   LIST, SET:    size[integer] and the elements
+ *   MAP:          size[integer] and the pairs of the key and the value
+ *   ENUM:         the class name and the constant name as STRING
+ *   OBJECT:       count[integer] and the pairs of the property name and the value
+ *   TYPED_OBJECT: the class name as STRING, and the same as OBJECT
+ *   ARRAY:        the class name of the array as STRING, length[integer] and the elements
+ *   BIG_INTEGER:  length[integer] and the bytes of two's complement
+ *   BIG_DECIMAL:  scale[integer], and the unscaled value as BIG_INTEGER
+ *   UUID_VALUE:   the most and the least significant bits[long]
+ *
+ * The supported values are null, String, the wrappers of the primitives, Date,
+ * BigInteger, BigDecimal, UUID, the enums, the arrays, the collections and the
+ * maps of them, and the objects of the other classes with a default constructor,
+ * whose properties are the supported values. The other classes of java.* and
+ * javax.*, such as java.sql.Timestamp and Calendar, are rejected by encode() with
+ * IllegalArgumentException, since their states are not their properties.
+ *
+ * OBJECT is written instead of TYPED_OBJECT if the class is the declared type of
+ * the property, the type argument of the collection or the value class of the
+ * codec. The properties are written with their names, so a class can have new
+ * properties, and the unknown properties are skipped in decoding.
+ *
+ * The collections and the maps are decoded into the declared types if they are
+ * concrete, otherwise into ArrayList, LinkedHashSet, TreeSet, LinkedHashMap or
+ * TreeMap.
+ * </pre>
+ */
+public class PojoValueCodec<V> implements ValueCodec<V> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INTEGER = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte FLOAT = 5;
+    static final byte BOOLEAN = 6;
+    static final byte SHORT = 7;
+    static final byte BYTE = 8;
+    static final byte CHARACTER = 9;
+    static final byte DATE = 10;
+    static final byte BYTES = 11;
+    static final byte LIST = 12;
+    static final byte SET = 13;
+    static final byte MAP = 14;
+    static final byte ENUM = 15;
+    static final byte OBJECT = 16;
+    static final byte TYPED_OBJECT = 17;
+    static final byte ARRAY = 18;
+    static final byte BIG_INTEGER = 19;
+    static final byte BIG_DECIMAL = 20;
+    static final byte UUID_VALUE = 21;
+
+    private final Class<V> valueClass;
+    private final ClassLoader classLoader;
+    private final ConcurrentMap<Class<?>, ClassPlan> plans = new ConcurrentHashMap<Class<?>, ClassPlan>();
+    private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+    public PojoValueCodec() {
+        this(null);
+    }
+
+    /**
+     * The values of valueClass are written without the class name.
+     */
+    public PojoValueCodec(Class<V> valueClass) {
+        this.valueClass = valueClass;
+        this.classLoader = (valueClass != null) ? valueClass.getClassLoader() : PojoValueCodec.class.getClassLoader();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#encode(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public byte[] encode(String key, V value) {
+        Output out = new Output(INITIAL_BUFFER_SIZE);
+        writeValue(out, value, valueClass, null);
+        return out.toByteArray();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#decode(byte[])
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V decode(byte[] bytes) {
+        return (V) readValue(ByteBuffer.wrap(bytes), valueClass, null);
+    }
+
+    /**
+     * Writes the value, expected is the declared type of the value and element is the type argument of the collection
+     * or the map, both may be null.
+     */
+    protected void writeValue(Output out, Object value, Class<?> expected, Class<?> element) {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == Boolean.class) {
+            out.writeByte(BOOLEAN);
+            out.writeByte(((Boolean) value) ? (byte) 1 : (byte) 0);
+        } else if (type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(CHARACTER);
+            out.writeShort((short) ((Character) value).charValue());
+        } else if (type == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (type == byte[].class) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.writeBytes((byte[]) value);
+        } else if (type.isArray()) {
+            out.writeByte(ARRAY);
+            out.writeString(type.getName());
+            int length = Array.getLength(value);
+            out.writeInt(length);
+            for (int i = 0; i < length; i++) {
+                writeValue(out, Array.get(value, i), type.getComponentType(), null);
+            }
+        } else if (type == BigInteger.class) {
+            out.writeByte(BIG_INTEGER);
+            writeBigInteger(out, (BigInteger) value);
+        } else if (type == BigDecimal.class) {
+            out.writeByte(BIG_DECIMAL);
+            out.writeInt(((BigDecimal) value).scale());
+            writeBigInteger(out, ((BigDecimal) value).unscaledValue());
+        } else if (type == UUID.class) {
+            out.writeByte(UUID_VALUE);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            out.writeByte((value instanceof Set) ? SET : LIST);
+            out.writeInt(collection.size());
+            for (Object e : collection) {
+                writeValue(out, e, element, null);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey(), null, null);
+                writeValue(out, entry.getValue(), element, null);
+            }
+        } else if (value instanceof Enum) {
+            out.writeByte(ENUM);
+            out.writeString(((Enum<?>) value).getDeclaringClass().getName());
+            out.writeString(((Enum<?>) value).name());
+        } else {
+            if (isJdkClass(type))
+                throw new IllegalArgumentException(String.format("%s is not supported by PojoValueCodec.",
+                                                                 type.getName()));
+            ClassPlan plan = getPlan(type);
+            if (type == expected) {
+                out.writeByte(OBJECT);
+            } else {
+                out.writeByte(TYPED_OBJECT);
+                out.writeString(type.getName());
+            }
+            plan.write(this, out, value);
+        }
+    }
+
+    protected Object readValue(ByteBuffer in, Class<?> expected, Class<?> element) {
+        byte tag = in.get();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case INTEGER:
+            return in.getInt();
+        case LONG:
+            return in.getLong();
+        case DOUBLE:
+            return Double.longBitsToDouble(in.getLong());
+        case FLOAT:
+            return Float.intBitsToFloat(in.getInt());
+        case BOOLEAN:
+            return (in.get() != 0);
+        case SHORT:
+            return in.getShort();
+        case BYTE:
+            return in.get();
+        case CHARACTER:
+            return (char) in.getShort();
+        case DATE:
+            return new Date(in.getLong());
+        case BYTES: {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return bytes;
+        }
+        case LIST:
+        case SET: {
+            int size = in.getInt();
+            Collection<Object> collection = newCollection(tag, expected, size);
+            for (int i = 0; i < size; i++) {
+                collection.add(readValue(in, element, null));
+            }
+            return collection;
+        }
+        case MAP: {
+            int size = in.getInt();
+            Map<Object, Object> map = newMap(expected, size);
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(in, null, null);
+                map.put(key, readValue(in, element, null));
+            }
+            return map;
+        }
+        case ENUM:
+            return toEnum(loadClass(readString(in)), readString(in));
+        case OBJECT:
+            if (expected == null)
+                throw new IllegalArgumentException("The class of the object is unknown.");
+            return getPlan(expected).read(this, in);
+        case TYPED_OBJECT:
+            return getPlan(loadClass(readString(in))).read(this, in);
+        case ARRAY: {
+            Class<?> component = loadClass(readString(in)).getComponentType();
+            int length = in.getInt();
+            Object array = Array.newInstance(component, length);
+            for (int i = 0; i < length; i++) {
+                Array.set(array, i, readValue(in, component, null));
+            }
+            return array;
+        }
+        case BIG_INTEGER:
+            return readBigInteger(in);
+        case BIG_DECIMAL: {
+            int scale = in.getInt();
+            return new BigDecimal(readBigInteger(in), scale);
+        }
+        case UUID_VALUE:
+            return new UUID(in.getLong(), in.getLong());
+        default:
+            throw new IllegalArgumentException(String.format("Unknown type tag: %d", tag));
+        }
+    }
+
+    protected static boolean isJdkClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.");
+    }
+
+    protected static void writeBigInteger(Output out, BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        out.writeInt(bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    protected static BigInteger readBigInteger(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new BigInteger(bytes);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    protected static Object toEnum(Class<?> type, String name) {
+        return Enum.valueOf((Class<Enum>) type, name);
+    }
+
+    protected static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Collection<Object> newCollection(byte tag, Class<?> expected, int size) {
+        if (isConcrete(expected) && Collection.class.isAssignableFrom(expected))
+            return (Collection<Object>) newInstance(expected);
+        if ((expected != null) && SortedSet.class.isAssignableFrom(expected))
+            return new TreeSet<Object>();
+        if ((tag == SET) || ((expected != null) && Set.class.isAssignableFrom(expected)))
+            return new LinkedHashSet<Object>(size * 4 / 3 + 1);
+        return new ArrayList<Object>(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Map<Object, Object> newMap(Class<?> expected, int size) {
+        if (isConcrete(expected) && Map.class.isAssignableFrom(expected))
+            return (Map<Object, Object>) newInstance(expected);
+        if ((expected != null) && SortedMap.class.isAssignableFrom(expected))
+            return new TreeMap<Object, Object>();
+        return new LinkedHashMap<Object, Object>(size * 4 / 3 + 1);
+    }
+
+    protected static boolean isConcrete(Class<?> type) {
+        return (type != null) && !type.isInterface() && !Modifier.isAbstract(type.getModifiers());
+    }
+
+    protected static Object newInstance(Class<?> type) {
+        try {
+            return type.newInstance();
+        } catch (InstantiationException ex) {
+            throw new RuntimeException(ex);
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    protected Class<?> loadClass(String name) {
+        Class<?> type = classes.get(name);
+        if (type != null)
+            return type;
+        try {
+            type = Class.forName(name, true, classLoader);
+        } catch (ClassNotFoundException ex) {
+            throw new RuntimeException(ex);
+        }
+        classes.put(name, type);
+        return type;
+    }
+
+    protected ClassPlan getPlan(Class<?> type) {
+        ClassPlan plan = plans.get(type);
+        if (plan != null)
+            return plan;
+        plan = new ClassPlan(type);
+        ClassPlan current = plans.putIfAbsent(type, plan);
+        return (current == null) ? plan : current;
+    }
+
+    /**
+     * The constructor and the properties of a class, found once.
+     */
+    static class ClassPlan {
+
+        private final Constructor<?> constructor;
+        private final Property[] properties;
+        private final Map<String, Property> propertyMap = new HashMap<String, Property>();
+
+        ClassPlan(Class<?> type) {
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalArgumentException(String.format("%s has no default constructor.", type.getName()),
+                                                   ex);
+            }
+            List<Property> list = new ArrayList<Property>();
+            try {
+                for (PropertyDescriptor descriptor : Introspector.getBeanInfo(type, Object.class)
+                        .getPropertyDescriptors()) {
+                    if ((descriptor.getReadMethod() != null) && (descriptor.getWriteMethod() != null)) {
+                        list.add(new Property(descriptor));
+                    }
+                }
+            } catch (IntrospectionException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+            this.properties = list.toArray(new Property[list.size()]);
+            for (Property property : properties) {
+                propertyMap.put(property.name, property);
+            }
+        }
+
+        void write(PojoValueCodec<?> codec, Output out, Object value) {
+            out.writeInt(properties.length);
+            for (Property property : properties) {
+                out.writeInt(property.nameBytes.length);
+                out.writeBytes(property.nameBytes);
+                codec.writeValue(out, property.get(value), property.type, property.element);
+            }
+        }
+
+        Object read(PojoValueCodec<?> codec, ByteBuffer in) {
+            Object value;
+            try {
+                value = constructor.newInstance();
+            } catch (InstantiationException ex) {
+                throw new RuntimeException(ex);
+            } catch (IllegalAccessException ex) {
+                throw new RuntimeException(ex);
+            } catch (InvocationTargetException ex) {
+                throw new RuntimeException(ex);
+            }
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                Property property = findProperty(in, i);
+                if (property == null) {
+                    // the property has been removed from the class.
+                    codec.readValue(in, null, null);
+                    continue;
+                }
+                Object propertyValue = codec.readValue(in, property.type, property.element);
+                if ((propertyValue != null) || !property.type.isPrimitive()) {
+                    property.set(value, propertyValue);
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Reads the property name, which is compared with the i-th property at first, since the properties are
+         * written in the same order unless the class has been changed.
+         */
+        Property findProperty(ByteBuffer in, int i) {
+            int length = in.getInt();
+            if ((i < properties.length) && properties[i].matches(in, length)) {
+                in.position(in.position() + length);
+                return properties[i];
+            }
+            String name = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+            in.position(in.position() + length);
+            return propertyMap.get(name);
+        }
+    }
+
+    static class Property {
+
+        final String name;
+        final byte[] nameBytes;
+        final Class<?> type;
+        final Class<?> element; // the element type of the collection, or the value type of the map.
+        final Method getter;
+        final Method setter;
+
+        Property(PropertyDescriptor descriptor) {
+            this.name = descriptor.getName();
+            this.nameBytes = name.getBytes(UTF_8);
+            this.type = descriptor.getPropertyType();
+            this.getter = descriptor.getReadMethod();
+            this.setter = descriptor.getWriteMethod();
+            this.getter.setAccessible(true);
+            this.setter.setAccessible(true);
+            this.element = getElementType(getter.getGenericReturnType(), type);
+        }
+
+        static Class<?> getElementType(Type genericType, Class<?> type) {
+            if (!(genericType instanceof ParameterizedType))
+                return null;
+            Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+            Type argument = null;
+            if (Collection.class.isAssignableFrom(type) && (arguments.length == 1)) {
+                argument = arguments[0];
+            } else if (Map.class.isAssignableFrom(type) && (arguments.length == 2)) {
+                argument = arguments[1];
+            }
+            return (argument instanceof Class) ? (Class<?>) argument : null;
+        }
+
+        boolean matches(ByteBuffer in, int length) {
+            if (length != nameBytes.length)
+                return false;
+            byte[] array = in.array();
+            int offset = in.arrayOffset() + in.position();
+            for (int i = 0; i < length; i++) {
+                if (array[offset + i] != nameBytes[i])
+                    return false;
+            }
+            return true;
+        }
+
+        Object get(Object target) {
+            try {
+                return getter.invoke(target);
+            } catch (IllegalAccessException ex) {
+                throw new RuntimeException(ex);
+            } catch (InvocationTargetException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        void set(Object target, Object value) {
+            try {
+                setter.invoke(target, value);
+            } catch (IllegalAccessException ex) {
+                throw new RuntimeException(ex);
+            } catch (InvocationTargetException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * Growable buffer of the encoded bytes.
+     */
+    static class Output {
+
+        private byte[] buf;
+        private int size;
+
+        Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void ensure(int length) {
+            if (size + length > buf.length) {
+                byte[] newBuf = new byte[Math.max(buf.length * 2, size + length)];
+                System.arraycopy(buf, 0, newBuf, 0, size);
+                buf = newBuf;
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        void writeShort(short s) {
+            ensure(2);
+            buf[size++] = (byte) (s >>> 8);
+            buf[size++] = (byte) s;
+        }
+
+        void writeInt(int i) {
+            ensure(4);
+            buf[size++] = (byte) (i >>> 24);
+            buf[size++] = (byte) (i >>> 16);
+            buf[size++] = (byte) (i >>> 8);
+            buf[size++] = (byte) i;
+        }
+
+        void writeLong(long l) {
+            writeInt((int) (l >>> 32));
+            writeInt((int) l);
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(UTF_8);
+            writeInt(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[size];
+            System.arraycopy(buf, 0, bytes, 0, size);
+            return bytes;
+        }
+    }
+}
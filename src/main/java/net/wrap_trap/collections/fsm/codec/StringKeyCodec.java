@@ -0,0 +1,40 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+/**
+ * Stores strings in UTF-8, hashed by String#hashCode(). This is the encoding of the keys of FileStoredMap.
+ */
+public class StringKeyCodec implements KeyCodec<String> {
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#encode(java.lang.Object)
+     */
+    @Override
+    public byte[] encode(String key) {
+        return BinaryKey.encode(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#decode(byte[])
+     */
+    @Override
+    public String decode(byte[] bytes) {
+        return BinaryKey.decode(bytes);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#hash(java.lang.Object,
+     * byte[])
+     */
+    @Override
+    public int hash(String key, byte[] bytes) {
+        return key.hashCode();
+    }
+}
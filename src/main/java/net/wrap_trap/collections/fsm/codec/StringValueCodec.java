@@ -0,0 +1,32 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import java.nio.charset.Charset;
+
+/**
+ * Stores strings encoded in UTF-8.
+ */
+public class StringValueCodec implements ValueCodec<String> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#encode(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public byte[] encode(String key, String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#decode(byte[])
+     */
+    @Override
+    public String decode(byte[] bytes) {
+        return new String(bytes, UTF_8);
+    }
+}
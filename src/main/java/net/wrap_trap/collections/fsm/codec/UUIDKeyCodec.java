@@ -0,0 +1,49 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Stores UUIDs in 16 bytes of big endian, the most significant bits first.
+ */
+public class UUIDKeyCodec implements KeyCodec<UUID> {
+
+    private static final int KEY_LENGTH = 16;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#encode(java.lang.Object)
+     */
+    @Override
+    public byte[] encode(UUID key) {
+        return ByteBuffer.allocate(KEY_LENGTH).putLong(key.getMostSignificantBits())
+                .putLong(key.getLeastSignificantBits()).array();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#decode(byte[])
+     */
+    @Override
+    public UUID decode(byte[] bytes) {
+        Preconditions.checkArgument(bytes.length == KEY_LENGTH, "not a UUID key, length: %s", bytes.length);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        return new UUID(buf.getLong(), buf.getLong());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.KeyCodec#hash(java.lang.Object,
+     * byte[])
+     */
+    @Override
+    public int hash(UUID key, byte[] bytes) {
+        // the version bits of random UUIDs are fixed, so both halves are mixed.
+        return LongKeyCodec.hashLong(key.getMostSignificantBits() ^ (key.getLeastSignificantBits() * 31));
+    }
+}
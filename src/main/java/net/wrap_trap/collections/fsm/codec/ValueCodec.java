@@ -0,0 +1,21 @@
+package net.wrap_trap.collections.fsm.codec;
+
+/**
+ * <pre>
+ * Encodes the values into the bodies of the data blocks, and decodes them.
+ *
+ * The codec is set by Configuration#setValueCodec, and the values are encoded in
+ * BSON by default. The data files are written by the codec, so a store must be
+ * opened with the same codec always. A codec is shared between threads.
+ * </pre>
+ */
+public interface ValueCodec<V> {
+
+    /**
+     * Encodes the value of the key. The key is given for the codecs which store it with the value, and is stored in
+     * the data block anyway.
+     */
+    byte[] encode(String key, V value);
+
+    V decode(byte[] bytes);
+}
@@ -0,0 +1,192 @@
+package net.wrap_trap.collections.fsm.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <pre>
+ * The asynchronous facade of a Store. The requests are run on a fixed number of
+ * I/O threads and completed through ListenableFutures, so the callers such as the
+ * event loops are never blocked by the I/O.
+ *
+ * The requests are queued by the hash codes of the keys, and a queue is drained by
+ * one I/O thread at a time. So the requests of the same key are run in the order
+ * of submission. The queues are not aligned with the lock stripes of the store, and
+ * the requests of different queues may contend for the lock of a stripe. There are
+ * several queues per thread, so a slow request holds back only the requests of its
+ * own queue. The updates run by the I/O threads at once are committed to the
+ * write-ahead log together.
+ *
+ * The store is not closed by this facade.
+ * </pre>
+ */
+public class AsyncStore<V> implements Closeable {
+
+    protected static Logger logger = LoggerFactory.getLogger(AsyncStore.class);
+
+    private static final int QUEUES_PER_THREAD = 4;
+    private static final long CLOSE_TIMEOUT_SECONDS = 60L;
+
+    private Store<V> store;
+    private ExecutorService executor;
+    private RequestQueue[] queues;
+    private volatile boolean closed;
+
+    public AsyncStore(Store<V> store, int threads) {
+        this(store, threads, threads * QUEUES_PER_THREAD);
+    }
+
+    public AsyncStore(Store<V> store, int threads, int queueCount) {
+        Preconditions.checkArgument(threads > 0, "threads: %s", threads);
+        Preconditions.checkArgument(queueCount > 0, "queueCount: %s", queueCount);
+        this.store = store;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("fsm-async-%d").build());
+        this.queues = new RequestQueue[queueCount];
+        for (int i = 0; i < queueCount; i++) {
+            queues[i] = new RequestQueue(executor);
+        }
+    }
+
+    public ListenableFuture<V> getAsync(final BinaryKey key) {
+        return submit(key, new Request<V>() {
+            @Override
+            protected V call() throws IOException {
+                return store.get(key);
+            }
+        });
+    }
+
+    /**
+     * Puts the value of the encoded key, which must be named for the value codec. The future returns the previous
+     * value.
+     */
+    public ListenableFuture<V> putAsync(final BinaryKey key, final V value) {
+        Preconditions.checkArgument(key.getName() != null, "the key is not named for the value codec.");
+        return submit(key, new Request<V>() {
+            @Override
+            protected V call() throws IOException {
+                return store.put(key, value);
+            }
+        });
+    }
+
+    public ListenableFuture<V> removeAsync(final BinaryKey key) {
+        return submit(key, new Request<V>() {
+            @Override
+            protected V call() throws IOException {
+                return store.remove(key);
+            }
+        });
+    }
+
+    public ListenableFuture<Boolean> containsKeyAsync(final BinaryKey key) {
+        return submit(key, new Request<Boolean>() {
+            @Override
+            protected Boolean call() throws IOException {
+                return store.containsKey(key);
+            }
+        });
+    }
+
+    /**
+     * Rejects the new requests, and waits for the requests queued already.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Asynchronous requests did not finish in {} seconds.", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected <T> ListenableFuture<T> submit(BinaryKey key, Request<T> request) {
+        Preconditions.checkState(!closed, "closed.");
+        queues[(key.getHash() & Integer.MAX_VALUE) % queues.length].add(request);
+        return request.future;
+    }
+
+    /**
+     * A request completed through the future by the I/O thread.
+     */
+    protected abstract static class Request<T> {
+
+        private final SettableFuture<T> future = SettableFuture.create();
+
+        protected abstract T call() throws IOException;
+
+        void run() {
+            try {
+                future.set(call());
+            } catch (Throwable ex) {
+                future.setException(ex);
+            }
+        }
+
+        void fail(Throwable cause) {
+            future.setException(cause);
+        }
+    }
+
+    /**
+     * The requests run in order by one I/O thread at a time. The queue is scheduled on the executor when a request is
+     * added to the empty queue, and the thread drains it until it is empty.
+     */
+    private static class RequestQueue implements Runnable {
+
+        private final Queue<Request<?>> requests = new ConcurrentLinkedQueue<Request<?>>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Executor executor;
+
+        RequestQueue(Executor executor) {
+            this.executor = executor;
+        }
+
+        void add(Request<?> request) {
+            requests.add(request);
+            if (!scheduled.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // closed after the request has been queued.
+                scheduled.set(false);
+                for (Request<?> rejected = requests.poll(); rejected != null; rejected = requests.poll()) {
+                    rejected.fail(ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                for (Request<?> request = requests.poll(); request != null; request = requests.poll()) {
+                    request.run();
+                }
+                scheduled.set(false);
+                // continue if a request has been added after the last poll, unless another thread has taken it.
+            } while (!requests.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+    }
+}
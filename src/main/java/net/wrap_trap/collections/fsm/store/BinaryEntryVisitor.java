@@ -0,0 +1,12 @@
+package net.wrap_trap.collections.fsm.store;
+
+import java.io.IOException;
+
+/**
+ * Receives the entries of a Store with the encoded keys. The visitor is called from multiple threads at once by
+ * Store#parallelForEach.
+ */
+public interface BinaryEntryVisitor<V> {
+
+    void visit(BinaryKey key, V value) throws IOException;
+}
@@ -0,0 +1,106 @@
+package net.wrap_trap.collections.fsm.store;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <pre>
+ * A key encoded as it is stored in the header of the data block, with the hash
+ * code which selects the bucket.
+ *
+ * The keys are compared by the hash codes and the encoded bytes, so no key is
+ * decoded to be compared. A String key is encoded in UTF-8 and hashed by
+ * String#hashCode(), which is compatible with the data files written before.
+ * A store must be used with the keys of a single type, since the keys of the
+ * other types are not decoded.
+ *
+ * The name is given to the value codecs when the value is encoded, so it is
+ * needed to put only.
+ * </pre>
+ */
+public final class BinaryKey {
+
+    public static final String KEY_ENCODING = "UTF-8";
+
+    private final byte[] bytes;
+    private final int hash;
+    private final String name;
+
+    public BinaryKey(String key) {
+        this(encode(key), key.hashCode(), key);
+    }
+
+    public BinaryKey(byte[] bytes, int hash) {
+        this(bytes, hash, null);
+    }
+
+    public BinaryKey(byte[] bytes, int hash, String name) {
+        Preconditions.checkNotNull(bytes);
+        this.bytes = bytes;
+        this.hash = hash;
+        this.name = name;
+    }
+
+    /**
+     * Returns the encoded key, which must not be modified.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the name given to the value codecs, or null if not named.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns true if the block of keyHash and keyBytes has this key.
+     */
+    public boolean matches(int keyHash, byte[] keyBytes) {
+        return (hash == keyHash) && Arrays.equals(bytes, keyBytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof BinaryKey))
+            return false;
+        BinaryKey other = (BinaryKey) obj;
+        return matches(other.hash, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return (name != null) ? name : ("BinaryKey[hash=" + hash + ", length=" + bytes.length + "]");
+    }
+
+    public static byte[] encode(String key) {
+        try {
+            return key.getBytes(KEY_ENCODING);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, KEY_ENCODING);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package net.wrap_trap.collections.fsm.store;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.wrap_trap.collections.fsm.store.bson.utils.LazyIterator;
+import net.wrap_trap.collections.fsm.store.bson.utils.LazySet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <pre>
+ * Store which partitions the keys over the independent stores by the hash codes,
+ * such as the BsonStores on the different disks.
+ *
+ * Every shard has its own files and locks, so the operations of the different
+ * shards never wait for each other. putAll() and parallelForEach() run on the
+ * shards in parallel. The shard of a key is chosen by the high bits of the mixed
+ * hash code, since the low bits select the bucket in the shard. The metrics are
+ * shared by the shards, so the bytes per file are summed over the files of the
+ * same number in the shards.
+ * </pre>
+ */
+public class ShardedStore<V> implements Store<V> {
+
+    protected static Logger logger = LoggerFactory.getLogger(ShardedStore.class);
+
+    private List<Store<V>> shards;
+    private StoreMetrics metrics;
+    private ExecutorService executor;
+
+    public ShardedStore(List<? extends Store<V>> shards, StoreMetrics metrics) {
+        Preconditions.checkArgument(!shards.isEmpty(), "no shard.");
+        this.shards = new ArrayList<Store<V>>(shards);
+        this.metrics = metrics;
+        this.executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("fsm-shard-%d").build());
+    }
+
+    public List<Store<V>> getShards() {
+        return shards;
+    }
+
+    public Store<V> getShard(BinaryKey key) {
+        return shards.get(getShardIndex(key));
+    }
+
+    /**
+     * Returns the index of the shard of the key. The hash code is mixed by the finalizer of MurmurHash3.
+     */
+    protected int getShardIndex(BinaryKey key) {
+        int h = key.getHash();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (int) (((h & 0xffffffffL) * shards.size()) >>> 32);
+    }
+
+    @Override
+    public void initialize() throws IOException {
+        for (Store<V> shard : shards) {
+            shard.initialize();
+        }
+    }
+
+    @Override
+    public V get(String key) throws IOException {
+        return get(new BinaryKey(key));
+    }
+
+    @Override
+    public V get(BinaryKey key) throws IOException {
+        return getShard(key).get(key);
+    }
+
+    @Override
+    public V put(String key, V value) throws IOException {
+        return put(new BinaryKey(key), value);
+    }
+
+    @Override
+    public V put(BinaryKey key, V value) throws IOException {
+        return getShard(key).put(key, value);
+    }
+
+    @Override
+    public V remove(String key) throws IOException {
+        return remove(new BinaryKey(key));
+    }
+
+    @Override
+    public V remove(BinaryKey key) throws IOException {
+        return getShard(key).remove(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) throws IOException {
+        return containsKey(new BinaryKey(key.toString()));
+    }
+
+    @Override
+    public boolean containsKey(BinaryKey key) throws IOException {
+        return getShard(key).containsKey(key);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends V> map) throws IOException {
+        List<BinaryKey> keys = new ArrayList<BinaryKey>(map.size());
+        List<V> values = new ArrayList<V>(map.size());
+        for (Map.Entry<? extends String, ? extends V> entry : map.entrySet()) {
+            keys.add(new BinaryKey(entry.getKey()));
+            values.add(entry.getValue());
+        }
+        putAll(keys, values);
+    }
+
+    /**
+     * Partitions the entries by the shards, and puts them into the shards in parallel.
+     *
+     * @see net.wrap_trap.collections.fsm.store.Store#putAll(java.util.List, java.util.List)
+     */
+    @Override
+    public void putAll(List<BinaryKey> keys, List<? extends V> values) throws IOException {
+        Preconditions.checkArgument(keys.size() == values.size(), "keys: %s, values: %s", keys.size(), values.size());
+        final List<List<BinaryKey>> shardKeys = new ArrayList<List<BinaryKey>>();
+        final List<List<V>> shardValues = new ArrayList<List<V>>();
+        for (int i = 0; i < shards.size(); i++) {
+            shardKeys.add(new ArrayList<BinaryKey>());
+            shardValues.add(new ArrayList<V>());
+        }
+        Iterator<? extends V> valueIterator = values.iterator();
+        for (BinaryKey key : keys) {
+            int i = getShardIndex(key);
+            shardKeys.get(i).add(key);
+            shardValues.get(i).add(valueIterator.next());
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < shards.size(); i++) {
+            if (shardKeys.get(i).isEmpty())
+                continue;
+            final int shard = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    shards.get(shard).putAll(shardKeys.get(shard), shardValues.get(shard));
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (Store<V> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public int size() throws IOException {
+        int size = 0;
+        for (Store<V> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public Set<String> keySet() throws IOException {
+        List<Set<String>> sets = new ArrayList<Set<String>>();
+        for (Store<V> shard : shards) {
+            sets.add(shard.keySet());
+        }
+        return concat(sets);
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() throws IOException {
+        List<Set<Map.Entry<String, V>>> sets = new ArrayList<Set<Map.Entry<String, V>>>();
+        for (Store<V> shard : shards) {
+            sets.add(shard.entrySet());
+        }
+        return concat(sets);
+    }
+
+    @Override
+    public Collection<V> values() throws IOException {
+        List<Collection<V>> collections = new ArrayList<Collection<V>>();
+        for (Store<V> shard : shards) {
+            collections.add(shard.values());
+        }
+        return concat(collections);
+    }
+
+    @Override
+    public Set<BinaryKey> binaryKeySet() throws IOException {
+        List<Set<BinaryKey>> sets = new ArrayList<Set<BinaryKey>>();
+        for (Store<V> shard : shards) {
+            sets.add(shard.binaryKeySet());
+        }
+        return concat(sets);
+    }
+
+    @Override
+    public Set<Map.Entry<BinaryKey, V>> binaryEntrySet() throws IOException {
+        List<Set<Map.Entry<BinaryKey, V>>> sets = new ArrayList<Set<Map.Entry<BinaryKey, V>>>();
+        for (Store<V> shard : shards) {
+            sets.add(shard.binaryEntrySet());
+        }
+        return concat(sets);
+    }
+
+    /**
+     * Runs parallelForEach() of the shards in parallel, and the parallelism is divided between the shards.
+     *
+     * @see net.wrap_trap.collections.fsm.store.Store#parallelForEach(net.wrap_trap
+     *      .collections.fsm.store.BinaryEntryVisitor, int)
+     */
+    @Override
+    public void parallelForEach(final BinaryEntryVisitor<V> visitor, int parallelism) throws IOException {
+        Preconditions.checkArgument(parallelism > 0, "parallelism: %s", parallelism);
+        final int shardParallelism = Math.max(1, parallelism / shards.size());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Store<V> shard : shards) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    shard.parallelForEach(visitor, shardParallelism);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Scans the shards one by one, so the visitor is called from the current thread only.
+     *
+     * @see net.wrap_trap.collections.fsm.store.Store#scan(net.wrap_trap.collections
+     *      .fsm.store.BinaryEntryVisitor)
+     */
+    @Override
+    public void scan(BinaryEntryVisitor<V> visitor) throws IOException {
+        for (Store<V> shard : shards) {
+            shard.scan(visitor);
+        }
+    }
+
+    /**
+     * Returns the snapshots of the shards, which are taken one by one. So the snapshot is consistent in each shard,
+     * but not across the shards.
+     *
+     * @see net.wrap_trap.collections.fsm.store.Store#snapshot()
+     */
+    @Override
+    public StoreSnapshot<V> snapshot() throws IOException {
+        final List<StoreSnapshot<V>> snapshots = new ArrayList<StoreSnapshot<V>>();
+        boolean succeeded = false;
+        try {
+            for (Store<V> shard : shards) {
+                snapshots.add(shard.snapshot());
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                for (StoreSnapshot<V> snapshot : snapshots) {
+                    Closeables.closeQuietly(snapshot);
+                }
+            }
+        }
+        return new StoreSnapshot<V>() {
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (StoreSnapshot<V> snapshot : snapshots) {
+                    size += snapshot.size();
+                }
+                return size;
+            }
+
+            @Override
+            public Set<BinaryKey> binaryKeySet() throws IOException {
+                List<Set<BinaryKey>> sets = new ArrayList<Set<BinaryKey>>();
+                for (StoreSnapshot<V> snapshot : snapshots) {
+                    sets.add(snapshot.binaryKeySet());
+                }
+                return concat(sets, size());
+            }
+
+            @Override
+            public Set<Map.Entry<BinaryKey, V>> binaryEntrySet() throws IOException {
+                List<Set<Map.Entry<BinaryKey, V>>> sets = new ArrayList<Set<Map.Entry<BinaryKey, V>>>();
+                for (StoreSnapshot<V> snapshot : snapshots) {
+                    sets.add(snapshot.binaryEntrySet());
+                }
+                return concat(sets, size());
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (StoreSnapshot<V> snapshot : snapshots) {
+                    Closeables.closeQuietly(snapshot);
+                }
+            }
+        };
+    }
+
+    @Override
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Closes all the shards, and throws the first exception after that.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        IOException failure = null;
+        for (Store<V> shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close a shard.", ex);
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    protected void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.size() == 1) {
+            // no need to hand over to another thread.
+            try {
+                tasks.get(0).call();
+                return;
+            } catch (Exception ex) {
+                Throwables.propagateIfPossible(ex, IOException.class);
+                throw new RuntimeException(ex);
+            }
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Returns the set which iterates the collections of the shards in order, and whose size is the size of the store.
+     */
+    protected <E> LazySet<E> concat(final List<? extends Collection<E>> collections) {
+        return concat(collections, -1);
+    }
+
+    /**
+     * Returns the set which iterates the collections of the shards in order, and whose size is given, or the size of
+     * the store if it is negative.
+     */
+    protected <E> LazySet<E> concat(final List<? extends Collection<E>> collections, final int size) {
+        return new LazySet<E>() {
+            @Override
+            public Iterator<E> iterator() {
+                List<Iterator<E>> iterators = new ArrayList<Iterator<E>>();
+                for (Collection<E> collection : collections) {
+                    iterators.add(collection.iterator());
+                }
+                final Iterator<E> iterator = Iterators.concat(iterators.iterator());
+                return new LazyIterator<E>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public E next() {
+                        return iterator.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                if (size >= 0)
+                    return size;
+                try {
+                    return ShardedStore.this.size();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+    }
+}
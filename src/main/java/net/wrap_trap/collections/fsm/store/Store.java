@@ -3,6 +3,8 @@ package net.wrap_trap.collections.fsm.store;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public interface Store<V> extends Closeable {
@@ -15,6 +17,8 @@ public interface Store<V> extends Closeable {
 
     V remove(String key) throws IOException;
 
+    void putAll(Map<? extends String, ? extends V> map) throws IOException;
+
     void clear() throws IOException;
 
     int size() throws IOException;
@@ -27,4 +31,56 @@ public interface Store<V> extends Closeable {
 
     Collection<V> values() throws IOException;;
 
+    /**
+     * Returns the value of the encoded key. The String keys are the BinaryKeys encoded by BinaryKey(String), so both
+     * of them reach the same entries.
+     */
+    V get(BinaryKey key) throws IOException;
+
+    /**
+     * Puts the value of the encoded key, which must be named for the value codec.
+     */
+    V put(BinaryKey key, V value) throws IOException;
+
+    V remove(BinaryKey key) throws IOException;
+
+    boolean containsKey(BinaryKey key) throws IOException;
+
+    /**
+     * Puts the values of the encoded keys in the same order, as putAll(Map) does.
+     */
+    void putAll(List<BinaryKey> keys, List<? extends V> values) throws IOException;
+
+    /**
+     * Returns the encoded keys, without being decoded.
+     */
+    Set<BinaryKey> binaryKeySet() throws IOException;
+
+    /**
+     * Returns the entries of the encoded keys, whose values are read with the keys.
+     */
+    Set<Map.Entry<BinaryKey, V>> binaryEntrySet() throws IOException;
+
+    /**
+     * Passes every entry to the visitor from the threads of the parallelism, which read the ranges of the buckets
+     * independently. The entries put or removed while iterating may or may not be visited, but the others are visited
+     * exactly once. The visitor may update the store.
+     */
+    void parallelForEach(BinaryEntryVisitor<V> visitor, int parallelism) throws IOException;
+
+    /**
+     * Passes every entry to the visitor in the order of the blocks in the data files, which are read sequentially.
+     * The entries put or removed while scanning may or may not be visited, and an entry updated while scanning may be
+     * visited twice, but the others are visited exactly once. The visitor may update the store.
+     */
+    void scan(BinaryEntryVisitor<V> visitor) throws IOException;
+
+    /**
+     * Returns the snapshot of the entries at this point in time, which are iterated as they were while the store is
+     * updated. The snapshot must be closed.
+     */
+    StoreSnapshot<V> snapshot() throws IOException;
+
+    StoreMetrics getMetrics();
+
 }
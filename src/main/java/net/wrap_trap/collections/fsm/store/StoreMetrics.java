@@ -0,0 +1,296 @@
+package net.wrap_trap.collections.fsm.store;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <pre>
+ * Counters of the operations and the I/O of a Store.
+ *
+ * The latencies are counted in a log-linear histogram per operation, which has 8
+ * sub-buckets for every power of two nanoseconds, so a percentile is told within
+ * 12.5% without keeping any sample. All the counters are atomic and updated
+ * without locks. Nothing is counted if the metrics are disabled, and start()
+ * returns 0 without reading the clock.
+ * </pre>
+ */
+public class StoreMetrics {
+
+    public enum Operation {
+        GET, PUT, REMOVE, PUT_ALL, CONTAINS_KEY
+    }
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LATENCY_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final boolean enabled;
+    private final OperationMetrics[] operations = new OperationMetrics[Operation.values().length];
+    private final ConcurrentMap<Integer, AtomicLong> bytesRead = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final ConcurrentMap<Integer, AtomicLong> bytesWritten = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong indexHits = new AtomicLong();
+    private final AtomicLong indexMisses = new AtomicLong();
+    private final AtomicLong filterNegatives = new AtomicLong();
+    private final AtomicLong readLookups = new AtomicLong();
+    private final AtomicLong readBlocks = new AtomicLong();
+    private final AtomicLong removeLookups = new AtomicLong();
+    private final AtomicLong removeBlocks = new AtomicLong();
+
+    public StoreMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new OperationMetrics();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the start time of an operation to be passed to record(Operation, long).
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    public void record(Operation operation, long start) {
+        if (enabled) {
+            operations[operation.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    public void recordBytesRead(int fileNumber, long bytes) {
+        if (enabled) {
+            getCounter(bytesRead, fileNumber).addAndGet(bytes);
+        }
+    }
+
+    public void recordBytesWritten(int fileNumber, long bytes) {
+        if (enabled) {
+            getCounter(bytesWritten, fileNumber).addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Counts a lookup of the index, which misses if the slot of the key is empty.
+     */
+    public void recordIndexLookup(boolean hit) {
+        if (enabled) {
+            (hit ? indexHits : indexMisses).incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a lookup answered by the bloom filter without the index.
+     */
+    public void recordFilterNegative() {
+        if (enabled) {
+            filterNegatives.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts the blocks visited in a chain to read a key.
+     */
+    public void recordReadLookup(int blocks) {
+        if (enabled) {
+            readLookups.incrementAndGet();
+            readBlocks.addAndGet(blocks);
+        }
+    }
+
+    /**
+     * Counts the blocks visited in a chain to remove a key.
+     */
+    public void recordRemoveLookup(int blocks) {
+        if (enabled) {
+            removeLookups.incrementAndGet();
+            removeBlocks.addAndGet(blocks);
+        }
+    }
+
+    public long getCount(Operation operation) {
+        return operations[operation.ordinal()].count.get();
+    }
+
+    public double getMeanNanos(Operation operation) {
+        OperationMetrics metrics = operations[operation.ordinal()];
+        long count = metrics.count.get();
+        return (count == 0L) ? 0.0 : (double) metrics.totalNanos.get() / count;
+    }
+
+    public long getMaxNanos(Operation operation) {
+        return operations[operation.ordinal()].maxNanos.get();
+    }
+
+    /**
+     * Returns the upper bound of the latency bucket which the percentile falls in, or 0 if nothing is counted.
+     */
+    public long getPercentileNanos(Operation operation, double percentile) {
+        Preconditions.checkArgument((percentile >= 0.0) && (percentile <= 100.0), "percentile: %s", percentile);
+        AtomicLongArray histogram = operations[operation.ordinal()].histogram;
+        long total = 0L;
+        long[] counts = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0L)
+            return 0L;
+        long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(getUpperBound(i), getMaxNanos(operation));
+        }
+        return getMaxNanos(operation);
+    }
+
+    public long getBytesRead() {
+        return sum(bytesRead);
+    }
+
+    public long getBytesWritten() {
+        return sum(bytesWritten);
+    }
+
+    /**
+     * Returns the bytes read per data file number.
+     */
+    public Map<Integer, Long> getBytesReadPerFile() {
+        return toMap(bytesRead);
+    }
+
+    /**
+     * Returns the bytes written per data file number.
+     */
+    public Map<Integer, Long> getBytesWrittenPerFile() {
+        return toMap(bytesWritten);
+    }
+
+    public long getIndexHits() {
+        return indexHits.get();
+    }
+
+    public long getIndexMisses() {
+        return indexMisses.get();
+    }
+
+    public long getFilterNegatives() {
+        return filterNegatives.get();
+    }
+
+    public double getIndexHitRate() {
+        long hits = indexHits.get();
+        long total = hits + indexMisses.get();
+        return (total == 0L) ? 0.0 : (double) hits / total;
+    }
+
+    public double getAverageBlocksPerRead() {
+        long lookups = readLookups.get();
+        return (lookups == 0L) ? 0.0 : (double) readBlocks.get() / lookups;
+    }
+
+    public double getAverageBlocksPerRemove() {
+        long lookups = removeLookups.get();
+        return (lookups == 0L) ? 0.0 : (double) removeBlocks.get() / lookups;
+    }
+
+    public void reset() {
+        for (OperationMetrics metrics : operations) {
+            metrics.reset();
+        }
+        bytesRead.clear();
+        bytesWritten.clear();
+        indexHits.set(0L);
+        indexMisses.set(0L);
+        filterNegatives.set(0L);
+        readLookups.set(0L);
+        readBlocks.set(0L);
+        removeLookups.set(0L);
+        removeBlocks.set(0L);
+    }
+
+    /**
+     * Returns the bucket of the latency. The values under SUB_BUCKETS have a bucket of their own, and the others are
+     * bucketed by the highest bit and the following SUB_BUCKET_BITS bits.
+     */
+    protected static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) Math.max(nanos, 0L);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    protected static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    protected static AtomicLong getCounter(ConcurrentMap<Integer, AtomicLong> counters, int fileNumber) {
+        AtomicLong counter = counters.get(fileNumber);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(fileNumber, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    protected static long sum(ConcurrentMap<Integer, AtomicLong> counters) {
+        long sum = 0L;
+        for (AtomicLong counter : counters.values()) {
+            sum += counter.get();
+        }
+        return sum;
+    }
+
+    protected static Map<Integer, Long> toMap(ConcurrentMap<Integer, AtomicLong> counters) {
+        Map<Integer, Long> map = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : counters.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        return map;
+    }
+
+    static class OperationMetrics {
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            histogram.incrementAndGet(getBucket(nanos));
+            long max = maxNanos.get();
+            while ((nanos > max) && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        void reset() {
+            count.set(0L);
+            totalNanos.set(0L);
+            maxNanos.set(0L);
+            for (int i = 0; i < histogram.length(); i++) {
+                histogram.set(i, 0L);
+            }
+        }
+    }
+}
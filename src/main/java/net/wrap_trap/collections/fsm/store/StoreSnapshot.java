@@ -0,0 +1,27 @@
+package net.wrap_trap.collections.fsm.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <pre>
+ * The entries of a Store at the point in time when the snapshot is taken. The
+ * entries are iterated as they were, while the store is updated concurrently.
+ *
+ * A snapshot must be closed, since the blocks which it can see are not reclaimed
+ * until then. A snapshot cannot be used after the store is closed.
+ * </pre>
+ */
+public interface StoreSnapshot<V> extends Closeable {
+
+    /**
+     * Returns the number of the entries when the snapshot was taken.
+     */
+    int size();
+
+    Set<BinaryKey> binaryKeySet() throws IOException;
+
+    Set<Map.Entry<BinaryKey, V>> binaryEntrySet() throws IOException;
+}
@@ -0,0 +1,103 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <pre>
+ * Compresses the bodies of the data blocks with Deflater.
+ *
+ * A compressed body is the length of the original body[integer] followed by
+ * the deflated bytes, and the block is flagged COMPRESSED. The bodies shorter
+ * than the threshold, and the bodies which are not made shorter, are written
+ * as they are. The Deflater and the Inflater are kept per thread, since they
+ * hold native memory and are costly to create for every block.
+ * </pre>
+ */
+public class BlockCompressor {
+
+    private static final int LENGTH_FIELD_SIZE = 4;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private int threshold;
+
+    public BlockCompressor(int threshold) {
+        Preconditions.checkArgument(threshold >= 0, "threshold: %s", threshold);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the compressed body, or null if the body should be written as it is.
+     */
+    public byte[] compress(byte[] bytes) {
+        if ((bytes.length < threshold) || (bytes.length <= LENGTH_FIELD_SIZE))
+            return null;
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        // the compressed body is useless unless it is shorter than the original.
+        byte[] buf = new byte[bytes.length];
+        putInt(buf, bytes.length);
+        int length = LENGTH_FIELD_SIZE;
+        while (!deflater.finished()) {
+            if (length == buf.length)
+                return null;
+            length += deflater.deflate(buf, length, buf.length - length);
+        }
+        byte[] compressed = new byte[length];
+        System.arraycopy(buf, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    public static byte[] decompress(byte[] bytes) {
+        Preconditions.checkArgument(bytes.length >= LENGTH_FIELD_SIZE, "invalid compressed body, length: %s",
+                                    bytes.length);
+        byte[] body = new byte[getInt(bytes)];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(bytes, LENGTH_FIELD_SIZE, bytes.length - LENGTH_FIELD_SIZE);
+        try {
+            int length = 0;
+            while (length < body.length) {
+                int inflated = inflater.inflate(body, length, body.length - length);
+                if ((inflated == 0) && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new RuntimeException("truncated compressed body, expected: " + body.length
+                            + ", inflated: " + length);
+                length += inflated;
+            }
+        } catch (DataFormatException ex) {
+            throw new RuntimeException(ex);
+        }
+        return body;
+    }
+
+    protected static void putInt(byte[] buf, int value) {
+        buf[0] = (byte) (value >>> 24);
+        buf[1] = (byte) (value >>> 16);
+        buf[2] = (byte) (value >>> 8);
+        buf[3] = (byte) value;
+    }
+
+    protected static int getInt(byte[] buf) {
+        return ((buf[0] & 0xff) << 24) | ((buf[1] & 0xff) << 16) | ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
+    }
+}
@@ -0,0 +1,303 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+
+/**
+ * <pre>
+ * Bloom filter of the encoded keys, in front of the index and the data files. A
+ * key which the filter has never seen is not in the store, so most of the misses
+ * of get() and containsKey() are answered without any I/O.
+ *
+ * The filter grows by the segments of the doubled capacities, whose false positive
+ * rates are halved one after another, so it is never rebuilt while the store is
+ * open and the total rate stays under bloomFilterFalsePositiveRate. The keys are
+ * never removed from the filter, so the removed keys remain false positives until
+ * the filter is rebuilt.
+ *
+ * The bits are set by the writers of the different stripes at the same time, so
+ * they are updated by compare-and-set and read without any lock.
+ *
+ * The filter is written to the file at closing with the state "clean", and the
+ * file is marked "stale" when it is read, so a filter which has missed the keys
+ * put after it was read is never loaded after a crash.
+ * </pre>
+ */
+public class BsonBloomFilter {
+
+    protected static Logger logger = LoggerFactory.getLogger(BsonBloomFilter.class);
+
+    private static final String BLOOM_FILTER_FILE_NAME = "bloom.filter";
+    private static final int BLOOM_FILTER_MAGIC = 0x46534d42; // "FSMB"
+    private static final byte BLOOM_FILTER_VERSION = 2;
+    private static final int BLOOM_FILTER_STATE_OFFSET = 5; // after the magic and the version.
+    private static final byte BLOOM_FILTER_CLEAN = 1;
+    private static final byte BLOOM_FILTER_STALE = 2;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final double LN2 = Math.log(2.0);
+    private static final long MIN_CAPACITY = 1024L;
+    private static final long MAX_BITS = 64L << 30; // the words of a power of two in an AtomicLongArray.
+
+    private double falsePositiveRate;
+    private List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+    public BsonBloomFilter(double falsePositiveRate, long expectedEntries) {
+        Preconditions.checkArgument((falsePositiveRate > 0.0) && (falsePositiveRate < 1.0), "falsePositiveRate: %s",
+                                    falsePositiveRate);
+        this.falsePositiveRate = falsePositiveRate;
+        this.segments.add(new Segment(Math.max(expectedEntries, MIN_CAPACITY), falsePositiveRate / 2));
+    }
+
+    protected BsonBloomFilter(double falsePositiveRate, List<Segment> segments) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.segments.addAll(segments);
+    }
+
+    /**
+     * Returns false if the key has never been put, or true if it may have been put.
+     */
+    public boolean mightContain(BinaryKey key) {
+        return mightContain(hash(key.getBytes()));
+    }
+
+    public void put(BinaryKey key) {
+        put(key.getBytes());
+    }
+
+    public void put(byte[] keyBytes) {
+        long[] hash = hash(keyBytes);
+        if (mightContain(hash))
+            // a key updated again is counted once.
+            return;
+        Segment segment = segments.get(segments.size() - 1);
+        segment.put(hash);
+        if (segment.insertions.incrementAndGet() > segment.capacity) {
+            grow(segment);
+        }
+    }
+
+    /**
+     * Returns the number of the keys put into the filter, including the keys removed from the store since.
+     */
+    public long getInsertions() {
+        long insertions = 0L;
+        for (Segment segment : segments) {
+            insertions += segment.insertions.get();
+        }
+        return insertions;
+    }
+
+    public long getCapacity() {
+        long capacity = 0L;
+        for (Segment segment : segments) {
+            capacity += segment.capacity;
+        }
+        return capacity;
+    }
+
+    protected boolean mightContain(long[] hash) {
+        for (Segment segment : segments) {
+            if (segment.mightContain(hash))
+                return true;
+        }
+        return false;
+    }
+
+    protected synchronized void grow(Segment full) {
+        Segment last = segments.get(segments.size() - 1);
+        if (last != full)
+            // another writer has grown the filter.
+            return;
+        segments.add(new Segment(last.capacity * 2, last.falsePositiveRate / 2));
+        if (logger.isDebugEnabled()) {
+            logger.debug("grow, segments:{}, capacity:{}", segments.size(), getCapacity());
+        }
+    }
+
+    /**
+     * Returns the two 64 bits hash codes of the key, which are combined into the hash codes of the bits. The second
+     * one is odd, and a segment has the bits of a power of two, so the bits chosen for a key in a segment never
+     * repeat.
+     */
+    protected static long[] hash(byte[] keyBytes) {
+        ByteBuffer buf = ByteBuffer.wrap(HASH_FUNCTION.hashBytes(keyBytes).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        return new long[] { buf.getLong(0), buf.getLong(8) | 1L };
+    }
+
+    public static String getBloomFilterFilePath(Configuration configuration) {
+        return configuration.getDirPath() + File.separator + BLOOM_FILTER_FILE_NAME;
+    }
+
+    /**
+     * Writes the filter to the file through the temporary file, which replaces the file after it is written.
+     */
+    public void writeTo(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(BLOOM_FILTER_MAGIC);
+            out.writeByte(BLOOM_FILTER_VERSION);
+            out.writeByte(BLOOM_FILTER_CLEAN);
+            out.writeDouble(falsePositiveRate);
+            out.writeInt(segments.size());
+            for (Segment segment : segments) {
+                out.writeLong(segment.capacity);
+                out.writeDouble(segment.falsePositiveRate);
+                out.writeLong(segment.insertions.get());
+                out.writeInt(segment.hashCount);
+                out.writeInt(segment.bits.length());
+                for (int i = 0; i < segment.bits.length(); i++) {
+                    out.writeLong(segment.bits.get(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+            throw new IOException(String.format("Failed to write bloom filter file: %s", file.getPath()));
+        }
+    }
+
+    /**
+     * Reads the filter written by writeTo(File).
+     *
+     * @return null if the file is missing, invalid or stale.
+     */
+    public static BsonBloomFilter readFrom(File file) {
+        if (!file.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ((in.readInt() != BLOOM_FILTER_MAGIC) || (in.readByte() != BLOOM_FILTER_VERSION)) {
+                logger.warn("The bloom filter file is invalid, it is rebuilt. file:{}", file.getPath());
+                return null;
+            }
+            if (in.readByte() != BLOOM_FILTER_CLEAN) {
+                logger.info("The bloom filter file is stale, it is rebuilt. file:{}", file.getPath());
+                return null;
+            }
+            double falsePositiveRate = in.readDouble();
+            int count = in.readInt();
+            List<Segment> segments = new ArrayList<Segment>(count);
+            for (int i = 0; i < count; i++) {
+                long capacity = in.readLong();
+                double segmentRate = in.readDouble();
+                long insertions = in.readLong();
+                int hashCount = in.readInt();
+                long[] words = new long[in.readInt()];
+                if (Integer.bitCount(words.length) != 1) {
+                    logger.warn("The bloom filter file is invalid, it is rebuilt. file:{}", file.getPath());
+                    return null;
+                }
+                for (int j = 0; j < words.length; j++) {
+                    words[j] = in.readLong();
+                }
+                segments.add(new Segment(capacity, segmentRate, insertions, hashCount, words));
+            }
+            return new BsonBloomFilter(falsePositiveRate, segments);
+        } catch (IOException ex) {
+            logger.warn("Failed to read the bloom filter file, it is rebuilt.", ex);
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Marks the file written by writeTo(File) stale, so it is not read until it is written again.
+     */
+    public static void markStale(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rws");
+        try {
+            raf.seek(BLOOM_FILTER_STATE_OFFSET);
+            raf.writeByte(BLOOM_FILTER_STALE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A bit array of the capacity and the false positive rate, whose bits are chosen by the double hashing.
+     */
+    protected static class Segment {
+
+        private final long capacity;
+        private final double falsePositiveRate;
+        private final AtomicLong insertions;
+        private final int hashCount;
+        private final AtomicLongArray bits;
+        private final long mask; // the number of the bits - 1.
+
+        Segment(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            this.insertions = new AtomicLong();
+            long optimalBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+            // rounded up to a power of two, so the index of a bit is masked from the hash code.
+            long bitCount = Math.min(Long.highestOneBit(Math.max(optimalBits, 64L) - 1) << 1, MAX_BITS);
+            this.bits = new AtomicLongArray((int) (bitCount >>> 6));
+            this.mask = bitCount - 1;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * LN2));
+        }
+
+        Segment(long capacity, double falsePositiveRate, long insertions, int hashCount, long[] words) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            this.insertions = new AtomicLong(insertions);
+            this.hashCount = hashCount;
+            this.bits = new AtomicLongArray(words);
+            this.mask = words.length * 64L - 1;
+        }
+
+        boolean mightContain(long[] hash) {
+            long combined = hash[0];
+            for (int i = 0; i < hashCount; i++) {
+                long index = combined & mask;
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0L)
+                    return false;
+                combined += hash[1];
+            }
+            return true;
+        }
+
+        void put(long[] hash) {
+            long combined = hash[0];
+            for (int i = 0; i < hashCount; i++) {
+                long index = combined & mask;
+                int word = (int) (index >>> 6);
+                long mask = 1L << index;
+                long current = bits.get(word);
+                while (((current & mask) == 0L) && !bits.compareAndSet(word, current, current | mask)) {
+                    current = bits.get(word);
+                }
+                combined += hash[1];
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.wrap_trap.collections.fsm.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Compacts the data files of a BsonStore in background at the interval of Configuration#getCompactionInterval().
+ */
+public class BsonCompactor implements Runnable, Closeable {
+
+    protected static Logger logger = LoggerFactory.getLogger(BsonCompactor.class);
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 60L;
+
+    private BsonStore<?> store;
+    private ScheduledExecutorService executor;
+
+    public BsonCompactor(BsonStore<?> store, Configuration configuration) {
+        this.store = store;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                                                                                             .setNameFormat("fsm-compactor-%d")
+                                                                                             .build());
+        long interval = configuration.getCompactionInterval();
+        this.executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && store.compact()) {
+                // continue while any data file is compacted.
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to compact data files.", ex);
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to compact data files.", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Compaction did not stop in {} seconds.", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,21 +1,36 @@
 package net.wrap_trap.collections.fsm.store.bson;
 
-import org.bson.BSONDecoder;
-import org.bson.BSONObject;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
 
 public class BsonDataBlock {
 
-    private BSONDecoder decoder = new BSONDecoder();
+    public static final String KEY_ENCODING = BinaryKey.KEY_ENCODING;
 
+    /** the flag of the block which has been removed from the chain. */
+    public static final byte DELETED = 0x01;
+
+    /** the flag of the block whose body has been compressed by BlockCompressor. */
+    public static final byte COMPRESSED = 0x02;
+
+    private int dataLength;
+    private byte flags;
+    private int keyHash;
+    private byte[] keyBytes;
     private byte[] body;
     private long currentPointer;
     private byte currentFileNumber;
     private long nextPointer;
     private byte nextFileNumber;
-    private BSONObject bsonObject;
+    private String key;
+    private byte[] decompressedBody;
 
-    public BsonDataBlock(byte[] body, long currentPointer, byte currentFileNumber, long nextPointer, byte nextFileNumber) {
+    public BsonDataBlock(int dataLength, byte flags, int keyHash, byte[] keyBytes, byte[] body, long currentPointer,
+                         byte currentFileNumber, long nextPointer, byte nextFileNumber) {
         super();
+        this.dataLength = dataLength;
+        this.flags = flags;
+        this.keyHash = keyHash;
+        this.keyBytes = keyBytes;
         this.body = body;
         this.currentPointer = currentPointer;
         this.currentFileNumber = currentFileNumber;
@@ -23,10 +38,76 @@ public class BsonDataBlock {
         this.nextFileNumber = nextFileNumber;
     }
 
+    /**
+     * Returns the length of this block excluding the length field itself.
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean isDeleted() {
+        return ((flags & DELETED) != 0);
+    }
+
+    public boolean isCompressed() {
+        return ((flags & COMPRESSED) != 0);
+    }
+
+    public int getKeyHash() {
+        return keyHash;
+    }
+
+    public byte[] getKeyBytes() {
+        return keyBytes;
+    }
+
+    public String getKey() {
+        if (key == null) {
+            key = decodeKey(keyBytes);
+        }
+        return key;
+    }
+
+    /**
+     * Returns true if this block holds the key. The key hash in the header is compared at first, and then the key
+     * bytes are compared without being decoded.
+     */
+    public boolean matches(BinaryKey key) {
+        return key.matches(keyHash, keyBytes);
+    }
+
+    public BinaryKey getBinaryKey() {
+        return new BinaryKey(keyBytes, keyHash);
+    }
+
+    /**
+     * Returns the body of this block, or null if this block has been read without the body. The body is decompressed
+     * if this block is flagged COMPRESSED.
+     */
     public byte[] getBoby() {
+        if ((body == null) || !isCompressed())
+            return body;
+        if (decompressedBody == null) {
+            decompressedBody = BlockCompressor.decompress(body);
+        }
+        return decompressedBody;
+    }
+
+    /**
+     * Returns the body of this block as it is stored in the data file.
+     */
+    public byte[] getStoredBody() {
         return body;
     }
 
+    public boolean hasBody() {
+        return (body != null);
+    }
+
     public long getCurrentPointer() {
         return currentPointer;
     }
@@ -35,6 +116,15 @@ public class BsonDataBlock {
         return currentFileNumber;
     }
 
+    public BsonDataBlockPosition getPosition() {
+        return new BsonDataBlockPosition(currentFileNumber, currentPointer,
+                                         RandomAccessFileEntityRepository.DATA_LENGTH_FIELD_SIZE + dataLength);
+    }
+
+    public BsonDataBlockPosition getNextPosition() {
+        return new BsonDataBlockPosition(nextFileNumber, nextPointer);
+    }
+
     public long getNextPointer() {
         return nextPointer;
     }
@@ -43,10 +133,11 @@ public class BsonDataBlock {
         return nextFileNumber;
     }
 
-    public BSONObject getBsonObject() {
-        if (bsonObject == null) {
-            bsonObject = decoder.readObject(body);
-        }
-        return bsonObject;
+    public static byte[] encodeKey(String key) {
+        return BinaryKey.encode(key);
+    }
+
+    public static String decodeKey(byte[] keyBytes) {
+        return BinaryKey.decode(keyBytes);
     }
 }
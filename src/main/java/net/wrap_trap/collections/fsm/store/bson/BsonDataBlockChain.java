@@ -0,0 +1,86 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+/**
+ * The blocks to be written at once and linked in order, for a bucket. The positions of the first and the last block
+ * are set by EntityRepository#writeTo(List).
+ */
+public class BsonDataBlockChain {
+
+    private BsonDataBlockPosition indexRef;
+    private List<BinaryKey> keys = new ArrayList<BinaryKey>();
+    private List<byte[]> bodies = new ArrayList<byte[]>();
+    private List<Byte> flags = new ArrayList<Byte>();
+    private BsonDataBlockPosition head;
+    private BsonDataBlockPosition last;
+
+    public BsonDataBlockChain(BsonDataBlockPosition indexRef) {
+        this.indexRef = indexRef;
+    }
+
+    public void add(BinaryKey key, byte[] body) {
+        add(key, (byte) 0, body);
+    }
+
+    public void add(BinaryKey key, byte flags, byte[] body) {
+        keys.add(key);
+        bodies.add(body);
+        this.flags.add(flags);
+    }
+
+    public BsonDataBlockPosition getIndexRef() {
+        return indexRef;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public List<BinaryKey> getKeys() {
+        return keys;
+    }
+
+    public BinaryKey getKey(int i) {
+        return keys.get(i);
+    }
+
+    public byte[] getKeyBytes(int i) {
+        return keys.get(i).getBytes();
+    }
+
+    public byte[] getBody(int i) {
+        return bodies.get(i);
+    }
+
+    public byte getFlags(int i) {
+        return flags.get(i);
+    }
+
+    /**
+     * Replaces the body of the i-th block with the one stored in the data file, such as the compressed body.
+     */
+    public void setBody(int i, byte flags, byte[] body) {
+        bodies.set(i, body);
+        this.flags.set(i, flags);
+    }
+
+    public BsonDataBlockPosition getHead() {
+        return head;
+    }
+
+    public void setHead(BsonDataBlockPosition head) {
+        this.head = head;
+    }
+
+    public BsonDataBlockPosition getLast() {
+        return last;
+    }
+
+    public void setLast(BsonDataBlockPosition last) {
+        this.last = last;
+    }
+}
@@ -4,11 +4,17 @@ public class BsonDataBlockPosition {
 
     private byte fileNumber;
     private long pointer;
+    private int blockSize;
 
     public BsonDataBlockPosition(byte fileNumber, long pointer) {
+        this(fileNumber, pointer, 0);
+    }
+
+    public BsonDataBlockPosition(byte fileNumber, long pointer, int blockSize) {
         super();
         this.fileNumber = fileNumber;
         this.pointer = pointer;
+        this.blockSize = blockSize;
     }
 
     public byte getFileNumber() {
@@ -19,6 +25,14 @@ public class BsonDataBlockPosition {
         return pointer;
     }
 
+    /**
+     * Returns the size of the block including the length field, or 0 if unknown. The block of a known size is read at
+     * once.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
     public boolean isEmpty() {
         return (pointer == 0L && fileNumber == 0);
     }
@@ -0,0 +1,8 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.IOException;
+
+public interface BsonDataBlockVisitor {
+
+    void visit(BsonDataBlock bsonDataBlock) throws IOException;
+}
@@ -3,34 +3,52 @@ package net.wrap_trap.collections.fsm.store.bson;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.util.Set;
+import java.util.List;
 
 import net.wrap_trap.collections.fsm.Configuration;
-import net.wrap_trap.monganez.BSONObjectMapper;
+import net.wrap_trap.collections.fsm.Configuration.CompressionType;
+import net.wrap_trap.collections.fsm.codec.ValueCodec;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+import net.wrap_trap.collections.fsm.store.StoreMetrics;
 
-import org.bson.BSONEncoder;
-import org.bson.BSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Preconditions;
-
 public class BsonEntityService<V> implements Closeable {
 
     protected static Logger logger = LoggerFactory.getLogger(BsonEntityService.class);
 
-    private BSONEncoder encoder = new BSONEncoder();
-    private BSONObjectMapper objectMapper = new BSONObjectMapper();
+    private ValueCodec<V> codec;
+    private BlockCompressor compressor;
     private EntityRepository repository;
+    private StoreMetrics metrics;
+
+    @SuppressWarnings("unchecked")
+    public BsonEntityService(Configuration configuration, WriteAheadLog writeAheadLog, StoreMetrics metrics) {
+        this.codec = (configuration.getValueCodec() == null) ? new BsonValueCodec<V>()
+                                                             : (ValueCodec<V>) configuration.getValueCodec();
+        if (configuration.getCompressionType() == CompressionType.DEFLATE) {
+            this.compressor = new BlockCompressor(configuration.getCompressionThreshold());
+        }
+        this.repository = new RandomAccessFileEntityRepository(configuration, writeAheadLog, metrics);
+        this.metrics = metrics;
+    }
 
-    public BsonEntityService(Configuration configuration) {
-        this.repository = new RandomAccessFileEntityRepository(configuration);
+    /**
+     * Returns the value of the key, or null if the key is not found in the chain.
+     */
+    public V readFrom(BinaryKey key, BsonDataBlockPosition dataRef) throws IOException, FileNotFoundException {
+        BsonDataBlock bsonDataBlock = readDataBlock(key, dataRef);
+        return (bsonDataBlock == null) ? null : decode(bsonDataBlock.getBoby());
     }
 
-    public BSONObject readFrom(String key, BsonDataBlockPosition dataRef) throws IOException, FileNotFoundException {
+    /**
+     * Returns the block of the key with its body, or null if the key is not found in the chain.
+     */
+    public BsonDataBlock readDataBlock(BinaryKey key, BsonDataBlockPosition dataRef) throws IOException,
+            FileNotFoundException {
         if (logger.isTraceEnabled()) {
-            logger.trace("readFrom, key:{}, dataRef:{}", new Object[] { key, dataRef });
+            logger.trace("readDataBlock, key:{}, dataRef:{}", new Object[] { key, dataRef });
         }
         if (dataRef.isEmpty())
             // index record is empty.(this record area has cleaned up.)
@@ -51,82 +69,117 @@ public class BsonEntityService<V> implements Closeable {
         return repository.getLastDataBlockPosition(start);
     }
 
+    public BsonDataBlockPosition relocate(BsonDataBlock bsonDataBlock) throws IOException {
+        return repository.relocate(bsonDataBlock);
+    }
+
+    public void finishRelocation() throws IOException {
+        repository.finishRelocation();
+    }
+
+    public void markDead(BsonDataBlock bsonDataBlock) throws IOException {
+        repository.markDead(bsonDataBlock);
+    }
+
+    public List<Integer> getDataFileNumbers() {
+        return repository.getDataFileNumbers();
+    }
+
+    public void scan(int fileNumber, BsonDataBlockVisitor visitor) throws IOException {
+        repository.scan(fileNumber, visitor);
+    }
+
+    public void scanLiveBlocks(int fileNumber, BsonDataBlockVisitor visitor) throws IOException {
+        repository.scanLiveBlocks(fileNumber, visitor);
+    }
+
+    public List<SegmentStat> getSegmentStats() {
+        return repository.getSegmentStats();
+    }
+
+    public void deleteDataFile(int fileNumber) throws IOException {
+        repository.deleteDataFile(fileNumber);
+    }
+
     @Override
     public void close() throws IOException {
         repository.close();
     }
 
-    protected BSONObject readDataFile(String key, BsonDataBlockPosition dataRef) throws IOException {
+    protected BsonDataBlock readDataFile(BinaryKey key, BsonDataBlockPosition dataRef) throws IOException {
         if (logger.isTraceEnabled()) {
             logger.trace("readDataFile, key:{}, dataRef:{}", new Object[] { key, dataRef });
             logger.trace("dataRef: fileNumber: {}, position: {}",
                          new Object[] { dataRef.getFileNumber(), dataRef.getPointer() });
         }
-        BsonDataBlock bsonDataBlock = getDataBlock(dataRef);
-        if (key.equals(getKey(bsonDataBlock)))
-            return bsonDataBlock.getBsonObject();
-        return readFrom(key,
-                        new BsonDataBlockPosition(bsonDataBlock.getNextFileNumber(), bsonDataBlock.getNextPointer()));
+        int blocks = 0;
+        try {
+            BsonDataBlockPosition current = dataRef;
+            while (!current.isEmpty()) {
+                blocks++;
+                if (current.getBlockSize() > 0) {
+                    // the whole block is read at once, since the size is known.
+                    BsonDataBlock bsonDataBlock = getDataBlock(current);
+                    if (bsonDataBlock.matches(key))
+                        return bsonDataBlock;
+                    current = bsonDataBlock.getNextPosition();
+                } else {
+                    BsonDataBlock bsonDataBlock = getDataBlockHeader(current);
+                    if (bsonDataBlock.matches(key))
+                        // read the body of the matched block only.
+                        return getDataBlock(current);
+                    current = bsonDataBlock.getNextPosition();
+                }
+            }
+            return null;
+        } finally {
+            metrics.recordReadLookup(blocks);
+        }
     }
 
     public BsonDataBlock getDataBlock(BsonDataBlockPosition dataRef) throws IOException {
         return repository.getDataBlock(dataRef);
     }
 
-    public String getKey(BsonDataBlock bsonDataBlock) {
-        Set<String> bsonKeys = bsonDataBlock.getBsonObject().keySet();
-        Preconditions.checkArgument(bsonKeys.size() == 1);
-        for (String bsonKey : bsonKeys)
-            return bsonKey;
-        throw new IllegalArgumentException("BsonObject is not key-value forms.");
-    }
-
-    public BsonDataBlockPosition writeTo(String key, V value) throws IOException {
-        try {
-            byte[] bytes = toByteArray(key, value);
-            return repository.writeTo(bytes);
-        } catch (IllegalAccessException ex) {
-            throw new RuntimeException(ex);
-        } catch (InvocationTargetException ex) {
-            throw new RuntimeException(ex);
-        } catch (NoSuchMethodException ex) {
-            throw new RuntimeException(ex);
-        }
+    public BsonDataBlock getDataBlockHeader(BsonDataBlockPosition dataRef) throws IOException {
+        return repository.getDataBlockHeader(dataRef);
     }
 
-    protected byte[] toByteArray(String key, V v) throws IllegalAccessException, InvocationTargetException,
-            NoSuchMethodException {
-        BSONObject object = objectMapper.createBSONObject(key, v);
-        return encoder.encode(object);
+    public BsonDataBlockPosition writeTo(BinaryKey key, V value) throws IOException {
+        byte[] bytes = encode(key, value);
+        byte[] compressed = compress(bytes);
+        if (compressed == null)
+            return repository.writeTo(key, (byte) 0, bytes);
+        return repository.writeTo(key, BsonDataBlock.COMPRESSED, compressed);
     }
 
-    @SuppressWarnings("unchecked")
-    protected V rebuildValue(BSONObject object) {
-        try {
-            Set<String> keySet = object.keySet();
-            Preconditions.checkArgument(keySet.size() == 1);
-
-            for (String key : keySet) {
-                Object target = object.get(key);
-                Object v = null;
-                if (target instanceof BSONObject) {
-                    v = objectMapper.toObject((BSONObject) target);
-                } else {
-                    v = target;
+    public void writeTo(List<BsonDataBlockChain> chains) throws IOException {
+        if (compressor != null) {
+            for (BsonDataBlockChain chain : chains) {
+                for (int i = 0; i < chain.size(); i++) {
+                    byte[] compressed = compress(chain.getBody(i));
+                    if (compressed != null) {
+                        chain.setBody(i, BsonDataBlock.COMPRESSED, compressed);
+                    }
                 }
-                return (V) v;
             }
-        } catch (IllegalAccessException ex) {
-            throw new RuntimeException(ex);
-        } catch (InvocationTargetException ex) {
-            throw new RuntimeException(ex);
-        } catch (NoSuchMethodException ex) {
-            throw new RuntimeException(ex);
-        } catch (ClassNotFoundException ex) {
-            throw new RuntimeException(ex);
-        } catch (InstantiationException ex) {
-            throw new RuntimeException(ex);
         }
-        return null;
+        repository.writeTo(chains);
+    }
+
+    /**
+     * Returns the compressed body, or null if the body is written as it is. The body is compressed here, out of the
+     * lock of the repository which serializes the appends.
+     */
+    protected byte[] compress(byte[] bytes) {
+        return (compressor == null) ? null : compressor.compress(bytes);
+    }
+
+    public byte[] encode(BinaryKey key, V value) {
+        return codec.encode(key.getName(), value);
+    }
+
+    public V decode(byte[] bytes) {
+        return codec.decode(bytes);
     }
 }
@@ -4,27 +4,63 @@ import java.io.Closeable;
 import java.io.IOException;
 
 import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
+
 public class BsonIndexService implements Closeable {
 
     protected static Logger logger = LoggerFactory.getLogger(BsonIndexService.class);
 
     private IndexRepository repository;
+    private Configuration configuration;
 
-    public BsonIndexService(Configuration configuration) throws IOException {
+    public BsonIndexService(Configuration configuration, WriteAheadLog writeAheadLog) throws IOException {
         super();
-        this.repository = new RandomAccessFileIndexRepository(configuration);
+        this.configuration = configuration;
+        this.repository = createIndexRepository(configuration, writeAheadLog);
+    }
+
+    protected IndexRepository createIndexRepository(Configuration configuration, WriteAheadLog writeAheadLog)
+            throws IOException {
+        switch (configuration.getIndexType()) {
+        case MAPPED:
+            return new MappedByteBufferIndexRepository(configuration, writeAheadLog);
+        case KEYDIR:
+            return new KeyDirectoryIndexRepository();
+        default:
+            return new RandomAccessFileIndexRepository(configuration, writeAheadLog);
+        }
+    }
+
+    public BsonDataBlockPosition getIndexRef(BinaryKey key) {
+        return getIndexRef(key.getHash());
+    }
+
+    public BsonDataBlockPosition getIndexRef(int keyHash) {
+        return repository.getIndexRef(toUnsignedInt(keyHash));
+    }
+
+    /**
+     * Returns the hash codes which have the chains in the key directory.
+     */
+    public int[] getKeyDirectoryHashes() {
+        Preconditions.checkState(repository instanceof KeyDirectoryIndexRepository, "not a key directory.");
+        return ((KeyDirectoryIndexRepository) repository).getHashes();
+    }
+
+    public BsonDataBlockPosition getBucketIndexRef(long bucketIndex) {
+        return repository.getBucketIndexRef(bucketIndex);
     }
 
-    public BsonDataBlockPosition getIndexRef(String key) {
-        long hashCode = toUnsignedInt(key.hashCode());
-        return repository.getIndexRef(hashCode);
+    public long getBucketCount() {
+        return repository.getBucketCount();
     }
 
-    public BsonDataBlockPosition getDataPosition(String key) throws IOException {
+    public BsonDataBlockPosition getDataPosition(BinaryKey key) throws IOException {
         return getDataPosition(getIndexRef(key));
     }
 
@@ -36,6 +72,19 @@ public class BsonIndexService implements Closeable {
         repository.updateIndex(indexRef, dataRef);
     }
 
+    public boolean needsSplit() throws IOException {
+        if (!repository.supportsSplit())
+            return false;
+        float loadFactor = configuration.getLoadFactor();
+        return (loadFactor > 0) && (repository.getEntryCount() > (loadFactor * repository.getBucketCount()));
+    }
+
+    public BsonDataBlockPosition split() throws IOException {
+        Preconditions.checkState(repository.supportsSplit(), "the buckets of %s are never split.",
+                                 repository.getClass().getSimpleName());
+        return repository.split();
+    }
+
     public boolean indexUpdatable(BsonDataBlockPosition indexRef) throws IOException {
         return repository.indexUpdatable(indexRef);
     }
@@ -49,33 +98,29 @@ public class BsonIndexService implements Closeable {
         repository.clearIndex(indexRef);
     }
 
-    protected long toUnsignedInt(int i) {
+    public static long toUnsignedInt(int i) {
         return i & 0xffffffffL;
     }
 
     public void incrementEntryCount() throws IOException {
-        int count = repository.getEntryCount();
-        repository.setEntryCount(count + 1);
+        repository.addEntryCount(1);
     }
 
     public void decrementEntryCount() throws IOException {
-        int count = repository.getEntryCount();
-        repository.setEntryCount(count - 1);
-    }
-
-    public int getEntryCount() throws IOException {
-        return repository.getEntryCount();
+        repository.addEntryCount(-1);
     }
 
-    public void resetPosition() throws IOException {
-        repository.seekIndexHead();
+    public void addEntryCount(int delta) throws IOException {
+        if (delta != 0) {
+            repository.addEntryCount(delta);
+        }
     }
 
-    public boolean hasNext() throws IOException {
-        return repository.hasNext();
+    public void setEntryCount(int count) throws IOException {
+        repository.setEntryCount(count);
     }
 
-    public BsonDataBlockPosition read() throws IOException {
-        return repository.read();
+    public int getEntryCount() throws IOException {
+        return repository.getEntryCount();
     }
 }
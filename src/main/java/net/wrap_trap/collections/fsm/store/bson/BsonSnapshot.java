@@ -0,0 +1,109 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+import net.wrap_trap.collections.fsm.store.StoreSnapshot;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <pre>
+ * A snapshot of BsonStore, which copies the chains of the buckets on write.
+ *
+ * The snapshot is taken under the write locks of all the buckets, and keeps the
+ * number of the buckets, or the hash codes of the key directory. Before a bucket
+ * is updated under its write lock for the first time after the snapshot, the
+ * positions of the blocks in the chain are preserved in the snapshot. The blocks
+ * are never written again except their links and flags, so the preserved blocks
+ * are read as they were. The chains which are not preserved have not been updated
+ * since the snapshot. The data files are not compacted while any snapshot is open.
+ * </pre>
+ */
+public class BsonSnapshot<V> implements StoreSnapshot<V> {
+
+    private BsonStore<V> store;
+    private int[] hashes;
+    private long bucketCount;
+    private int size;
+    private ConcurrentMap<Long, List<BsonDataBlockPosition>> preserved =
+            new ConcurrentHashMap<Long, List<BsonDataBlockPosition>>();
+    private volatile boolean closed;
+
+    protected BsonSnapshot(BsonStore<V> store, int[] hashes, long bucketCount, int size) {
+        this.store = store;
+        this.hashes = hashes;
+        this.bucketCount = bucketCount;
+        this.size = size;
+    }
+
+    /**
+     * Returns the hash codes which had the chains in the key directory, or null for the index file.
+     */
+    public int[] getHashes() {
+        return hashes;
+    }
+
+    public long getBucketCount() {
+        return bucketCount;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.wrap_trap.collections.fsm.store.StoreSnapshot#binaryKeySet()
+     */
+    @Override
+    public Set<BinaryKey> binaryKeySet() throws IOException {
+        Preconditions.checkState(!closed, "closed.");
+        return store.createKeyIterator(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.wrap_trap.collections.fsm.store.StoreSnapshot#binaryEntrySet()
+     */
+    @Override
+    public Set<Map.Entry<BinaryKey, V>> binaryEntrySet() throws IOException {
+        Preconditions.checkState(!closed, "closed.");
+        return store.createEntrySetIterator(this);
+    }
+
+    /**
+     * Returns true if the chain of the index has been preserved, called under the lock of the bucket.
+     */
+    protected boolean isPreserved(BsonDataBlockPosition indexRef) {
+        return preserved.containsKey(indexRef.getPointer());
+    }
+
+    /**
+     * Returns the positions of the blocks preserved, or null if the chain has not been updated since the snapshot.
+     */
+    protected List<BsonDataBlockPosition> getPreserved(BsonDataBlockPosition indexRef) {
+        return preserved.get(indexRef.getPointer());
+    }
+
+    protected void preserve(BsonDataBlockPosition indexRef, List<BsonDataBlockPosition> positions) {
+        preserved.put(indexRef.getPointer(), positions);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        store.release(this);
+        preserved.clear();
+    }
+}
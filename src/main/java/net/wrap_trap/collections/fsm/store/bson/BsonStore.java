@@ -3,218 +3,811 @@ package net.wrap_trap.collections.fsm.store.bson;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.Configuration.CacheType;
+import net.wrap_trap.collections.fsm.Configuration.IndexType;
+import net.wrap_trap.collections.fsm.store.BinaryEntryVisitor;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
 import net.wrap_trap.collections.fsm.store.Store;
+import net.wrap_trap.collections.fsm.store.StoreMetrics;
+import net.wrap_trap.collections.fsm.store.StoreMetrics.Operation;
+import net.wrap_trap.collections.fsm.store.StoreSnapshot;
 import net.wrap_trap.collections.fsm.store.bson.utils.LazyIterator;
 import net.wrap_trap.collections.fsm.store.bson.utils.LazySet;
 
 import org.apache.commons.io.FileUtils;
-import org.bson.BSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * <pre>
+ * Store which keeps the values encoded in BSON in the data files, and the heads of
+ * the chains of the data blocks in the index file.
+ * 
+ * The buckets are striped over ReadWriteLocks. Readers take the read lock and
+ * writers take the write lock of the stripe of the key, so readers and writers of
+ * the other stripes are never blocked. The stripe of a bucket is (bucket % stripes),
+ * and the number of stripes divides the initial number of buckets, so a key stays in
+ * the same stripe while its bucket is split.
+ * </pre>
+ */
 public class BsonStore<V> implements Store<V> {
 
     protected static Logger logger = LoggerFactory.getLogger(BsonStore.class);
 
+    private static final int BUCKETS_PER_COMPACTION = 256;
+    private static final int PUT_ALL_BATCH_SIZE = 4096;
+    private static final int MAX_CHAIN_LENGTH = 16;
+    private static final int BUCKETS_PER_TASK = 256;
+
     private BsonIndexService bsonIndexService;
     private BsonEntityService<V> bsonEntityService;
+    private BsonCompactor compactor;
+    private WriteAheadLog writeAheadLog;
+    private BsonValueCache valueCache;
+    private BsonBloomFilter bloomFilter;
+    private StoreMetrics metrics;
+    private BsonStoreManagement management;
+    private ReadWriteLock[] locks;
+    private Lock splitLock = new ReentrantLock();
+    private AtomicInteger iterations = new AtomicInteger();
+    private ReadWriteLock scanLock = new ReentrantReadWriteLock();
+    private List<BsonSnapshot<V>> snapshots = new CopyOnWriteArrayList<BsonSnapshot<V>>();
     private Configuration configuration;
 
     public BsonStore(Configuration configuration) throws IOException {
+        this(configuration, new StoreMetrics(configuration.isMetricsEnabled()));
+    }
+
+    /**
+     * Creates the store which records to the metrics given, such as the metrics shared by the shards.
+     */
+    public BsonStore(Configuration configuration, StoreMetrics metrics) throws IOException {
         this.configuration = configuration;
+        this.metrics = metrics;
         initialize();
     }
 
     @Override
     public V get(String key) throws IOException {
+        return get(new BinaryKey(key));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#get(net.wrap_trap.collections
+     * .fsm.store.BinaryKey)
+     */
+    @Override
+    public V get(BinaryKey key) throws IOException {
         if (logger.isTraceEnabled()) {
             logger.trace("get, key:{}", key);
         }
+        long start = metrics.start();
+        if (isFilteredOut(key)) {
+            metrics.record(Operation.GET, start);
+            return null;
+        }
+        Lock lock = getLock(key).readLock();
+        lock.lock();
         try {
-            BSONObject bsonObject = readFrom(key);
-            if (bsonObject == null)
-                return null;
-            return bsonEntityService.rebuildValue(bsonObject);
+            byte[] bytes = (valueCache == null) ? null : valueCache.get(key);
+            if (bytes == null) {
+                BsonDataBlock bsonDataBlock = readDataBlock(key);
+                if (bsonDataBlock == null)
+                    return null;
+                bytes = bsonDataBlock.getBoby();
+                if (valueCache != null) {
+                    // put under the read lock, so that the value is never replaced until it is cached.
+                    valueCache.put(key, bytes);
+                }
+            }
+            return bsonEntityService.decode(bytes);
         } catch (FileNotFoundException ex) {
             return null;
+        } finally {
+            lock.unlock();
+            metrics.record(Operation.GET, start);
         }
     }
 
     @Override
     public V put(String key, V value) throws IOException {
+        return put(new BinaryKey(key), value);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#put(net.wrap_trap.collections
+     * .fsm.store.BinaryKey, java.lang.Object)
+     */
+    @Override
+    public V put(BinaryKey key, V value) throws IOException {
+        Preconditions.checkArgument(key.getName() != null, "the key is not named for the value codec.");
         if (logger.isTraceEnabled()) {
             logger.trace("put, key:{}, value:{}", key, value);
         }
-        V pre = get(key);
-        if (pre != null) {
-            remove(key);
-        }
-        synchronized (this) {
+        long start = metrics.start();
+        byte[] pre = null;
+        Lock lock = getLock(key).writeLock();
+        lock.lock();
+        try {
             BsonDataBlockPosition indexRef = bsonIndexService.getIndexRef(key);
-            BsonDataBlockPosition dataRef = bsonEntityService.writeTo(key, value);
-            updateIndex(indexRef, dataRef);
-            bsonIndexService.incrementEntryCount();
+            preserve(indexRef);
+            putFilter(key);
+            BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
+            metrics.recordIndexLookup(dataRef != null);
+            if (dataRef != null) {
+                pre = removeValue(key, indexRef, dataRef, new ArrayList<BsonDataBlock>());
+            }
+            BsonDataBlockPosition newRef = bsonEntityService.writeTo(key, value);
+            updateIndex(indexRef, newRef);
+            invalidateCache(key);
+            if (pre == null) {
+                bsonIndexService.incrementEntryCount();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (bsonIndexService.needsSplit()) {
+            splitBucket();
         }
-        return pre;
+        writeAheadLog.commit();
+        metrics.record(Operation.PUT, start);
+        return (pre == null) ? null : bsonEntityService.decode(pre);
     }
 
+    /**
+     * Puts the entries in batches of PUT_ALL_BATCH_SIZE. The values of a batch are encoded at first, and appended to
+     * the data file at once with the blocks of each bucket linked already. Then each chain is linked at the head of
+     * the bucket, and the entry count is updated once.
+     */
     @Override
-    public V remove(String key) throws IOException {
+    public void putAll(Map<? extends String, ? extends V> map) throws IOException {
         if (logger.isTraceEnabled()) {
-            logger.trace("remove, key:{}", key);
+            logger.trace("putAll, size:{}", map.size());
         }
-        synchronized (this) {
-            BsonDataBlockPosition indexRef = bsonIndexService.getIndexRef(key);
+        long start = metrics.start();
+        Map<BinaryKey, byte[]> batch = new LinkedHashMap<BinaryKey, byte[]>();
+        for (Map.Entry<? extends String, ? extends V> entry : map.entrySet()) {
+            BinaryKey key = new BinaryKey(entry.getKey());
+            batch.put(key, bsonEntityService.encode(key, entry.getValue()));
+            if (batch.size() >= PUT_ALL_BATCH_SIZE) {
+                putBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            putBatch(batch);
+        }
+        writeAheadLog.commit();
+        metrics.record(Operation.PUT_ALL, start);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#putAll(java.util.List,
+     * java.util.List)
+     */
+    @Override
+    public void putAll(List<BinaryKey> keys, List<? extends V> values) throws IOException {
+        Preconditions.checkArgument(keys.size() == values.size(), "keys: %s, values: %s", keys.size(), values.size());
+        if (logger.isTraceEnabled()) {
+            logger.trace("putAll, size:{}", keys.size());
+        }
+        long start = metrics.start();
+        Map<BinaryKey, byte[]> batch = new LinkedHashMap<BinaryKey, byte[]>();
+        Iterator<? extends V> valueIterator = values.iterator();
+        for (BinaryKey key : keys) {
+            Preconditions.checkArgument(key.getName() != null, "the key is not named for the value codec.");
+            batch.put(key, bsonEntityService.encode(key, valueIterator.next()));
+            if (batch.size() >= PUT_ALL_BATCH_SIZE) {
+                putBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            putBatch(batch);
+        }
+        writeAheadLog.commit();
+        metrics.record(Operation.PUT_ALL, start);
+    }
+
+    protected void putBatch(Map<BinaryKey, byte[]> batch) throws IOException {
+        int added = 0;
+        // the buckets are not split until the chains are linked.
+        splitLock.lock();
+        try {
+            Map<Long, BsonDataBlockChain> chainMap = new LinkedHashMap<Long, BsonDataBlockChain>();
+            for (Map.Entry<BinaryKey, byte[]> entry : batch.entrySet()) {
+                BsonDataBlockPosition indexRef = bsonIndexService.getIndexRef(entry.getKey());
+                BsonDataBlockChain chain = chainMap.get(indexRef.getPointer());
+                if (chain == null) {
+                    chain = new BsonDataBlockChain(indexRef);
+                    chainMap.put(indexRef.getPointer(), chain);
+                }
+                chain.add(entry.getKey(), entry.getValue());
+            }
+            List<BsonDataBlockChain> chains = new ArrayList<BsonDataBlockChain>(chainMap.values());
+            bsonEntityService.writeTo(chains);
+
+            Map<ReadWriteLock, List<BsonDataBlockChain>> stripes = new LinkedHashMap<ReadWriteLock, List<BsonDataBlockChain>>();
+            for (BsonDataBlockChain chain : chains) {
+                ReadWriteLock stripe = getLock(chain.getKey(0));
+                List<BsonDataBlockChain> list = stripes.get(stripe);
+                if (list == null) {
+                    list = new ArrayList<BsonDataBlockChain>();
+                    stripes.put(stripe, list);
+                }
+                list.add(chain);
+            }
+            for (Map.Entry<ReadWriteLock, List<BsonDataBlockChain>> entry : stripes.entrySet()) {
+                Lock lock = entry.getKey().writeLock();
+                lock.lock();
+                try {
+                    for (BsonDataBlockChain chain : entry.getValue()) {
+                        added += linkChain(chain);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            splitLock.unlock();
+        }
+        bsonIndexService.addEntryCount(added);
+        while (bsonIndexService.needsSplit() && splitBucket())
+            ;
+    }
+
+    /**
+     * Removes the previous blocks of the keys in the chain, and links the chain at the head of the bucket.
+     * 
+     * @return the number of the keys newly added.
+     */
+    protected int linkChain(BsonDataBlockChain chain) throws IOException {
+        int added = 0;
+        BsonDataBlockPosition indexRef = chain.getIndexRef();
+        preserve(indexRef);
+        for (BinaryKey key : chain.getKeys()) {
+            putFilter(key);
             BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
-            if (dataRef == null)
-                return null;
-            BSONObject bsonObject = removeBSON(key, indexRef, dataRef, new ArrayList<BsonDataBlock>());
-            bsonIndexService.decrementEntryCount();
-            return bsonEntityService.rebuildValue(bsonObject);
+            if ((dataRef == null) || (removeBlock(key, indexRef, dataRef, new ArrayList<BsonDataBlock>()) == null)) {
+                added++;
+            }
+            invalidateCache(key);
+        }
+        BsonDataBlockPosition head = bsonIndexService.getDataPosition(indexRef);
+        if (head != null) {
+            bsonEntityService.updateDataBlockLink(chain.getLast(), head);
         }
+        bsonIndexService.updateIndex(indexRef, chain.getHead());
+        return added;
     }
 
     @Override
-    public Set<String> keySet() throws IOException {
-        return createKeyIterator();
+    public V remove(String key) throws IOException {
+        return remove(new BinaryKey(key));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#remove(net.wrap_trap.
+     * collections.fsm.store.BinaryKey)
+     */
+    @Override
+    public V remove(BinaryKey key) throws IOException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("remove, key:{}", key);
+        }
+        long start = metrics.start();
+        try {
+            byte[] bytes = null;
+            Lock lock = getLock(key).writeLock();
+            lock.lock();
+            try {
+                BsonDataBlockPosition indexRef = bsonIndexService.getIndexRef(key);
+                BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
+                metrics.recordIndexLookup(dataRef != null);
+                if (dataRef == null)
+                    return null;
+                preserve(indexRef);
+                bytes = removeValue(key, indexRef, dataRef, new ArrayList<BsonDataBlock>());
+                if (bytes == null)
+                    return null;
+                invalidateCache(key);
+                bsonIndexService.decrementEntryCount();
+            } finally {
+                lock.unlock();
+            }
+            writeAheadLog.commit();
+            return bsonEntityService.decode(bytes);
+        } finally {
+            metrics.record(Operation.REMOVE, start);
+        }
     }
 
-    protected Set<String> createKeyIterator() {
+    @Override
+    public Set<String> keySet() throws IOException {
+        final Set<BinaryKey> binaryKeySet = binaryKeySet();
         return new LazySet<String>() {
             @Override
             public Iterator<String> iterator() {
+                final Iterator<BinaryKey> binaryKeyIterator = binaryKeySet.iterator();
                 return new LazyIterator<String>() {
 
-                    BsonDataBlockPosition dataRef;
-                    BsonDataBlock bsonDataBlock;
-
-                    {
-                        try {
-                            bsonIndexService.resetPosition();
-                            dataRef = getNextPosition();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-
                     @Override
                     public boolean hasNext() {
-                        return (dataRef != null);
+                        return binaryKeyIterator.hasNext();
                     }
 
                     @Override
                     public String next() {
-                        Preconditions.checkState(hasNext());
-                        try {
-                            if (this.bsonDataBlock == null) {
-                                bsonDataBlock = bsonEntityService.getDataBlock(dataRef);
-                            }
-                            String key = bsonEntityService.getKey(bsonDataBlock);
-                            if (bsonDataBlock.getNextFileNumber() == 0) {
-                                bsonDataBlock = null;
-                                dataRef = getNextPosition();
-                            } else {
-                                bsonDataBlock = bsonEntityService.getDataBlock(new BsonDataBlockPosition(
-                                                                                                         bsonDataBlock.getNextFileNumber(),
-                                                                                                         bsonDataBlock.getNextPointer()));
-                            }
-                            return key;
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
+                        return BinaryKey.decode(binaryKeyIterator.next().getBytes());
                     }
+                };
+            }
 
-                    protected BsonDataBlockPosition getNextPosition() throws IOException {
-                        while (bsonIndexService.hasNext()) {
-                            BsonDataBlockPosition indexRef = bsonIndexService.read();
-                            if (indexRef != null) {
-                                return indexRef;
-                            }
-                        }
-                        return null;
+            @Override
+            public int size() {
+                return binaryKeySet.size();
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#binaryKeySet()
+     */
+    @Override
+    public Set<BinaryKey> binaryKeySet() throws IOException {
+        return createKeyIterator(null);
+    }
+
+    /**
+     * Returns the keys of the store, or the keys of the snapshot if not null.
+     */
+    protected Set<BinaryKey> createKeyIterator(final BsonSnapshot<V> snapshot) {
+        return new LazySet<BinaryKey>() {
+            @Override
+            public Iterator<BinaryKey> iterator() {
+                final Iterator<BsonDataBlock> blockIterator = createBlockIterator(snapshot, false);
+                return new LazyIterator<BinaryKey>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return blockIterator.hasNext();
                     }
 
+                    @Override
+                    public BinaryKey next() {
+                        return blockIterator.next().getBinaryKey();
+                    }
                 };
             }
 
             @Override
             public int size() {
+                return (snapshot == null) ? getEntryCount() : snapshot.size();
+            }
+        };
+    }
+
+    /**
+     * <pre>
+     * Returns the iterator of the blocks bucket by bucket, or hash code by hash code
+     * for the key directory. Every iterator has its own position in the index, and
+     * reads the whole chain of a bucket under the read lock of the bucket, so the
+     * keys and the values are taken from the blocks read once.
+     * 
+     * The entries put or removed while iterating may or may not be returned. The
+     * buckets may be split while iterating, so the iterator visits the buckets which
+     * existed when it was created, and reads each of them together with the buckets
+     * split off it since then (see readBucketFamily()). An entry moved by a split is
+     * returned once, and an iterator abandoned before its end holds nothing. The
+     * blocks of the snapshot are returned if it is not null, over the buckets or the
+     * hash codes of the snapshot.
+     * </pre>
+     */
+    protected Iterator<BsonDataBlock> createBlockIterator(final BsonSnapshot<V> snapshot, final boolean withBody) {
+        final int[] hashes;
+        final long bucketCount;
+        if (snapshot != null) {
+            hashes = snapshot.getHashes();
+            bucketCount = snapshot.getBucketCount();
+        } else {
+            hashes = isKeyDirectory() ? bsonIndexService.getKeyDirectoryHashes() : null;
+            bucketCount = (hashes == null) ? bsonIndexService.getBucketCount() : hashes.length;
+        }
+        return new LazyIterator<BsonDataBlock>() {
+
+            long bucketIndex;
+            Iterator<BsonDataBlock> chain = Collections.<BsonDataBlock> emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
                 try {
-                    return bsonIndexService.getEntryCount();
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
+                    while (!chain.hasNext()) {
+                        if (bucketIndex >= bucketCount)
+                            return false;
+                        if ((snapshot == null) && (hashes == null)) {
+                            chain = readBucketFamily(bucketIndex++, bucketCount, withBody).iterator();
+                        } else {
+                            chain = readBucket(bucketIndex++, hashes, withBody, snapshot).iterator();
+                        }
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
             }
+
+            @Override
+            public BsonDataBlock next() {
+                Preconditions.checkState(hasNext());
+                return chain.next();
+            }
         };
     }
 
+    /**
+     * <pre>
+     * Reads the blocks of the bucket, and the blocks of the buckets split off it
+     * since there were bucketCount buckets. The buckets split off the bucket B are
+     * (B + (bucketSize << l)) for every level l where (bucketSize << l) > B, and the
+     * buckets split off them in turn. The ones below bucketCount existed already, and
+     * they are visited by themselves.
+     * 
+     * A split keeps a key in the same stripe, so all of them are read under the read
+     * lock of the stripe of the bucket, and no entry moves between them meanwhile.
+     * </pre>
+     */
+    protected List<BsonDataBlock> readBucketFamily(long bucketIndex, long bucketCount, boolean withBody)
+            throws IOException {
+        List<BsonDataBlock> blocks = new ArrayList<BsonDataBlock>();
+        long bucketSize = configuration.getBucketSize();
+        Lock lock = getLock(bucketIndex).readLock();
+        lock.lock();
+        try {
+            // the splits of this stripe wait for the lock, so no bucket of this family is added while reading.
+            long currentBucketCount = bsonIndexService.getBucketCount();
+            List<Long> family = new ArrayList<Long>();
+            family.add(bucketIndex);
+            for (int i = 0; i < family.size(); i++) {
+                long bucket = family.get(i);
+                readChain(bsonIndexService.getBucketIndexRef(bucket), withBody, blocks);
+                long step = bucketSize;
+                while (step <= bucket) {
+                    step <<= 1;
+                }
+                for (; bucket + step < currentBucketCount; step <<= 1) {
+                    if (bucket + step >= bucketCount) {
+                        family.add(bucket + step);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return blocks;
+    }
+
+    /**
+     * <pre>
+     * The buckets are divided into the tasks of BUCKETS_PER_TASK buckets, and the
+     * threads take the next task until all the tasks are done. A chain is read
+     * under the read lock of its bucket with the positional I/O, and the entries are
+     * passed to the visitor after the lock is released. The buckets are not split
+     * while iterating, so no entry moves between the buckets. The key directory is
+     * iterated over the hash codes which have the chains at the beginning.
+     * </pre>
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#parallelForEach(net.wrap_trap
+     *      .collections.fsm.store.BinaryEntryVisitor, int)
+     */
     @Override
-    public Set<java.util.Map.Entry<String, V>> entrySet() throws IOException {
-        return createEntrySetIterator();
+    public void parallelForEach(final BinaryEntryVisitor<V> visitor, int parallelism) throws IOException {
+        Preconditions.checkArgument(parallelism > 0, "parallelism: %s", parallelism);
+        iterations.incrementAndGet();
+        ExecutorService executor = null;
+        try {
+            // wait for the split in progress.
+            splitLock.lock();
+            splitLock.unlock();
+            final int[] hashes = isKeyDirectory() ? bsonIndexService.getKeyDirectoryHashes() : null;
+            final long buckets = isKeyDirectory() ? hashes.length : bsonIndexService.getBucketCount();
+            final long tasks = (buckets + BUCKETS_PER_TASK - 1) / BUCKETS_PER_TASK;
+            final AtomicLong nextTask = new AtomicLong();
+            executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("fsm-foreach-%d").build());
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int thread = 0; thread < parallelism; thread++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (long task = nextTask.getAndIncrement(); task < tasks; task = nextTask.getAndIncrement()) {
+                            long end = Math.min((task + 1) * BUCKETS_PER_TASK, buckets);
+                            for (long i = task * BUCKETS_PER_TASK; i < end; i++) {
+                                visitBucket(visitor, i, hashes);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException ex) {
+                    Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            iterations.decrementAndGet();
+        }
+    }
+
+    /**
+     * Passes the entries of the bucket, or the entries of the hash code of hashes[i] for the key directory.
+     */
+    protected void visitBucket(BinaryEntryVisitor<V> visitor, long i, int[] hashes) throws IOException {
+        for (BsonDataBlock bsonDataBlock : readBucket(i, hashes, true, null)) {
+            visitor.visit(bsonDataBlock.getBinaryKey(), bsonEntityService.decode(bsonDataBlock.getBoby()));
+        }
     }
 
-    private Set<Entry<String, V>> createEntrySetIterator() throws IOException {
-        final Iterator<String> keyIterator = keySet().iterator();
+    /**
+     * Reads the blocks of the bucket, or the blocks of the hash code of hashes[i] for the key directory.
+     */
+    protected List<BsonDataBlock> readBucket(long i, int[] hashes, boolean withBody, BsonSnapshot<V> snapshot)
+            throws IOException {
+        if (hashes == null)
+            return readChain(bsonIndexService.getBucketIndexRef(i), i, withBody, snapshot);
+        return readChain(bsonIndexService.getIndexRef(hashes[(int) i]), BsonIndexService.toUnsignedInt(hashes[(int) i]),
+                         withBody, snapshot);
+    }
+
+    /**
+     * Reads the blocks chained from the index with or without their bodies under the read lock of lockIndex. The
+     * blocks preserved by the snapshot are read instead if the chain has been updated since the snapshot.
+     */
+    protected List<BsonDataBlock> readChain(BsonDataBlockPosition indexRef, long lockIndex, boolean withBody,
+                                            BsonSnapshot<V> snapshot) throws IOException {
+        List<BsonDataBlock> blocks = new ArrayList<BsonDataBlock>();
+        List<BsonDataBlockPosition> preserved = null;
+        Lock lock = getLock(lockIndex).readLock();
+        lock.lock();
+        try {
+            preserved = (snapshot == null) ? null : snapshot.getPreserved(indexRef);
+            if (preserved == null) {
+                readChain(indexRef, withBody, blocks);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (preserved != null) {
+            // the preserved blocks are never written again except their links and flags, which are not read.
+            for (BsonDataBlockPosition position : preserved) {
+                blocks.add(withBody ? bsonEntityService.getDataBlock(position)
+                                    : bsonEntityService.getDataBlockHeader(position));
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Adds the blocks chained from the index to the list. Must be called under the read lock of the chain.
+     */
+    protected void readChain(BsonDataBlockPosition indexRef, boolean withBody, List<BsonDataBlock> blocks)
+            throws IOException {
+        BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
+        while ((dataRef != null) && !dataRef.isEmpty()) {
+            BsonDataBlock bsonDataBlock = withBody ? bsonEntityService.getDataBlock(dataRef)
+                                                   : bsonEntityService.getDataBlockHeader(dataRef);
+            blocks.add(bsonDataBlock);
+            dataRef = bsonDataBlock.getNextPosition();
+        }
+    }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#snapshot()
+     */
+    @Override
+    public StoreSnapshot<V> snapshot() throws IOException {
+        // the snapshot waits for the compaction in progress, and no data file is compacted until it is closed.
+        Lock scan = scanLock.readLock();
+        scan.lock();
+        try {
+            lockAll();
+            try {
+                BsonSnapshot<V> snapshot = null;
+                if (isKeyDirectory()) {
+                    int[] hashes = bsonIndexService.getKeyDirectoryHashes();
+                    snapshot = new BsonSnapshot<V>(this, hashes, hashes.length, bsonIndexService.getEntryCount());
+                } else {
+                    snapshot = new BsonSnapshot<V>(this, null, bsonIndexService.getBucketCount(),
+                                                   bsonIndexService.getEntryCount());
+                }
+                snapshots.add(snapshot);
+                return snapshot;
+            } finally {
+                unlockAll();
+            }
+        } finally {
+            scan.unlock();
+        }
+    }
+
+    protected void release(BsonSnapshot<V> snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    /**
+     * Preserves the positions of the blocks chained from the index in the snapshots, before the chain is updated for
+     * the first time after each snapshot. This is called under the write lock of the bucket.
+     */
+    protected void preserve(BsonDataBlockPosition indexRef) throws IOException {
+        if (snapshots.isEmpty())
+            return;
+        List<BsonDataBlockPosition> positions = null;
+        for (BsonSnapshot<V> snapshot : snapshots) {
+            if (snapshot.isPreserved(indexRef))
+                continue;
+            if (positions == null) {
+                positions = new ArrayList<BsonDataBlockPosition>();
+                BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
+                while ((dataRef != null) && !dataRef.isEmpty()) {
+                    BsonDataBlock bsonDataBlock = bsonEntityService.getDataBlockHeader(dataRef);
+                    positions.add(bsonDataBlock.getPosition());
+                    dataRef = bsonDataBlock.getNextPosition();
+                }
+            }
+            snapshot.preserve(indexRef, positions);
+        }
+    }
+
+    /**
+     * <pre>
+     * The data files are read from the head in the buffers of 1MB, and the blocks
+     * which are not flagged DELETED are passed to the visitor. A block is flagged
+     * DELETED under the write lock of its bucket when it is unlinked from the chain,
+     * so no lock of the buckets is taken. The data files are not compacted while
+     * scanning, so no block moves between the data files. A scan waits for the
+     * compaction in progress.
+     * </pre>
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#scan(net.wrap_trap.collections
+     *      .fsm.store.BinaryEntryVisitor)
+     */
+    @Override
+    public void scan(final BinaryEntryVisitor<V> visitor) throws IOException {
+        Lock lock = scanLock.readLock();
+        lock.lock();
+        try {
+            for (int fileNumber : bsonEntityService.getDataFileNumbers()) {
+                bsonEntityService.scanLiveBlocks(fileNumber, new BsonDataBlockVisitor() {
+                    @Override
+                    public void visit(BsonDataBlock bsonDataBlock) throws IOException {
+                        visitor.visit(bsonDataBlock.getBinaryKey(), bsonEntityService.decode(bsonDataBlock.getBoby()));
+                    }
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<java.util.Map.Entry<String, V>> entrySet() throws IOException {
+        final Set<Entry<BinaryKey, V>> binaryEntrySet = binaryEntrySet();
         return new LazySet<Entry<String, V>>() {
             @Override
             public Iterator<Entry<String, V>> iterator() {
+                final Iterator<Entry<BinaryKey, V>> binaryEntryIterator = binaryEntrySet.iterator();
                 return new LazyIterator<Entry<String, V>>() {
 
                     @Override
                     public boolean hasNext() {
-                        return keyIterator.hasNext();
+                        return binaryEntryIterator.hasNext();
                     }
 
                     @Override
                     public Entry<String, V> next() {
-                        Preconditions.checkState(hasNext());
-                        try {
-                            final String key = keyIterator.next();
-                            final V v = get(key);
-                            Preconditions.checkNotNull(v);
-                            return new Map.Entry<String, V>() {
-
-                                @Override
-                                public String getKey() {
-                                    return key;
-                                }
-
-                                @Override
-                                public V getValue() {
-                                    return v;
-                                }
-
-                                @Override
-                                public V setValue(V value) {
-                                    throw new UnsupportedOperationException();
-                                }
-                            };
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
+                        Entry<BinaryKey, V> entry = binaryEntryIterator.next();
+                        return Maps.immutableEntry(BinaryKey.decode(entry.getKey().getBytes()), entry.getValue());
                     }
                 };
             }
 
             @Override
             public int size() {
-                try {
-                    return bsonIndexService.getEntryCount();
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                return binaryEntrySet.size();
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#binaryEntrySet()
+     */
+    @Override
+    public Set<Entry<BinaryKey, V>> binaryEntrySet() throws IOException {
+        return createEntrySetIterator(null);
+    }
+
+    /**
+     * Returns the entries whose keys and values are taken from the same blocks, without looking up the keys again. The
+     * entries are of the snapshot if not null.
+     */
+    protected Set<Entry<BinaryKey, V>> createEntrySetIterator(final BsonSnapshot<V> snapshot) {
+        return new LazySet<Entry<BinaryKey, V>>() {
+            @Override
+            public Iterator<Entry<BinaryKey, V>> iterator() {
+                final Iterator<BsonDataBlock> blockIterator = createBlockIterator(snapshot, true);
+                return new LazyIterator<Entry<BinaryKey, V>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return blockIterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<BinaryKey, V> next() {
+                        BsonDataBlock bsonDataBlock = blockIterator.next();
+                        return Maps.immutableEntry(bsonDataBlock.getBinaryKey(),
+                                                   bsonEntityService.decode(bsonDataBlock.getBoby()));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return (snapshot == null) ? getEntryCount() : snapshot.size();
             }
         };
     }
@@ -224,45 +817,40 @@ public class BsonStore<V> implements Store<V> {
         return createValuesIterator();
     }
 
-    protected Collection<V> createValuesIterator() throws IOException {
-        final Iterator<String> keyIterator = keySet().iterator();
-
+    protected Collection<V> createValuesIterator() {
         return new LazySet<V>() {
             @Override
             public Iterator<V> iterator() {
+                final Iterator<BsonDataBlock> blockIterator = createBlockIterator(null, true);
                 return new LazyIterator<V>() {
 
                     @Override
                     public boolean hasNext() {
-                        return keyIterator.hasNext();
+                        return blockIterator.hasNext();
                     }
 
                     @Override
                     public V next() {
-                        Preconditions.checkState(hasNext());
-                        try {
-                            final String key = keyIterator.next();
-                            final V v = get(key);
-                            Preconditions.checkNotNull(v);
-                            return v;
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
+                        return bsonEntityService.decode(blockIterator.next().getBoby());
                     }
                 };
             }
 
             @Override
             public int size() {
-                try {
-                    return bsonIndexService.getEntryCount();
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                return getEntryCount();
             }
         };
     }
 
+    protected int getEntryCount() {
+        try {
+            return bsonIndexService.getEntryCount();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     @Override
     public void clear() throws IOException {
         close();
@@ -271,14 +859,249 @@ public class BsonStore<V> implements Store<V> {
 
     @Override
     public void close() throws IOException {
-        bsonEntityService.close();
-        bsonIndexService.close();
+        if (management != null) {
+            management.unregister();
+            management = null;
+        }
+        if (compactor != null) {
+            compactor.close();
+            compactor = null;
+        }
+        // the snapshots cannot be used after the store is closed.
+        for (BsonSnapshot<V> snapshot : snapshots) {
+            snapshot.close();
+        }
+        lockAll();
+        try {
+            if (valueCache != null) {
+                valueCache.invalidateAll();
+            }
+            if (bloomFilter != null) {
+                saveBloomFilter();
+            }
+            writeAheadLog.close();
+            bsonEntityService.close();
+            bsonIndexService.close();
+        } finally {
+            unlockAll();
+        }
     }
 
     public void initialize() throws IOException {
+        // the stores of version 1 and 2 are rewritten in the current format before they are opened.
+        new BsonStoreUpgrade(this.configuration).upgrade();
         new File(this.configuration.getDirPath()).mkdir();
-        this.bsonEntityService = new BsonEntityService<V>(this.configuration);
-        this.bsonIndexService = new BsonIndexService(this.configuration);
+        // recover the files from the write-ahead log before they are loaded.
+        this.writeAheadLog = new WriteAheadLog(this.configuration, new WriteAheadLog.TargetResolver() {
+            @Override
+            public File getFile(int target) {
+                if (target == WriteAheadLog.INDEX_TARGET)
+                    return new File(RandomAccessFileIndexRepository.getIndexFilePath(configuration));
+                if (target >= RandomAccessFileEntityRepository.HINT_TARGET_OFFSET)
+                    return new File(RandomAccessFileEntityRepository.getHintFilePath(configuration, target -
+                        RandomAccessFileEntityRepository.HINT_TARGET_OFFSET));
+                return new File(RandomAccessFileEntityRepository.getDataFilePath(configuration, target));
+            }
+        });
+        this.bsonEntityService = new BsonEntityService<V>(this.configuration, this.writeAheadLog, this.metrics);
+        this.bsonIndexService = new BsonIndexService(this.configuration, this.writeAheadLog);
+        // bucketSize may have been replaced with the one in the index file.
+        this.locks = createLocks(getStripeCount(configuration.getBucketSize(), configuration.getConcurrencyLevel()));
+        if (isKeyDirectory()) {
+            rebuildKeyDirectory();
+        } else if (this.configuration.isBloomFilterEnabled()) {
+            loadBloomFilter();
+        }
+        if (this.configuration.getCacheType() != CacheType.NONE) {
+            this.valueCache = new BsonValueCache(this.configuration);
+        }
+        if (this.configuration.isCompactionEnabled()) {
+            this.compactor = new BsonCompactor(this, this.configuration);
+        }
+        if (this.configuration.isJmxEnabled()) {
+            this.management = new BsonStoreManagement(this, this.configuration);
+            this.management.register();
+        }
+    }
+
+    /**
+     * Loads the bloom filter saved when the store was closed, or rebuilds it from the chains if it is missing or holds
+     * too many removed keys. The file is kept but marked stale after it is loaded, so the filter is rebuilt after a
+     * crash.
+     */
+    protected void loadBloomFilter() throws IOException {
+        File file = new File(BsonBloomFilter.getBloomFilterFilePath(configuration));
+        BsonBloomFilter filter = BsonBloomFilter.readFrom(file);
+        if (filter != null) {
+            BsonBloomFilter.markStale(file);
+        }
+        long expectedEntries = Math.max(bsonIndexService.getEntryCount(), configuration.getBucketSize());
+        if ((filter != null) && (filter.getInsertions() > 2 * expectedEntries)) {
+            logger.info("The bloom filter holds too many removed keys, it is rebuilt. insertions:{}, entries:{}",
+                        filter.getInsertions(), bsonIndexService.getEntryCount());
+            filter = null;
+        }
+        this.bloomFilter = (filter != null) ? filter : rebuildBloomFilter(expectedEntries);
+    }
+
+    protected BsonBloomFilter rebuildBloomFilter(long expectedEntries) throws IOException {
+        long start = System.currentTimeMillis();
+        BsonBloomFilter filter = new BsonBloomFilter(configuration.getBloomFilterFalsePositiveRate(), expectedEntries);
+        Iterator<BsonDataBlock> iterator = createBlockIterator(null, false);
+        while (iterator.hasNext()) {
+            filter.put(iterator.next().getKeyBytes());
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("rebuildBloomFilter, insertions:{}, elapsed:{}ms", filter.getInsertions(),
+                         System.currentTimeMillis() - start);
+        }
+        return filter;
+    }
+
+    protected void saveBloomFilter() throws IOException {
+        if (!new File(configuration.getDirPath()).exists())
+            // the directory has been deleted by clear().
+            return;
+        bloomFilter.writeTo(new File(BsonBloomFilter.getBloomFilterFilePath(configuration)));
+    }
+
+    /**
+     * Returns true if the bloom filter answers that the key is not in the store, without any lock.
+     */
+    protected boolean isFilteredOut(BinaryKey key) {
+        if ((bloomFilter == null) || bloomFilter.mightContain(key))
+            return false;
+        metrics.recordFilterNegative();
+        return true;
+    }
+
+    /**
+     * Puts the key into the bloom filter under the write lock, before the key can be read.
+     */
+    protected void putFilter(BinaryKey key) {
+        if (bloomFilter != null) {
+            bloomFilter.put(key);
+        }
+    }
+
+    protected boolean isKeyDirectory() {
+        return (configuration.getIndexType() == IndexType.KEYDIR);
+    }
+
+    /**
+     * Rebuilds the key directory from the blocks which are not flagged DELETED in the hint files, or in the data files
+     * which have no valid hint file. The heads of the chains of the keys which have the same hash code are found from
+     * the links between the blocks. If no single head is found, the blocks are chained again in the order of scanning.
+     */
+    protected void rebuildKeyDirectory() throws IOException {
+        long start = System.currentTimeMillis();
+        final Map<Long, List<BsonDataBlock>> collisions = new LinkedHashMap<Long, List<BsonDataBlock>>();
+        final int[] count = new int[1];
+        for (int fileNumber : bsonEntityService.getDataFileNumbers()) {
+            bsonEntityService.scan(fileNumber, new BsonDataBlockVisitor() {
+                @Override
+                public void visit(BsonDataBlock bsonDataBlock) throws IOException {
+                    if (bsonDataBlock.isDeleted())
+                        return;
+                    count[0]++;
+                    BsonDataBlockPosition indexRef = bsonIndexService.getIndexRef(bsonDataBlock.getKeyHash());
+                    BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
+                    if (dataRef == null) {
+                        bsonIndexService.updateIndex(indexRef, bsonDataBlock.getPosition());
+                        return;
+                    }
+                    List<BsonDataBlock> blocks = collisions.get(indexRef.getPointer());
+                    if (blocks == null) {
+                        blocks = new ArrayList<BsonDataBlock>();
+                        blocks.add(bsonEntityService.getDataBlockHeader(dataRef));
+                        collisions.put(indexRef.getPointer(), blocks);
+                    }
+                    // the links are read from the data file, since they are not in the hint files.
+                    blocks.add(bsonEntityService.getDataBlockHeader(bsonDataBlock.getPosition()));
+                }
+            });
+        }
+        for (Map.Entry<Long, List<BsonDataBlock>> entry : collisions.entrySet()) {
+            relinkCollisions(bsonIndexService.getIndexRef(entry.getKey().intValue()), entry.getValue());
+        }
+        bsonIndexService.setEntryCount(count[0]);
+        if (logger.isDebugEnabled()) {
+            logger.debug("rebuildKeyDirectory, entries:{}, collisions:{}, elapsed:{}ms",
+                         new Object[] { count[0], collisions.size(), System.currentTimeMillis() - start });
+        }
+    }
+
+    protected void relinkCollisions(BsonDataBlockPosition indexRef, List<BsonDataBlock> blocks) throws IOException {
+        Set<String> linked = new HashSet<String>();
+        for (BsonDataBlock bsonDataBlock : blocks) {
+            linked.add(toString(bsonDataBlock.getNextPosition()));
+        }
+        List<BsonDataBlock> heads = new ArrayList<BsonDataBlock>();
+        for (BsonDataBlock bsonDataBlock : blocks) {
+            if (!linked.contains(toString(bsonDataBlock.getPosition()))) {
+                heads.add(bsonDataBlock);
+            }
+        }
+        if (heads.size() == 1) {
+            bsonIndexService.updateIndex(indexRef, heads.get(0).getPosition());
+            return;
+        }
+        logger.warn("The chain of the hash code is broken, relinked. hash:{}, blocks:{}", indexRef.getPointer(),
+                    blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            BsonDataBlockPosition next = (i + 1 < blocks.size()) ? blocks.get(i + 1).getPosition()
+                                                                 : new BsonDataBlockPosition((byte) 0, 0L);
+            bsonEntityService.updateDataBlockLink(blocks.get(i).getPosition(), next);
+        }
+        bsonIndexService.updateIndex(indexRef, blocks.get(0).getPosition());
+    }
+
+    protected static String toString(BsonDataBlockPosition dataRef) {
+        return (dataRef.getFileNumber() & 0xff) + ":" + dataRef.getPointer();
+    }
+
+    /**
+     * Returns the largest divisor of bucketSize which is not larger than concurrencyLevel.
+     */
+    protected static int getStripeCount(int bucketSize, int concurrencyLevel) {
+        for (int stripes = Math.min(bucketSize, concurrencyLevel); stripes > 1; stripes--) {
+            if (bucketSize % stripes == 0) {
+                return stripes;
+            }
+        }
+        return 1;
+    }
+
+    protected static ReadWriteLock[] createLocks(int stripes) {
+        ReadWriteLock[] locks = new ReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        return locks;
+    }
+
+    protected ReadWriteLock getLock(BinaryKey key) {
+        return getLock(BsonIndexService.toUnsignedInt(key.getHash()));
+    }
+
+    /**
+     * Returns the lock of the stripe of the bucket. (hash % stripes) equals to (bucket % stripes), because the number
+     * of buckets in every level is a multiple of the number of stripes.
+     */
+    protected ReadWriteLock getLock(long hashOrBucketIndex) {
+        return locks[(int) (hashOrBucketIndex % locks.length)];
+    }
+
+    protected void lockAll() {
+        for (ReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+    }
+
+    protected void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].writeLock().unlock();
+        }
     }
 
     protected void deleteDirectory() {
@@ -288,22 +1111,53 @@ public class BsonStore<V> implements Store<V> {
 
     }
 
-    protected BSONObject readFrom(String key) throws IOException, FileNotFoundException {
+    protected BsonDataBlock readDataBlock(BinaryKey key) throws IOException, FileNotFoundException {
         BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(key);
+        metrics.recordIndexLookup(dataRef != null);
         if (dataRef == null)
             return null;
-        return bsonEntityService.readFrom(key, dataRef);
+        return bsonEntityService.readDataBlock(key, dataRef);
+    }
+
+    /**
+     * Must be called under the write lock of the stripe of the key.
+     */
+    protected void invalidateCache(BinaryKey key) {
+        if (valueCache != null) {
+            valueCache.invalidate(key);
+        }
     }
 
-    protected BSONObject removeBSON(String key, BsonDataBlockPosition indexRef, BsonDataBlockPosition dataRef,
-                                    List<BsonDataBlock> dataRefList) throws IOException {
+    /**
+     * Unlinks the block of the key from the chain, and returns the encoded value or null if not found.
+     */
+    protected byte[] removeValue(BinaryKey key, BsonDataBlockPosition indexRef, BsonDataBlockPosition dataRef,
+                                 List<BsonDataBlock> dataRefList) throws IOException {
+        BsonDataBlock bsonDataBlock = removeBlock(key, indexRef, dataRef, dataRefList);
+        if (bsonDataBlock == null)
+            return null;
+        return bsonEntityService.getDataBlock(bsonDataBlock.getPosition()).getBoby();
+    }
+
+    /**
+     * Unlinks the block of the key from the chain, and returns the header of the block or null if not found.
+     */
+    protected BsonDataBlock removeBlock(BinaryKey key, BsonDataBlockPosition indexRef, BsonDataBlockPosition dataRef,
+                                        List<BsonDataBlock> dataRefList) throws IOException {
         if (logger.isTraceEnabled()) {
-            logger.trace("removeBSON, key:{}, dataRef{}, indexRef:{}, dataRefList:{}", new Object[] { key, dataRef,
-                                                                                                     indexRef,
-                                                                                                     dataRefList });
+            logger.trace("removeBlock, key:{}, dataRef{}, indexRef:{}, dataRefList:{}", new Object[] { key, dataRef,
+                                                                                                      indexRef,
+                                                                                                      dataRefList });
+        }
+        if (dataRef.isEmpty()) {
+            // reached the end of the chain.
+            metrics.recordRemoveLookup(dataRefList.size());
+            return null;
         }
-        BsonDataBlock bsonDataBlock = bsonEntityService.getDataBlock(dataRef);
-        if (key.equals(bsonEntityService.getKey(bsonDataBlock))) {
+        BsonDataBlock bsonDataBlock = bsonEntityService.getDataBlockHeader(dataRef);
+        if (bsonDataBlock.matches(key)) {
+            metrics.recordRemoveLookup(dataRefList.size() + 1);
+            bsonEntityService.markDead(bsonDataBlock);
             if ((bsonDataBlock.getNextPointer() == 0) && (bsonDataBlock.getNextFileNumber() == 0) &&
                 (dataRefList.size() == 0)) {
                 // remain this one only
@@ -313,16 +1167,314 @@ public class BsonStore<V> implements Store<V> {
                 bsonEntityService.updateDataBlockLink(lastDataRef, bsonDataBlock);
             } else {
                 // remove at the first element.
-                bsonIndexService.updateIndex(indexRef, dataRef);
+                bsonIndexService.updateIndex(indexRef, bsonDataBlock.getNextPosition());
             }
-            return bsonDataBlock.getBsonObject();
+            return bsonDataBlock;
         } else {
             dataRefList.add(bsonDataBlock);
-            return removeBSON(key,
-                              indexRef,
-                              new BsonDataBlockPosition(bsonDataBlock.getNextFileNumber(),
-                                                        bsonDataBlock.getNextPointer()), dataRefList);
+            return removeBlock(key, indexRef, bsonDataBlock.getNextPosition(), dataRefList);
+        }
+    }
+
+    /**
+     * Splits the bucket pointed by the split pointer of linear hashing. The blocks chained from the bucket are
+     * redistributed between the bucket itself and the bucket newly added at the end of the index. Only one thread
+     * splits at a time, and the other threads skip splitting instead of waiting.
+     * 
+     * @return false if no bucket has been split.
+     */
+    protected boolean splitBucket() throws IOException {
+        if (!splitLock.tryLock())
+            return false;
+        try {
+            // the buckets are split after the iterations.
+            if ((iterations.get() > 0) || !bsonIndexService.needsSplit())
+                return false;
+            // the bucket to be added has the same stripe as the bucket to be split.
+            Lock lock = getLock(bsonIndexService.getBucketCount()).writeLock();
+            lock.lock();
+            try {
+                splitBucket(bsonIndexService.split());
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            splitLock.unlock();
+        }
+    }
+
+    protected void splitBucket(BsonDataBlockPosition splitRef) throws IOException {
+        // the bucket added is not seen by the snapshots, since it is beyond their numbers of the buckets.
+        preserve(splitRef);
+        BsonDataBlockPosition newRef = null;
+        List<BsonDataBlock> remained = new ArrayList<BsonDataBlock>();
+        List<BsonDataBlock> moved = new ArrayList<BsonDataBlock>();
+
+        BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(splitRef);
+        while ((dataRef != null) && !dataRef.isEmpty()) {
+            BsonDataBlock bsonDataBlock = bsonEntityService.getDataBlockHeader(dataRef);
+            BsonDataBlockPosition indexRef = bsonIndexService.getIndexRef(bsonDataBlock.getKeyHash());
+            if (indexRef.getPointer() == splitRef.getPointer()) {
+                remained.add(bsonDataBlock);
+            } else {
+                newRef = indexRef;
+                moved.add(bsonDataBlock);
+            }
+            dataRef = bsonDataBlock.getNextPosition();
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("splitBucket, splitRef:{}, remained:{}, moved:{}",
+                         new Object[] { splitRef.getPointer(), remained.size(), moved.size() });
+        }
+        if (moved.size() == 0)
+            return;
+        relink(splitRef, remained);
+        relink(newRef, moved);
+    }
+
+    protected void relink(BsonDataBlockPosition indexRef, List<BsonDataBlock> chain) throws IOException {
+        if (chain.size() == 0) {
+            bsonIndexService.clearIndex(indexRef);
+            return;
+        }
+        bsonIndexService.updateIndex(indexRef, chain.get(0).getPosition());
+        for (int i = 0; i < chain.size(); i++) {
+            BsonDataBlock bsonDataBlock = chain.get(i);
+            BsonDataBlockPosition next = (i + 1 < chain.size()) ? chain.get(i + 1).getPosition()
+                                                                : new BsonDataBlockPosition((byte) 0, 0L);
+            if ((bsonDataBlock.getNextFileNumber() != next.getFileNumber()) ||
+                (bsonDataBlock.getNextPointer() != next.getPointer())) {
+                bsonEntityService.updateDataBlockLink(bsonDataBlock.getPosition(), next);
+            }
+        }
+    }
+
+    public List<SegmentStat> getSegmentStats() {
+        return bsonEntityService.getSegmentStats();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#getMetrics()
+     */
+    @Override
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the histogram of the lengths of the chains. The element i is the number of the buckets which have i
+     * blocks, and the last element counts the buckets which have MAX_CHAIN_LENGTH blocks or more. The buckets are
+     * walked under the read lock of each bucket. The key directory has a bucket per hash code, so the live blocks in
+     * the data files are counted per hash code instead, and no empty bucket is counted.
+     */
+    public long[] getChainLengthHistogram() throws IOException {
+        final long[] histogram = new long[MAX_CHAIN_LENGTH + 1];
+        if (isKeyDirectory()) {
+            final Map<Integer, Integer> lengths = new HashMap<Integer, Integer>();
+            for (int fileNumber : bsonEntityService.getDataFileNumbers()) {
+                try {
+                    bsonEntityService.scan(fileNumber, new BsonDataBlockVisitor() {
+                        @Override
+                        public void visit(BsonDataBlock bsonDataBlock) throws IOException {
+                            if (bsonDataBlock.isDeleted())
+                                return;
+                            Integer length = lengths.get(bsonDataBlock.getKeyHash());
+                            lengths.put(bsonDataBlock.getKeyHash(), (length == null) ? 1 : length + 1);
+                        }
+                    });
+                } catch (FileNotFoundException ignore) {
+                    // deleted by compaction, the blocks have been relocated to the other data file.
+                }
+            }
+            for (int length : lengths.values()) {
+                histogram[Math.min(length, MAX_CHAIN_LENGTH)]++;
+            }
+            return histogram;
+        }
+        for (long bucketIndex = 0L; bucketIndex < bsonIndexService.getBucketCount(); bucketIndex++) {
+            Lock lock = getLock(bucketIndex).readLock();
+            lock.lock();
+            try {
+                int length = 0;
+                BsonDataBlockPosition indexRef = bsonIndexService.getBucketIndexRef(bucketIndex);
+                BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
+                while ((dataRef != null) && !dataRef.isEmpty()) {
+                    length++;
+                    dataRef = bsonEntityService.getDataBlockHeader(dataRef).getNextPosition();
+                }
+                histogram[Math.min(length, MAX_CHAIN_LENGTH)]++;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Compacts the data file which has the largest ratio of dead bytes over Configuration#getCompactionDeadRatio(). No
+     * data file is compacted while the store is scanned or any snapshot is open.
+     * 
+     * @return true if a data file has been compacted.
+     */
+    public boolean compact() throws IOException {
+        // the data files are compacted after the scans.
+        Lock lock = scanLock.writeLock();
+        if (!lock.tryLock())
+            return false;
+        try {
+            if (!snapshots.isEmpty())
+                // the blocks seen by the snapshots are not reclaimed until they are closed.
+                return false;
+            SegmentStat target = null;
+            for (SegmentStat stat : getSegmentStats()) {
+                if (stat.isWritable() || (stat.getDeadRatio() < configuration.getCompactionDeadRatio()))
+                    continue;
+                if ((target == null) || (target.getDeadRatio() < stat.getDeadRatio())) {
+                    target = stat;
+                }
+            }
+            if (target == null)
+                return false;
+            return compactDataFile(target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live blocks in the data file to other data files bucket by bucket under the write lock of each
+     * bucket, and deletes the data file. The rewritten bytes per second are limited to
+     * Configuration#getCompactionBytesPerSecond(), checked every BUCKETS_PER_COMPACTION buckets.
+     * 
+     * @return false if interrupted before the data file is deleted.
+     */
+    protected boolean compactDataFile(SegmentStat target) throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("compactDataFile, target:{}", target);
         }
+        long start = System.currentTimeMillis();
+        long relocatedBytes = 0L;
+        try {
+            if (isKeyDirectory()) {
+                relocatedBytes = relocateDataFile(target.getFileNumber(), start);
+                if (relocatedBytes < 0)
+                    return false;
+            } else {
+                long bucketIndex = 0L;
+                while (true) {
+                    long bucketCount = bsonIndexService.getBucketCount();
+                    if (bucketIndex >= bucketCount)
+                        break;
+                    long end = Math.min(bucketIndex + BUCKETS_PER_COMPACTION, bucketCount);
+                    for (; bucketIndex < end; bucketIndex++) {
+                        Lock lock = getLock(bucketIndex).writeLock();
+                        lock.lock();
+                        try {
+                            relocatedBytes += relocateBlocks(bsonIndexService.getBucketIndexRef(bucketIndex),
+                                                             target.getFileNumber());
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    if (!throttle(start, relocatedBytes))
+                        return false;
+                }
+            }
+            // no reader reaches the data file after all the buckets have been relinked.
+            bsonEntityService.finishRelocation();
+            // the log must not have the updates of the data file, since the file number may be reused.
+            writeAheadLog.checkpoint();
+            bsonEntityService.deleteDataFile(target.getFileNumber());
+        } finally {
+            bsonEntityService.finishRelocation();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("\tcompacted, relocatedBytes:{}, elapsed:{}ms", relocatedBytes,
+                         System.currentTimeMillis() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Relocates the blocks in the data file for the key directory, which has no bucket to be walked. The data file is
+     * scanned, and the chain of the hash code of every block is relocated under the write lock of the hash code.
+     * 
+     * @return the size of rewritten blocks, or -1 if interrupted.
+     */
+    protected long relocateDataFile(final int fileNumber, final long start) throws IOException {
+        final long[] relocatedBytes = new long[1];
+        final int[] count = new int[1];
+        try {
+            bsonEntityService.scan(fileNumber, new BsonDataBlockVisitor() {
+                @Override
+                public void visit(BsonDataBlock bsonDataBlock) throws IOException {
+                    if (bsonDataBlock.isDeleted())
+                        // the flags are never cleared.
+                        return;
+                    long hash = BsonIndexService.toUnsignedInt(bsonDataBlock.getKeyHash());
+                    Lock lock = getLock(hash).writeLock();
+                    lock.lock();
+                    try {
+                        relocatedBytes[0] += relocateBlocks(bsonIndexService.getIndexRef(bsonDataBlock.getKeyHash()),
+                                                            fileNumber);
+                    } finally {
+                        lock.unlock();
+                    }
+                    if ((++count[0] % BUCKETS_PER_COMPACTION == 0) && !throttle(start, relocatedBytes[0]))
+                        throw new InterruptedIOException();
+                }
+            });
+        } catch (InterruptedIOException ex) {
+            return -1L;
+        }
+        return relocatedBytes[0];
+    }
+
+    /**
+     * Rewrites the blocks in the data file of fileNumber which are chained from the bucket, and links the rewritten
+     * blocks instead of them.
+     * 
+     * @return the size of rewritten blocks.
+     */
+    protected long relocateBlocks(BsonDataBlockPosition indexRef, int fileNumber) throws IOException {
+        long relocatedBytes = 0L;
+        BsonDataBlockPosition prevRef = null;
+        BsonDataBlockPosition dataRef = bsonIndexService.getDataPosition(indexRef);
+        while ((dataRef != null) && !dataRef.isEmpty()) {
+            BsonDataBlock bsonDataBlock = bsonEntityService.getDataBlock(dataRef);
+            BsonDataBlockPosition currentRef = dataRef;
+            if ((dataRef.getFileNumber() & 0xff) == fileNumber) {
+                currentRef = bsonEntityService.relocate(bsonDataBlock);
+                if (prevRef == null) {
+                    bsonIndexService.updateIndex(indexRef, currentRef);
+                } else {
+                    bsonEntityService.updateDataBlockLink(prevRef, currentRef);
+                }
+                relocatedBytes += bsonDataBlock.getDataLength();
+            }
+            prevRef = currentRef;
+            dataRef = bsonDataBlock.getNextPosition();
+        }
+        return relocatedBytes;
+    }
+
+    protected boolean throttle(long start, long relocatedBytes) {
+        long bytesPerSecond = configuration.getCompactionBytesPerSecond();
+        long wait = 0L;
+        if (bytesPerSecond > 0) {
+            wait = (relocatedBytes * 1000L / bytesPerSecond) - (System.currentTimeMillis() - start);
+        }
+        try {
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return !Thread.currentThread().isInterrupted();
     }
 
     public void updateIndex(BsonDataBlockPosition indexRef, BsonDataBlockPosition newData) throws IOException {
@@ -350,7 +1502,31 @@ public class BsonStore<V> implements Store<V> {
 
     @Override
     public boolean containsKey(Object key) throws FileNotFoundException, IOException {
-        BSONObject bsonObject = readFrom(key.toString());
-        return (bsonObject != null);
+        return containsKey(new BinaryKey(key.toString()));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.Store#containsKey(net.wrap_trap.
+     * collections.fsm.store.BinaryKey)
+     */
+    @Override
+    public boolean containsKey(BinaryKey key) throws FileNotFoundException, IOException {
+        long start = metrics.start();
+        if (isFilteredOut(key)) {
+            metrics.record(Operation.CONTAINS_KEY, start);
+            return false;
+        }
+        Lock lock = getLock(key).readLock();
+        lock.lock();
+        try {
+            if ((valueCache != null) && (valueCache.get(key) != null))
+                return true;
+            return (readDataBlock(key) != null);
+        } finally {
+            lock.unlock();
+            metrics.record(Operation.CONTAINS_KEY, start);
+        }
     }
 }
@@ -0,0 +1,48 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The JMX view of the metrics of BsonStore. The latencies are keyed by StoreMetrics.Operation, and the bytes and
+ * the dead ratios are keyed by the data file number.
+ */
+public interface BsonStoreMXBean {
+
+    int getSize() throws IOException;
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Double> getMeanLatencyMicros();
+
+    Map<String, Double> getP50LatencyMicros();
+
+    Map<String, Double> getP99LatencyMicros();
+
+    Map<String, Double> getP999LatencyMicros();
+
+    Map<String, Double> getMaxLatencyMicros();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    Map<Integer, Long> getBytesReadPerFile();
+
+    Map<Integer, Long> getBytesWrittenPerFile();
+
+    double getIndexHitRate();
+
+    double getAverageBlocksPerRead();
+
+    double getAverageBlocksPerRemove();
+
+    Map<Integer, Double> getDeadRatios();
+
+    /**
+     * Walks all the chains, see BsonStore#getChainLengthHistogram().
+     */
+    long[] collectChainLengthHistogram() throws IOException;
+
+    void resetMetrics();
+}
@@ -0,0 +1,294 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.store.StoreMetrics;
+import net.wrap_trap.collections.fsm.store.StoreMetrics.Operation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <pre>
+ * Registers BsonStoreMXBean of the store to the platform MBeanServer, named
+ * "net.wrap_trap.collections.fsm:type=BsonStore,name=(the directory of the store)".
+ *
+ * The store works without the MBean, so a failure of the registration is logged
+ * and ignored.
+ * </pre>
+ */
+public class BsonStoreManagement implements BsonStoreMXBean {
+
+    protected static Logger logger = LoggerFactory.getLogger(BsonStoreManagement.class);
+
+    private static final String DOMAIN = "net.wrap_trap.collections.fsm";
+
+    private BsonStore<?> store;
+    private Configuration configuration;
+    private ObjectName objectName;
+
+    public BsonStoreManagement(BsonStore<?> store, Configuration configuration) {
+        this.store = store;
+        this.configuration = configuration;
+    }
+
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=BsonStore,name=" +
+                                             ObjectName.quote(new File(configuration.getDirPath()).getAbsolutePath()));
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (JMException ex) {
+            logger.warn("Failed to register the MBean of the store.", ex);
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            logger.warn("Failed to unregister the MBean of the store.", ex);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    protected StoreMetrics getMetrics() {
+        return store.getMetrics();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getSize()
+     */
+    @Override
+    public int getSize() throws IOException {
+        return store.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getOperationCounts
+     * ()
+     */
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Operation operation : Operation.values()) {
+            counts.put(operation.name(), getMetrics().getCount(operation));
+        }
+        return counts;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getMeanLatencyMicros
+     * ()
+     */
+    @Override
+    public Map<String, Double> getMeanLatencyMicros() {
+        Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation.name(), getMetrics().getMeanNanos(operation) / 1000.0);
+        }
+        return latencies;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getP50LatencyMicros
+     * ()
+     */
+    @Override
+    public Map<String, Double> getP50LatencyMicros() {
+        return getPercentileMicros(50.0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getP99LatencyMicros
+     * ()
+     */
+    @Override
+    public Map<String, Double> getP99LatencyMicros() {
+        return getPercentileMicros(99.0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getP999LatencyMicros
+     * ()
+     */
+    @Override
+    public Map<String, Double> getP999LatencyMicros() {
+        return getPercentileMicros(99.9);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getMaxLatencyMicros
+     * ()
+     */
+    @Override
+    public Map<String, Double> getMaxLatencyMicros() {
+        Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation.name(), getMetrics().getMaxNanos(operation) / 1000.0);
+        }
+        return latencies;
+    }
+
+    protected Map<String, Double> getPercentileMicros(double percentile) {
+        Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation.name(), getMetrics().getPercentileNanos(operation, percentile) / 1000.0);
+        }
+        return latencies;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getBytesRead()
+     */
+    @Override
+    public long getBytesRead() {
+        return getMetrics().getBytesRead();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getBytesWritten()
+     */
+    @Override
+    public long getBytesWritten() {
+        return getMetrics().getBytesWritten();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getBytesReadPerFile
+     * ()
+     */
+    @Override
+    public Map<Integer, Long> getBytesReadPerFile() {
+        return getMetrics().getBytesReadPerFile();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getBytesWrittenPerFile
+     * ()
+     */
+    @Override
+    public Map<Integer, Long> getBytesWrittenPerFile() {
+        return getMetrics().getBytesWrittenPerFile();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getIndexHitRate()
+     */
+    @Override
+    public double getIndexHitRate() {
+        return getMetrics().getIndexHitRate();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getAverageBlocksPerRead
+     * ()
+     */
+    @Override
+    public double getAverageBlocksPerRead() {
+        return getMetrics().getAverageBlocksPerRead();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getAverageBlocksPerRemove
+     * ()
+     */
+    @Override
+    public double getAverageBlocksPerRemove() {
+        return getMetrics().getAverageBlocksPerRemove();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#getDeadRatios()
+     */
+    @Override
+    public Map<Integer, Double> getDeadRatios() {
+        Map<Integer, Double> ratios = new TreeMap<Integer, Double>();
+        for (SegmentStat stat : store.getSegmentStats()) {
+            ratios.put(stat.getFileNumber(), stat.getDeadRatio());
+        }
+        return ratios;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#
+     * collectChainLengthHistogram()
+     */
+    @Override
+    public long[] collectChainLengthHistogram() throws IOException {
+        return store.getChainLengthHistogram();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.BsonStoreMXBean#resetMetrics()
+     */
+    @Override
+    public void resetMetrics() {
+        getMetrics().reset();
+    }
+}
@@ -0,0 +1,214 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.Configuration.CacheType;
+import net.wrap_trap.collections.fsm.Configuration.Durability;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+import org.apache.commons.io.FileUtils;
+import org.bson.BSONDecoder;
+import org.bson.BSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * <pre>
+ * Rewrites the store of version 1 or 2 in the current format when it is opened.
+ *
+ *  structure of the data block of version 1 and 2
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |     a.    |     b.    |a.|          c.           |
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ *
+ * a. length of b. and c.[integer]
+ * b. the value in a BSON document of the key.[byte[]]
+ * c. file number and offset of the next data block.[byte + long]
+ *
+ * The header of version 1 has the entry count in the upper half of the max size of
+ * data file, and no level or split pointer of linear hashing.
+ *
+ * Every chain of the index file is read from the head, and the first block of a key
+ * is taken as the value like get() of those versions did. The values are put into a
+ * new store in the directory "[dirPath].upgrade", and then the old directory is
+ * renamed to "[dirPath].v[version]" and kept as the backup, and the new directory
+ * replaces it. The backup can be deleted after the upgraded store is verified.
+ * </pre>
+ */
+public class BsonStoreUpgrade {
+
+    protected static Logger logger = LoggerFactory.getLogger(BsonStoreUpgrade.class);
+
+    private static final int UPGRADE_BATCH_SIZE = 4096;
+    private static final int V1_VERSION = 1;
+    private static final int V2_LEVEL_OFFSET = 20;
+    private static final int NEXT_DATA_POINTER_SIZE = 9;
+
+    private Configuration configuration;
+
+    public BsonStoreUpgrade(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Upgrades the store if its index file is older than the current version.
+     *
+     * @return true if the store has been upgraded.
+     */
+    public boolean upgrade() throws IOException {
+        File indexFile = new File(RandomAccessFileIndexRepository.getIndexFilePath(configuration));
+        if (!indexFile.exists() || (indexFile.length() < RandomAccessFileIndexRepository.HEADER_SIZE))
+            return false;
+        int version = readVersion(indexFile);
+        if (version >= RandomAccessFileIndexRepository.MIN_SUPPORTED_VERSION)
+            return false;
+        if ((configuration.getValueCodec() != null) && !(configuration.getValueCodec() instanceof BsonValueCodec)) {
+            throw new IOException(String.format("The store of version %d holds BSON values, but valueCodec is %s.",
+                                                version, configuration.getValueCodec().getClass().getName()));
+        }
+
+        File dir = new File(configuration.getDirPath());
+        File upgradeDir = new File(dir.getPath() + ".upgrade");
+        File backupDir = new File(dir.getPath() + ".v" + version);
+        if (backupDir.exists()) {
+            throw new IOException(String.format("The backup directory of the upgrade already exists: %s",
+                                                backupDir.getPath()));
+        }
+        logger.info("Upgrading the store from version {}, dirPath:{}", version, dir.getPath());
+        FileUtils.deleteDirectory(upgradeDir);
+        int entries = copyTo(indexFile, version, upgradeDir);
+
+        if (!dir.renameTo(backupDir)) {
+            throw new IOException(String.format("Failed to rename %s to %s", dir.getPath(), backupDir.getPath()));
+        }
+        if (!upgradeDir.renameTo(dir)) {
+            if (!backupDir.renameTo(dir)) {
+                logger.error("Failed to restore the store from the backup: {}", backupDir.getPath());
+            }
+            throw new IOException(String.format("Failed to rename %s to %s", upgradeDir.getPath(), dir.getPath()));
+        }
+        logger.info("The store has been upgraded, entries:{}, backup:{}", entries, backupDir.getPath());
+        return true;
+    }
+
+    protected int readVersion(File indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            return file.readInt();
+        } finally {
+            Closeables.closeQuietly(file);
+        }
+    }
+
+    protected int copyTo(File indexFile, int version, File upgradeDir) throws IOException {
+        Configuration upgradeConfiguration = new Configuration(configuration);
+        upgradeConfiguration.setDirPath(upgradeDir.getPath());
+        upgradeConfiguration.setDurability(Durability.NONE);
+        upgradeConfiguration.setCacheType(CacheType.NONE);
+        upgradeConfiguration.setCompactionEnabled(false);
+        upgradeConfiguration.setJmxEnabled(false);
+        upgradeConfiguration.setBloomFilterEnabled(false);
+        upgradeConfiguration.setShardDirPaths(null);
+
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        Map<Integer, RandomAccessFile> dataFiles = new HashMap<Integer, RandomAccessFile>();
+        BsonStore<Object> store = null;
+        try {
+            index.readInt();
+            int bucketSize = index.readInt();
+            long dataFileSize = index.readLong();
+            long buckets = bucketSize;
+            if (version == V1_VERSION) {
+                // the entry count was written over the upper half of the max size of data file.
+                dataFileSize &= 0xffffffffL;
+            } else {
+                index.seek(V2_LEVEL_OFFSET);
+                int level = index.readInt();
+                long splitPointer = index.readLong();
+                buckets = ((long) bucketSize << level) + splitPointer;
+            }
+            upgradeConfiguration.setBucketSize(bucketSize);
+            upgradeConfiguration.setDataFileSize(dataFileSize);
+            store = new BsonStore<Object>(upgradeConfiguration);
+
+            int entries = 0;
+            Map<BinaryKey, byte[]> batch = new LinkedHashMap<BinaryKey, byte[]>();
+            for (long bucket = 0; bucket < buckets; bucket++) {
+                long pos = RandomAccessFileIndexRepository.HEADER_SIZE
+                           + (bucket * RandomAccessFileIndexRepository.INDEX_SIZE_PER_RECORD);
+                if (pos + RandomAccessFileIndexRepository.INDEX_SIZE_PER_RECORD > index.length())
+                    break;
+                index.seek(pos);
+                entries += readChain(index.readByte() & 0xff, index.readLong(), dataFiles, batch);
+                if (batch.size() >= UPGRADE_BATCH_SIZE) {
+                    store.putBatch(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                store.putBatch(batch);
+            }
+            return entries;
+        } finally {
+            if (store != null) {
+                store.close();
+            }
+            for (RandomAccessFile dataFile : dataFiles.values()) {
+                Closeables.closeQuietly(dataFile);
+            }
+            Closeables.closeQuietly(index);
+        }
+    }
+
+    /**
+     * Reads the chain from the head, and adds the first value of each key to the batch.
+     *
+     * @return the number of the keys added.
+     */
+    protected int readChain(int fileNumber, long pointer, Map<Integer, RandomAccessFile> dataFiles,
+                            Map<BinaryKey, byte[]> batch) throws IOException {
+        // the updated and removed values remain in the chain of the same bucket behind the latest ones.
+        Set<String> keys = new HashSet<String>();
+        while ((fileNumber != 0) || (pointer != 0L)) {
+            RandomAccessFile dataFile = getDataFile(fileNumber, dataFiles);
+            dataFile.seek(pointer);
+            byte[] body = new byte[dataFile.readInt() - NEXT_DATA_POINTER_SIZE];
+            dataFile.readFully(body);
+            int nextFileNumber = dataFile.readByte() & 0xff;
+            long nextPointer = dataFile.readLong();
+
+            BSONObject object = new BSONDecoder().readObject(body);
+            Preconditions.checkState(object.keySet().size() == 1, "invalid data block, file:%s, pos:%s", fileNumber,
+                                     pointer);
+            String key = object.keySet().iterator().next();
+            if (keys.add(key)) {
+                batch.put(new BinaryKey(key), body);
+            }
+            fileNumber = nextFileNumber;
+            pointer = nextPointer;
+        }
+        return keys.size();
+    }
+
+    protected RandomAccessFile getDataFile(int fileNumber, Map<Integer, RandomAccessFile> dataFiles)
+            throws IOException {
+        RandomAccessFile dataFile = dataFiles.get(fileNumber);
+        if (dataFile == null) {
+            dataFile = new RandomAccessFile(RandomAccessFileEntityRepository.getDataFilePath(configuration,
+                                                                                             fileNumber), "r");
+            dataFiles.put(fileNumber, dataFile);
+        }
+        return dataFile;
+    }
+}
@@ -0,0 +1,179 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.Configuration.CacheType;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * <pre>
+ * Read cache of the values encoded in BSON, in front of the data files.
+ *
+ * The values are kept encoded, so a hit skips reading the data file but the value
+ * is still rebuilt for every get, and the callers never share a value object.
+ *
+ * With CacheType.HEAP the encoded values are kept in the Java heap. The cache is
+ * bounded by cacheMaximumBytes if it is set, otherwise by cacheMaximumSize, and
+ * the entries are evicted in LRU order.
+ *
+ * With CacheType.DIRECT one direct buffer of cacheMaximumBytes is allocated out of
+ * the Java heap when the cache is created, and the encoded values are appended to
+ * it as a ring. A value is overwritten when the ring comes around, so the values
+ * are evicted in the order they were put. The cache keeps the positions and the
+ * CRC32 of the values, bounded by cacheMaximumSize. The copy from the slab is not
+ * ordered against the puts of the other threads, so a reader checks the CRC32 of the
+ * copy, and a value overwritten while it was copied is a miss.
+ *
+ * The entry of a key is put under the read lock of its stripe and invalidated
+ * under the write lock, so a stale value is never put after an update.
+ * </pre>
+ */
+public class BsonValueCache {
+
+    private Cache<BinaryKey, byte[]> heapCache;
+    private Cache<BinaryKey, Slot> directCache;
+    private ByteBuffer slab;
+    private int slabSize;
+    // the total bytes reserved in the slab, the offset of the next value is (reserved % slabSize).
+    private AtomicLong reserved = new AtomicLong();
+
+    public BsonValueCache(Configuration configuration) {
+        Preconditions.checkArgument(configuration.getCacheType() != CacheType.NONE);
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().concurrencyLevel(
+                configuration.getConcurrencyLevel());
+        if (configuration.getCacheType() == CacheType.DIRECT) {
+            long maximumBytes = configuration.getCacheMaximumBytes();
+            Preconditions.checkArgument((maximumBytes > 0) && (maximumBytes <= Integer.MAX_VALUE),
+                                        "cacheMaximumBytes of the direct cache: %s", maximumBytes);
+            this.slabSize = (int) maximumBytes;
+            this.slab = ByteBuffer.allocateDirect(slabSize);
+            this.directCache = builder.maximumSize(configuration.getCacheMaximumSize()).build();
+        } else if (configuration.getCacheMaximumBytes() > 0) {
+            this.heapCache = builder.maximumWeight(configuration.getCacheMaximumBytes())
+                    .weigher(new Weigher<BinaryKey, byte[]>() {
+                        @Override
+                        public int weigh(BinaryKey key, byte[] value) {
+                            return value.length;
+                        }
+                    }).build();
+        } else {
+            this.heapCache = builder.maximumSize(configuration.getCacheMaximumSize()).build();
+        }
+    }
+
+    /**
+     * Returns the encoded value of the key, or null if not cached.
+     */
+    public byte[] get(BinaryKey key) {
+        if (heapCache != null)
+            return heapCache.getIfPresent(key);
+
+        Slot slot = directCache.getIfPresent(key);
+        if (slot == null)
+            return null;
+        byte[] bytes = new byte[slot.length];
+        if (isOverwritten(slot)) {
+            directCache.asMap().remove(key, slot);
+            return null;
+        }
+        ByteBuffer buf = slab.duplicate();
+        buf.position(slot.offset);
+        buf.get(bytes);
+        if (getChecksum(bytes) != slot.checksum) {
+            // overwritten by another put while it was copied.
+            directCache.asMap().remove(key, slot);
+            return null;
+        }
+        return bytes;
+    }
+
+    public void put(BinaryKey key, byte[] bytes) {
+        if (heapCache != null) {
+            heapCache.put(key, bytes);
+            return;
+        }
+        if (bytes.length > slabSize)
+            return;
+        long start = reserve(bytes.length);
+        Slot slot = new Slot(start, (int) (start % slabSize), bytes.length, getChecksum(bytes));
+        ByteBuffer buf = slab.duplicate();
+        buf.position(slot.offset);
+        buf.put(bytes);
+        directCache.put(key, slot);
+    }
+
+    /**
+     * Reserves the bytes at the tail of the ring. The value is not wrapped around the end of the slab, so the rest of
+     * the slab is skipped if the value does not fit in it.
+     *
+     * @return the position of the value in the total bytes reserved.
+     */
+    protected long reserve(int length) {
+        while (true) {
+            long current = reserved.get();
+            long start = current;
+            int offset = (int) (current % slabSize);
+            if (offset + length > slabSize) {
+                start += slabSize - offset;
+            }
+            if (reserved.compareAndSet(current, start + length))
+                return start;
+        }
+    }
+
+    protected static int getChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    protected boolean isOverwritten(Slot slot) {
+        return reserved.get() - slot.position > slabSize;
+    }
+
+    public void invalidate(BinaryKey key) {
+        if (heapCache != null) {
+            heapCache.invalidate(key);
+        } else {
+            directCache.invalidate(key);
+        }
+    }
+
+    public void invalidateAll() {
+        if (heapCache != null) {
+            heapCache.invalidateAll();
+        } else {
+            directCache.invalidateAll();
+        }
+    }
+
+    public long size() {
+        return (heapCache != null) ? heapCache.size() : directCache.size();
+    }
+
+    /**
+     * The position of a value in the slab.
+     */
+    protected static class Slot {
+
+        private final long position;
+        private final int offset;
+        private final int length;
+        private final int checksum;
+
+        Slot(long position, int offset, int length, int checksum) {
+            this.position = position;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+}
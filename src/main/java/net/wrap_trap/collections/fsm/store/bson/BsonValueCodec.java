@@ -0,0 +1,98 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Set;
+
+import net.wrap_trap.collections.fsm.codec.ValueCodec;
+import net.wrap_trap.monganez.BSONObjectMapper;
+
+import org.bson.BSONDecoder;
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The default codec, which encodes the value in a BSON document of the key. POJOs are mapped to BSON documents
+ * through BSONObjectMapper.
+ */
+public class BsonValueCodec<V> implements ValueCodec<V> {
+
+    // BSONEncoder keeps the state of encoding, so it is not shared between threads.
+    private ThreadLocal<BSONEncoder> encoder = new ThreadLocal<BSONEncoder>() {
+        @Override
+        protected BSONEncoder initialValue() {
+            return new BSONEncoder();
+        }
+    };
+    private BSONObjectMapper objectMapper = new BSONObjectMapper();
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#encode(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public byte[] encode(String key, V value) {
+        try {
+            return toByteArray(key, value);
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new RuntimeException(ex);
+        } catch (NoSuchMethodException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.codec.ValueCodec#decode(byte[])
+     */
+    @Override
+    public V decode(byte[] bytes) {
+        return rebuildValue(decodeObject(bytes));
+    }
+
+    public BSONObject decodeObject(byte[] bytes) {
+        return new BSONDecoder().readObject(bytes);
+    }
+
+    protected byte[] toByteArray(String key, V v) throws IllegalAccessException, InvocationTargetException,
+            NoSuchMethodException {
+        BSONObject object = objectMapper.createBSONObject(key, v);
+        return encoder.get().encode(object);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected V rebuildValue(BSONObject object) {
+        try {
+            Set<String> keySet = object.keySet();
+            Preconditions.checkArgument(keySet.size() == 1);
+
+            for (String key : keySet) {
+                Object target = object.get(key);
+                Object v = null;
+                if (target instanceof BSONObject) {
+                    v = objectMapper.toObject((BSONObject) target);
+                } else {
+                    v = target;
+                }
+                return (V) v;
+            }
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new RuntimeException(ex);
+        } catch (NoSuchMethodException ex) {
+            throw new RuntimeException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new RuntimeException(ex);
+        } catch (InstantiationException ex) {
+            throw new RuntimeException(ex);
+        }
+        return null;
+    }
+}
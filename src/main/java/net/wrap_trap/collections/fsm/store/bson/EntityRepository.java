@@ -3,17 +3,62 @@ package net.wrap_trap.collections.fsm.store.bson;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
+
+import net.wrap_trap.collections.fsm.store.BinaryKey;
 
 public interface EntityRepository extends Closeable {
 
     BsonDataBlock getDataBlock(BsonDataBlockPosition dataRef) throws IOException;
 
+    /**
+     * Reads the header, the key and the link of the data block, without the body.
+     */
+    BsonDataBlock getDataBlockHeader(BsonDataBlockPosition dataRef) throws IOException;
+
     BsonDataBlockPosition getLastDataBlockPosition(BsonDataBlockPosition start) throws IOException;
 
-    BsonDataBlockPosition writeTo(byte[] bytes) throws IOException;
+    /**
+     * Appends a block of the body as it is stored, with the flags such as COMPRESSED. The link of the block is left
+     * empty.
+     */
+    BsonDataBlockPosition writeTo(BinaryKey key, byte flags, byte[] bytes) throws IOException;
+
+    /**
+     * Appends the blocks of the chains sequentially, and links the blocks in each chain. The link of the last block
+     * in each chain is left empty.
+     */
+    void writeTo(List<BsonDataBlockChain> chains) throws IOException;
 
     void updateDataBlockLink(BsonDataBlock from, BsonDataBlock to) throws IOException;
 
     void updateDataBlockLink(BsonDataBlockPosition from, BsonDataBlockPosition to) throws FileNotFoundException,
             IOException;
-}
\ No newline at end of file
+
+    BsonDataBlockPosition relocate(BsonDataBlock bsonDataBlock) throws IOException;
+
+    void finishRelocation() throws IOException;
+
+    /**
+     * Counts the block as dead bytes of the data file, and flags the block as deleted.
+     */
+    void markDead(BsonDataBlock bsonDataBlock) throws IOException;
+
+    List<SegmentStat> getSegmentStats();
+
+    void deleteDataFile(int fileNumber) throws IOException;
+
+    List<Integer> getDataFileNumbers();
+
+    /**
+     * Reads the data file sequentially from the head, and passes the header of every block to the visitor, including
+     * the deleted blocks.
+     */
+    void scan(int fileNumber, BsonDataBlockVisitor visitor) throws IOException;
+
+    /**
+     * Reads the data file sequentially from the head with the bodies, and passes the blocks which are not flagged
+     * DELETED to the visitor. The blocks appended after the scan has started are not passed.
+     */
+    void scanLiveBlocks(int fileNumber, BsonDataBlockVisitor visitor) throws IOException;
+}
@@ -7,6 +7,22 @@ public interface IndexRepository extends Closeable {
 
     BsonDataBlockPosition getIndexRef(long hashCode);
 
+    long getBucketCount();
+
+    BsonDataBlockPosition getBucketIndexRef(long bucketIndex);
+
+    /**
+     * Returns true if the buckets are split as the entries increase. split() is called only if it returns true.
+     */
+    boolean supportsSplit();
+
+    /**
+     * Splits the next bucket, and returns the index reference of the bucket split.
+     *
+     * @throws IllegalStateException if supportsSplit() returns false.
+     */
+    BsonDataBlockPosition split() throws IOException;
+
     BsonDataBlockPosition getDataPosition(BsonDataBlockPosition indexRef) throws IOException;
 
     void updateIndex(BsonDataBlockPosition indexRef, BsonDataBlockPosition dataRef) throws IOException;
@@ -17,12 +33,8 @@ public interface IndexRepository extends Closeable {
 
     void setEntryCount(int count) throws IOException;
 
-    int getEntryCount() throws IOException;
-
-    void seekIndexHead() throws IOException;
+    int addEntryCount(int delta) throws IOException;
 
-    boolean hasNext() throws IOException;
-
-    BsonDataBlockPosition read() throws IOException;
+    int getEntryCount() throws IOException;
 
 }
\ No newline at end of file
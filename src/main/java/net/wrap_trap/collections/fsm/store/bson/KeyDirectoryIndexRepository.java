@@ -0,0 +1,345 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <pre>
+ * IndexRepository which keeps the key directory in memory instead of the index file.
+ *
+ * The key directory maps the hash code of a key to the position and the size of the
+ * head block of the key, so a key is read by one read of the data file without
+ * reading an index record. Every hash code is a bucket of its own, and the keys of
+ * the same hash code are chained from the head block as the keys in a bucket of the
+ * index file. The buckets are never split.
+ *
+ * The key directory is an open addressing table with linear probing in primitive
+ * arrays, 16 bytes per slot and no object per key. It is never written to disk, and
+ * is rebuilt by BsonStore from the data files at opening.
+ * </pre>
+ */
+public class KeyDirectoryIndexRepository implements IndexRepository {
+
+    protected static Logger logger = LoggerFactory.getLogger(KeyDirectoryIndexRepository.class);
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final long BUCKET_COUNT = 1L << 32; // a bucket per hash code.
+    private static final int FILE_NUMBER_SHIFT = 56;
+    private static final long POINTER_MASK = (1L << FILE_NUMBER_SHIFT) - 1;
+
+    private Lock readLock;
+    private Lock writeLock;
+
+    private int[] hashes;
+    private long[] positions; // (file number << 56) | pointer, 0 for an empty slot.
+    private int[] blockSizes;
+    private int size;
+    private volatile int entryCount;
+
+    public KeyDirectoryIndexRepository() {
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+        allocate(INITIAL_CAPACITY);
+    }
+
+    protected void allocate(int capacity) {
+        this.hashes = new int[capacity];
+        this.positions = new long[capacity];
+        this.blockSizes = new int[capacity];
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getIndexRef(long)
+     */
+    @Override
+    public BsonDataBlockPosition getIndexRef(long hashCode) {
+        return new BsonDataBlockPosition((byte) 0, hashCode);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getBucketCount()
+     */
+    @Override
+    public long getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getBucketIndexRef
+     * (long)
+     */
+    @Override
+    public BsonDataBlockPosition getBucketIndexRef(long bucketIndex) {
+        return getIndexRef(bucketIndex);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.IndexRepository#supportsSplit()
+     */
+    @Override
+    public boolean supportsSplit() {
+        // every hash code has a bucket already.
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.IndexRepository#split()
+     */
+    @Override
+    public BsonDataBlockPosition split() throws IOException {
+        throw new IllegalStateException("The buckets of the key directory are never split.");
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getDataPosition
+     * (net.wrap_trap.collections.fsm.store.bson.BsonDataBlockPosition)
+     */
+    @Override
+    public BsonDataBlockPosition getDataPosition(BsonDataBlockPosition indexRef) throws IOException {
+        int hash = (int) indexRef.getPointer();
+        readLock.lock();
+        try {
+            int slot = find(hash);
+            if (slot < 0)
+                return null;
+            return toDataPosition(slot);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#updateIndex(net
+     * .wrap_trap.collections.fsm.store.bson.BsonDataBlockPosition,
+     * net.wrap_trap.collections.fsm.store.bson.BsonDataBlockPosition)
+     */
+    @Override
+    public void updateIndex(BsonDataBlockPosition indexRef, BsonDataBlockPosition dataRef) throws IOException {
+        if (dataRef.isEmpty()) {
+            clearIndex(indexRef);
+            return;
+        }
+        int hash = (int) indexRef.getPointer();
+        writeLock.lock();
+        try {
+            int slot = find(hash);
+            if (slot < 0) {
+                if (size >= hashes.length * LOAD_FACTOR) {
+                    resize(hashes.length * 2);
+                }
+                slot = ~find(hash);
+                hashes[slot] = hash;
+                size++;
+            }
+            positions[slot] = ((long) (dataRef.getFileNumber() & 0xff) << FILE_NUMBER_SHIFT) | dataRef.getPointer();
+            blockSizes[slot] = dataRef.getBlockSize();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#indexUpdatable
+     * (net.wrap_trap.collections.fsm.store.bson.BsonDataBlockPosition)
+     */
+    @Override
+    public boolean indexUpdatable(BsonDataBlockPosition indexRef) throws IOException {
+        return (getDataPosition(indexRef) == null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#clearIndex(net
+     * .wrap_trap.collections.fsm.store.bson.BsonDataBlockPosition)
+     */
+    @Override
+    public void clearIndex(BsonDataBlockPosition indexRef) throws IOException {
+        int hash = (int) indexRef.getPointer();
+        writeLock.lock();
+        try {
+            int slot = find(hash);
+            if (slot >= 0) {
+                remove(slot);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#setEntryCount
+     * (int)
+     */
+    @Override
+    public synchronized void setEntryCount(int count) throws IOException {
+        this.entryCount = count;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#addEntryCount
+     * (int)
+     */
+    @Override
+    public synchronized int addEntryCount(int delta) throws IOException {
+        this.entryCount += delta;
+        return this.entryCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getEntryCount()
+     */
+    @Override
+    public int getEntryCount() throws IOException {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            allocate(INITIAL_CAPACITY);
+            size = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hash codes which have the chains at this moment.
+     */
+    public int[] getHashes() {
+        readLock.lock();
+        try {
+            int[] live = new int[size];
+            int i = 0;
+            for (int slot = 0; slot < positions.length; slot++) {
+                if (positions[slot] != 0L) {
+                    live[i++] = hashes[slot];
+                }
+            }
+            return live;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int size() {
+        readLock.lock();
+        try {
+            return size;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slot of the hash code, or (-(the empty slot to insert) - 1) if not found.
+     */
+    protected int find(int hash) {
+        int mask = hashes.length - 1;
+        for (int slot = getSlot(hash, mask);; slot = (slot + 1) & mask) {
+            if (positions[slot] == 0L)
+                return ~slot;
+            if (hashes[slot] == hash)
+                return slot;
+        }
+    }
+
+    /**
+     * Removes the slot, and shifts the following slots backward so that no slot is left unreachable.
+     */
+    protected void remove(int slot) {
+        int mask = hashes.length - 1;
+        int hole = slot;
+        for (int i = (hole + 1) & mask; positions[i] != 0L; i = (i + 1) & mask) {
+            int home = getSlot(hashes[i], mask);
+            // the slot stays if its home is cyclically in (hole, i].
+            boolean stays = (hole <= i) ? ((hole < home) && (home <= i)) : ((hole < home) || (home <= i));
+            if (!stays) {
+                hashes[hole] = hashes[i];
+                positions[hole] = positions[i];
+                blockSizes[hole] = blockSizes[i];
+                hole = i;
+            }
+        }
+        hashes[hole] = 0;
+        positions[hole] = 0L;
+        blockSizes[hole] = 0;
+        size--;
+    }
+
+    protected void resize(int capacity) {
+        if (hashes.length >= MAXIMUM_CAPACITY)
+            throw new IllegalStateException("The key directory reached the maximum capacity.");
+        int[] oldHashes = hashes;
+        long[] oldPositions = positions;
+        int[] oldBlockSizes = blockSizes;
+        allocate(capacity);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldPositions[i] != 0L) {
+                int slot = ~find(oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                positions[slot] = oldPositions[i];
+                blockSizes[slot] = oldBlockSizes[i];
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("resize, capacity:{}, size:{}", capacity, size);
+        }
+    }
+
+    protected BsonDataBlockPosition toDataPosition(int slot) {
+        long position = positions[slot];
+        return new BsonDataBlockPosition((byte) (position >>> FILE_NUMBER_SHIFT), position & POINTER_MASK,
+                                         blockSizes[slot]);
+    }
+
+    /**
+     * Spreads the hash code, since the lower bits of String#hashCode() are biased for similar keys.
+     */
+    protected static int getSlot(int hash, int mask) {
+        int h = hash * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
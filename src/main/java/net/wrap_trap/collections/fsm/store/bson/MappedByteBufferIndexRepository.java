@@ -0,0 +1,148 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.wrap_trap.collections.fsm.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <pre>
+ * IndexRepository which maps the whole index file into memory.
+ *
+ * The structure of the index file is the same as RandomAccessFileIndexRepository,
+ * so an index file written by either repository can be opened by the other.
+ * The header is read and written by RandomAccessFileIndexRepository on open,
+ * and all the accesses to the index records after that are plain memory reads/writes.
+ * Only the absolute get/put methods of the buffers are used, so the buffers are shared
+ * by multiple threads.
+ *
+ * A MappedByteBuffer is indexed by int, so the index file is mapped in the regions
+ * of regionSize bytes. Each region overlaps the next one by the size of an index
+ * record, so a record is always read and written in one region, and the overlapped
+ * pages are shared by the two mappings. The regions are replaced when the index
+ * file is extended.
+ * </pre>
+ */
+public class MappedByteBufferIndexRepository extends RandomAccessFileIndexRepository {
+
+    protected static final int DEFAULT_REGION_SIZE = 1 << 30; // 1GB
+
+    protected static Logger logger = LoggerFactory.getLogger(MappedByteBufferIndexRepository.class);
+
+    private int regionSize;
+    private volatile Regions regions;
+
+    public MappedByteBufferIndexRepository(Configuration configuration, WriteAheadLog writeAheadLog)
+            throws IOException {
+        this(configuration, writeAheadLog, DEFAULT_REGION_SIZE);
+    }
+
+    protected MappedByteBufferIndexRepository(Configuration configuration, WriteAheadLog writeAheadLog,
+                                              int regionSize) throws IOException {
+        super(configuration, writeAheadLog);
+        Preconditions.checkArgument((regionSize > 0) && (regionSize <= DEFAULT_REGION_SIZE), "regionSize: %s",
+                                    regionSize);
+        this.regionSize = regionSize;
+        map();
+    }
+
+    protected void map() throws IOException {
+        FileChannel channel = loadIndexFile().getChannel();
+        long length = channel.size();
+        int count = (int) ((length + regionSize - 1) / regionSize);
+        MappedByteBuffer[] buffers = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * regionSize;
+            long size = Math.min((long) regionSize + INDEX_SIZE_PER_RECORD, length - start);
+            buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+        this.regions = new Regions(buffers, length);
+        if (logger.isDebugEnabled()) {
+            logger.debug("map, length:{}, regions:{}", length, count);
+        }
+    }
+
+    @Override
+    protected void extendIndexFile(long bucketCount) throws IOException {
+        super.extendIndexFile(bucketCount);
+        // the regions are mapped after the header is loaded by the constructor of the super class.
+        if ((regions != null) && (regions.length < loadIndexFile().length())) {
+            map();
+        }
+    }
+
+    @Override
+    public BsonDataBlockPosition getDataPosition(BsonDataBlockPosition indexRef) throws IOException {
+        long pos = indexRef.getPointer();
+        if (regions.length < pos + INDEX_SIZE_PER_RECORD)
+            return null;
+        return readAt(pos);
+    }
+
+    @Override
+    public void close() {
+        if (regions != null) {
+            for (MappedByteBuffer buffer : regions.buffers) {
+                buffer.force();
+            }
+            regions = null;
+        }
+        super.close();
+    }
+
+    @Override
+    public boolean indexUpdatable(BsonDataBlockPosition indexRef) throws IOException {
+        long pos = indexRef.getPointer();
+        if (regions.length < pos + INDEX_SIZE_PER_RECORD) {
+            return true;
+        }
+        return (readAt(pos) == null);
+    }
+
+    @Override
+    protected ByteBuffer read(long pos, int size) throws IOException {
+        MappedByteBuffer region = regions.buffers[(int) (pos / regionSize)];
+        int offset = (int) (pos % regionSize);
+        if (offset + size > region.capacity()) {
+            // wider than the overlap of the regions.
+            return super.read(pos, size);
+        }
+        ByteBuffer buf = region.duplicate();
+        buf.limit(offset + size).position(offset);
+        return buf.slice();
+    }
+
+    @Override
+    protected void write(long pos, ByteBuffer buf) throws IOException {
+        MappedByteBuffer region = regions.buffers[(int) (pos / regionSize)];
+        int offset = (int) (pos % regionSize);
+        if (getWriteAheadLog().isEnabled() || (offset + buf.remaining() > region.capacity())) {
+            // the logged updates are written through FileChannel, which shares the pages with the mappings.
+            super.write(pos, buf);
+            return;
+        }
+        ByteBuffer dest = region.duplicate();
+        dest.position(offset);
+        dest.put(buf);
+    }
+
+    /**
+     * The mapped regions and the length of the index file covered by them, which are replaced together on extension.
+     */
+    private static final class Regions {
+        private final MappedByteBuffer[] buffers;
+        private final long length;
+
+        Regions(MappedByteBuffer[] buffers, long length) {
+            this.buffers = buffers;
+            this.length = length;
+        }
+    }
+}
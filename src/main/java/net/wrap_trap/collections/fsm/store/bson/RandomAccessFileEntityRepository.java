@@ -1,13 +1,35 @@
 package net.wrap_trap.collections.fsm.store.bson;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+import net.wrap_trap.collections.fsm.store.StoreMetrics;
+import net.wrap_trap.collections.fsm.store.bson.utils.FileChannels;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,36 +40,119 @@ import com.google.common.io.Closeables;
 /**
  * <pre>
  *  data format
- * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
- * |     a.    |     b.    |c.|           d.          |  
- * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |     a.    |b.|     c.    |  d. |  e.   |   f.   |g.|           h.          |
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
  * 
- * a. a data length(from b. to d.)[integer]
- * b. data[byte[]]
- * c. a file number of next data.[byte]
- * d. a file position of next data.[long]
+ * a. a data length(from b. to h.)[integer]
+ * b. flags, DELETED(0x01) is set when the block is removed from the chain,
+ *    COMPRESSED(0x02) is set when f. has been compressed by BlockCompressor.[byte]
+ * c. a hash code of the key.[integer]
+ * d. a length of the key.[unsigned short]
+ * e. the key encoded in UTF-8.[byte[]]
+ * f. data[byte[]]
+ * g. a file number of next data.[byte]
+ * h. a file position of next data.[long]
+ * 
+ * b. to e. are the block header. The blocks in a chain can be told from
+ * the key without reading f.
+ * 
+ * The data files are read and written with the positional I/O of FileChannel,
+ * so the blocks can be read from multiple threads while new blocks are appended.
+ * The appends are serialized by this repository.
+ * 
+ * The data files are named "N.dat", N is the file number from 1 to 255.
+ * The blocks removed from the chains remain in the data files as dead bytes
+ * until the data files are compacted. They are flagged DELETED, so the live
+ * blocks can be told by scanning the data files without the index.
+ *
+ *  hint format
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |   magic   |v.|   data file length    |  header
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |1 |b.|     c.    |        offset         |  length   |  d. |  e.   |  block record
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |2 |        offset         |  dead record
+ * +--+--+--+--+--+--+--+--+--+--+
+ *
+ * A data file is sealed when no more blocks are appended to it, and the hint file
+ * "N.hint" is written with a block record for every block in the data file. The
+ * blocks which die after sealing are appended to the hint file as dead records
+ * through the write-ahead log, so the live blocks of a sealed data file can be told
+ * by reading the hint file only. The hint file is ignored if the length of the data
+ * file differs from the one in the header, and is deleted when the data file is
+ * written again.
  * </pre>
  */
 public class RandomAccessFileEntityRepository implements EntityRepository {
 
     private static final String DATA_FILE_SUFFIX = ".dat";
+    private static final Pattern DATA_FILE_NAME_PATTERN = Pattern.compile("(\\d+)\\" + DATA_FILE_SUFFIX);
+    // the dead bytes of the data files, and the active data file number.
+    private static final String DEAD_BYTES_FILE_NAME = "dead.stat";
+    private static final int MAX_DATA_FILE_NUMBER = 255; // a file number is stored in a byte as unsigned.
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final String HINT_FILE_SUFFIX = ".hint";
+    private static final Pattern HINT_FILE_NAME_PATTERN = Pattern.compile("(\\d+)\\" + HINT_FILE_SUFFIX + "(\\.tmp)?");
+    private static final int HINT_MAGIC = 0x46534d48; // "FSMH"
+    private static final byte HINT_VERSION = 1;
+    private static final byte HINT_BLOCK_RECORD = 1;
+    private static final byte HINT_DEAD_RECORD = 2;
+    private static final int HINT_DEAD_RECORD_SIZE = 9;
+
+    /**
+     * the targets of the write-ahead log for the hint files are (HINT_TARGET_OFFSET + the file number), next to the
+     * targets of the data files.
+     */
+    public static final int HINT_TARGET_OFFSET = MAX_DATA_FILE_NUMBER + 1;
 
     public static final int DATA_LENGTH_FIELD_SIZE = 4; // (a.) size of integer.
+    public static final int BLOCK_HEADER_SIZE = 7; // (b. to d.)
+    public static final int MAX_KEY_LENGTH = 0xffff;
     public static final int NEXT_DATA_POINTER_SIZE = 9;
 
     protected static Logger logger = LoggerFactory.getLogger(RandomAccessFileEntityRepository.class);
 
-    private List<RandomAccessFile> dataFileList = new ArrayList<RandomAccessFile>();
+    private ConcurrentMap<Integer, RandomAccessFile> dataFileMap = new ConcurrentHashMap<Integer, RandomAccessFile>();
+    private Map<Integer, Long> deadBytesMap = new TreeMap<Integer, Long>();
+    private Map<Integer, RandomAccessFile> hintFileMap = new HashMap<Integer, RandomAccessFile>();
+    private Map<Integer, Long> hintSizeMap = new HashMap<Integer, Long>(); // the sizes of the valid hint files.
+    private int activeFileNumber = -1;
+    private int savedActiveFileNumber = -1; // the active data file number saved at the last closing.
+    private int relocationFileNumber = 0;
+    private ByteBuffer writeBuffer;
 
     private Configuration configuration;
+    private WriteAheadLog writeAheadLog;
+    private StoreMetrics metrics;
 
-    public RandomAccessFileEntityRepository(Configuration configuration) {
+    public RandomAccessFileEntityRepository(Configuration configuration, WriteAheadLog writeAheadLog,
+                                            StoreMetrics metrics) {
         this.configuration = configuration;
+        this.writeAheadLog = writeAheadLog;
+        this.metrics = metrics;
+        loadDeadBytes();
+        loadHints();
     }
 
-    public void close() {
-        for (RandomAccessFile file : dataFileList) {
-            Closeables.closeQuietly(file);
+    public synchronized void close() throws IOException {
+        try {
+            if (new File(configuration.getDirPath()).exists()) {
+                // the files being written are sealed, so they are not scanned at the next opening.
+                writeHintFile(getActiveFileNumber());
+                writeHintFile(relocationFileNumber);
+            }
+        } finally {
+            for (RandomAccessFile file : dataFileMap.values()) {
+                Closeables.closeQuietly(file);
+            }
+            dataFileMap.clear();
+            for (RandomAccessFile file : hintFileMap.values()) {
+                Closeables.closeQuietly(file);
+            }
+            hintFileMap.clear();
+            saveDeadBytes();
         }
     }
 
@@ -61,12 +166,8 @@ public class RandomAccessFileEntityRepository implements EntityRepository {
      */
     @Override
     public void updateDataBlockLink(BsonDataBlock from, BsonDataBlock to) throws IOException {
-        RandomAccessFile dataFile = getDataFile(from.getCurrentFileNumber());
-        dataFile.seek(from.getCurrentPointer());
-        int length = dataFile.readInt();
-        dataFile.seek(from.getCurrentPointer() + DATA_LENGTH_FIELD_SIZE + length - NEXT_DATA_POINTER_SIZE);
-        dataFile.writeByte(to.getNextFileNumber());
-        dataFile.writeLong(to.getNextPointer());
+        writeLink(from.getCurrentFileNumber(), from.getCurrentPointer() + DATA_LENGTH_FIELD_SIZE +
+                                               from.getDataLength() - NEXT_DATA_POINTER_SIZE, to.getNextPosition());
     }
 
     /*
@@ -80,13 +181,11 @@ public class RandomAccessFileEntityRepository implements EntityRepository {
     @Override
     public void updateDataBlockLink(BsonDataBlockPosition from, BsonDataBlockPosition to) throws FileNotFoundException,
             IOException {
-        RandomAccessFile f = getDataFile(from.getFileNumber());
-        f.seek(from.getPointer());
-        int dataSize = f.readInt();
-
-        f.seek(from.getPointer() + DATA_LENGTH_FIELD_SIZE + dataSize - NEXT_DATA_POINTER_SIZE);
-        f.writeByte(to.getFileNumber());
-        f.writeLong(to.getPointer());
+        FileChannel channel = getDataChannel(from.getFileNumber());
+        int dataSize = FileChannels.read(channel, from.getPointer(), DATA_LENGTH_FIELD_SIZE).getInt();
+        metrics.recordBytesRead(toFileNumber(from.getFileNumber()), DATA_LENGTH_FIELD_SIZE);
+        writeLink(from.getFileNumber(), from.getPointer() + DATA_LENGTH_FIELD_SIZE + dataSize - NEXT_DATA_POINTER_SIZE,
+                  to);
         if (logger.isTraceEnabled()) {
             logger.trace("\tupdate to data file, dataPos:{}, nextDataPos:{}, nextDataFileNumber:{}",
                          new Object[] { from.getPointer(), to.getPointer(), to.getFileNumber() });
@@ -106,17 +205,15 @@ public class RandomAccessFileEntityRepository implements EntityRepository {
 
         while (true) {
             Preconditions.checkArgument((current.getPointer() >= 0L), "dataPos < 0 dataPos: %d", current.getPointer());
-            RandomAccessFile f = getDataFile(current.getFileNumber());
-            f.seek(current.getPointer());
-            int dataSize = f.readInt();
-            f.seek(current.getPointer() + DATA_LENGTH_FIELD_SIZE + dataSize - NEXT_DATA_POINTER_SIZE);
-            byte nextFileNumber = f.readByte();
-            long nextDataPos = f.readLong();
-            BsonDataBlockPosition tmpRef = new BsonDataBlockPosition(nextFileNumber, nextDataPos);
+            FileChannel channel = getDataChannel(current.getFileNumber());
+            int dataSize = FileChannels.read(channel, current.getPointer(), DATA_LENGTH_FIELD_SIZE).getInt();
+            metrics.recordBytesRead(toFileNumber(current.getFileNumber()), DATA_LENGTH_FIELD_SIZE);
+            BsonDataBlockPosition tmpRef = readLink(current.getFileNumber(), current.getPointer() + DATA_LENGTH_FIELD_SIZE + dataSize -
+                                                             NEXT_DATA_POINTER_SIZE);
             if (tmpRef.isEmpty()) {
                 return current;
             } else {
-                current = new BsonDataBlockPosition(nextFileNumber, nextDataPos);
+                current = tmpRef;
             }
         }
     }
@@ -130,85 +227,841 @@ public class RandomAccessFileEntityRepository implements EntityRepository {
      */
     @Override
     public BsonDataBlock getDataBlock(BsonDataBlockPosition dataRef) throws IOException {
+        return readDataBlock(dataRef, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#getDataBlockHeader
+     * (net.wrap_trap.collections.fsm.store.bson.BsonDataBlockPosition)
+     */
+    @Override
+    public BsonDataBlock getDataBlockHeader(BsonDataBlockPosition dataRef) throws IOException {
+        return readDataBlock(dataRef, false);
+    }
+
+    protected BsonDataBlock readDataBlock(BsonDataBlockPosition dataRef, boolean withBody) throws IOException {
         byte fileNumber = dataRef.getFileNumber();
         long dataPos = dataRef.getPointer();
 
-        RandomAccessFile dataFile = getDataFile(fileNumber);
-        dataFile.seek(dataPos);
-        int dataLength = dataFile.readInt();
-        int bodySize = dataLength - NEXT_DATA_POINTER_SIZE;
-        byte[] buf = new byte[bodySize];
-        int read = dataFile.read(buf);
-        Preconditions.checkState((read == bodySize), "failed to read data body.");
+        FileChannel channel = getDataChannel(fileNumber);
+        if (withBody && (dataRef.getBlockSize() > 0)) {
+            // the whole block at once, since the size is known.
+            metrics.recordBytesRead(toFileNumber(fileNumber), dataRef.getBlockSize());
+            return toDataBlock(FileChannels.read(channel, dataPos, dataRef.getBlockSize()), fileNumber, dataPos, true);
+        }
+        ByteBuffer header = FileChannels.read(channel, dataPos, DATA_LENGTH_FIELD_SIZE + BLOCK_HEADER_SIZE);
+        int dataLength = header.getInt();
+        byte flags = getPendingFlags(fileNumber, dataPos, header.get());
+        int keyHash = header.getInt();
+        byte[] keyBytes = new byte[header.getShort() & MAX_KEY_LENGTH];
+
+        long keyPos = dataPos + DATA_LENGTH_FIELD_SIZE + BLOCK_HEADER_SIZE;
+        long linkPos = dataPos + DATA_LENGTH_FIELD_SIZE + dataLength - NEXT_DATA_POINTER_SIZE;
+        byte[] body = null;
+        BsonDataBlockPosition nextRef = null;
+        if (withBody) {
+            // the key, the body and the link at once.
+            ByteBuffer buf = FileChannels.read(channel, keyPos, dataLength - BLOCK_HEADER_SIZE);
+            buf.get(keyBytes);
+            body = new byte[buf.remaining() - NEXT_DATA_POINTER_SIZE];
+            buf.get(body);
+            nextRef = getPendingLink(fileNumber, linkPos, toPosition(buf));
+            metrics.recordBytesRead(toFileNumber(fileNumber), DATA_LENGTH_FIELD_SIZE + dataLength);
+        } else {
+            FileChannels.read(channel, keyPos, ByteBuffer.wrap(keyBytes));
+            metrics.recordBytesRead(toFileNumber(fileNumber), DATA_LENGTH_FIELD_SIZE + BLOCK_HEADER_SIZE +
+                                                              keyBytes.length);
+            nextRef = readLink(fileNumber, linkPos);
+        }
+        return new BsonDataBlock(dataLength, flags, keyHash, keyBytes, body, dataPos, fileNumber,
+                                 nextRef.getPointer(), nextRef.getFileNumber());
+    }
+
+    /**
+     * Reads the block from the buffer which holds the whole block from the position.
+     */
+    protected BsonDataBlock toDataBlock(ByteBuffer buf, byte fileNumber, long dataPos, boolean withBody) {
+        int dataLength = buf.getInt();
+        byte flags = getPendingFlags(fileNumber, dataPos, buf.get());
+        int keyHash = buf.getInt();
+        byte[] keyBytes = new byte[buf.getShort() & MAX_KEY_LENGTH];
+        buf.get(keyBytes);
+        int bodySize = dataLength - BLOCK_HEADER_SIZE - keyBytes.length - NEXT_DATA_POINTER_SIZE;
+        byte[] body = null;
+        if (withBody) {
+            body = new byte[bodySize];
+            buf.get(body);
+        } else {
+            buf.position(buf.position() + bodySize);
+        }
+        long linkPos = dataPos + DATA_LENGTH_FIELD_SIZE + dataLength - NEXT_DATA_POINTER_SIZE;
+        BsonDataBlockPosition nextRef = getPendingLink(fileNumber, linkPos, toPosition(buf));
+        return new BsonDataBlock(dataLength, flags, keyHash, keyBytes, body, dataPos, fileNumber,
+                                 nextRef.getPointer(), nextRef.getFileNumber());
+    }
+
+    /**
+     * Returns the link which has been updated but not written to the data file yet, or the link read from the file.
+     */
+    protected BsonDataBlockPosition getPendingLink(byte fileNumber, long linkPos, BsonDataBlockPosition link) {
+        byte[] pending = writeAheadLog.getPending(toFileNumber(fileNumber), linkPos);
+        return (pending == null) ? link : toPosition(ByteBuffer.wrap(pending));
+    }
+
+    /**
+     * Returns the flags which have been updated by markDead() but not written to the data file yet, or the flags read
+     * from the file.
+     */
+    protected byte getPendingFlags(byte fileNumber, long dataPos, byte flags) {
+        byte[] pending = writeAheadLog.getPending(toFileNumber(fileNumber), dataPos + DATA_LENGTH_FIELD_SIZE);
+        return (pending == null) ? flags : pending[0];
+    }
+
+    protected BsonDataBlockPosition readLink(byte fileNumber, long linkPos) throws IOException {
+        byte[] pending = writeAheadLog.getPending(toFileNumber(fileNumber), linkPos);
+        if (pending != null)
+            return toPosition(ByteBuffer.wrap(pending));
+        metrics.recordBytesRead(toFileNumber(fileNumber), NEXT_DATA_POINTER_SIZE);
+        return toPosition(FileChannels.read(getDataChannel(fileNumber), linkPos, NEXT_DATA_POINTER_SIZE));
+    }
 
-        byte nextFileNumber = dataFile.readByte();
-        long nextDataPos = dataFile.readLong();
-        return new BsonDataBlock(buf, dataPos, fileNumber, nextDataPos, nextFileNumber);
+    /**
+     * Updates the link in place through the write-ahead log.
+     */
+    protected void writeLink(byte fileNumber, long linkPos, BsonDataBlockPosition nextRef) throws IOException {
+        FileChannel channel = getDataChannel(fileNumber);
+        ByteBuffer buf = ByteBuffer.allocate(NEXT_DATA_POINTER_SIZE);
+        buf.put(nextRef.getFileNumber()).putLong(nextRef.getPointer()).flip();
+        if (!writeAheadLog.log(channel, toFileNumber(fileNumber), linkPos, buf)) {
+            FileChannels.write(channel, linkPos, buf);
+        }
+        metrics.recordBytesWritten(toFileNumber(fileNumber), NEXT_DATA_POINTER_SIZE);
     }
 
-    protected String getDataFilePath(byte fileNumber) {
+    protected BsonDataBlockPosition toPosition(ByteBuffer buf) {
+        return new BsonDataBlockPosition(buf.get(), buf.getLong());
+    }
+
+    protected String getDataFilePath(int fileNumber) {
+        return getDataFilePath(configuration, fileNumber);
+    }
+
+    public static String getDataFilePath(Configuration configuration, int fileNumber) {
         return configuration.getDirPath() + File.separator + Integer.toString(fileNumber) + DATA_FILE_SUFFIX;
     }
 
+    protected FileChannel getDataChannel(byte dataFileNumber) throws FileNotFoundException {
+        return getDataFile(dataFileNumber).getChannel();
+    }
+
     protected RandomAccessFile getDataFile(byte dataFileNumber) throws FileNotFoundException {
-        if (dataFileNumber == 0) {
-            // init.
-            String dataFilePath = getDataFilePath((byte) 1);
-            RandomAccessFile dataFile = new RandomAccessFile(dataFilePath, "rw");
-            dataFileList.add(0, dataFile);
+        int fileNumber = toFileNumber(dataFileNumber);
+        RandomAccessFile dataFile = dataFileMap.get(fileNumber);
+        if (dataFile != null)
+            return dataFile;
+        synchronized (this) {
+            dataFile = dataFileMap.get(fileNumber);
+            if (dataFile != null)
+                return dataFile;
+            File file = new File(getDataFilePath(fileNumber));
+            if (!file.exists())
+                // don't create the data file which has been deleted by compaction.
+                throw new FileNotFoundException(file.getPath());
+            dataFile = new RandomAccessFile(file, "rw");
+            dataFileMap.put(fileNumber, dataFile);
             return dataFile;
         }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#writeTo(net
+     * .wrap_trap.collections.fsm.store.BinaryKey, byte, byte[])
+     */
+    @Override
+    public synchronized BsonDataBlockPosition writeTo(BinaryKey key, byte flags, byte[] bytes) throws IOException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("writeTo, key:{}, flags:{}, bytes:{}", new Object[] { key, flags, bytes });
+        }
+        byte[] keyBytes = checkKey(key.getBytes());
+        int blockSize = getBlockSize(keyBytes.length, bytes.length);
+        activeFileNumber = prepareDataFile(getActiveFileNumber(), blockSize);
+        return append(activeFileNumber, flags, key.getHash(), keyBytes, bytes,
+                      new BsonDataBlockPosition((byte) 0, 0L));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#writeTo(java
+     * .util.List)
+     */
+    @Override
+    public synchronized void writeTo(List<BsonDataBlockChain> chains) throws IOException {
+        int from = 0;
+        while (from < chains.size()) {
+            activeFileNumber = prepareDataFile(getActiveFileNumber(), getChainSize(chains.get(from)));
+            FileChannel channel = getDataChannel((byte) activeFileNumber);
+            long dataPos = channel.size();
+
+            // the chains which the data file has room for are written at once.
+            long end = dataPos + getChainSize(chains.get(from));
+            int to = from + 1;
+            while ((to < chains.size()) && (end + getChainSize(chains.get(to)) <= configuration.getDataFileSize())) {
+                end += getChainSize(chains.get(to));
+                to++;
+            }
+            // the range is reserved by the lock of this repository, and written in the chunks of the write buffer.
+            ByteBuffer buf = getWriteBuffer();
+            long writePos = dataPos;
+            long pos = dataPos;
+            for (BsonDataBlockChain chain : chains.subList(from, to)) {
+                for (int i = 0; i < chain.size(); i++) {
+                    byte[] keyBytes = chain.getKeyBytes(i);
+                    byte[] body = chain.getBody(i);
+                    int blockSize = getBlockSize(keyBytes.length, body.length);
+                    if (blockSize > buf.remaining()) {
+                        writePos = flush(channel, writePos, buf);
+                    }
+                    BsonDataBlockPosition nextRef = new BsonDataBlockPosition((byte) 0, 0L);
+                    if (i + 1 < chain.size()) {
+                        // the next block follows this one.
+                        nextRef = new BsonDataBlockPosition((byte) activeFileNumber, pos + blockSize);
+                    }
+                    if (blockSize > buf.capacity()) {
+                        // a block larger than the write buffer is written by itself.
+                        ByteBuffer large = ByteBuffer.allocate(blockSize);
+                        putBlock(large, chain.getFlags(i), chain.getKey(i).getHash(), keyBytes, body, nextRef);
+                        writePos = flush(channel, writePos, large);
+                    } else {
+                        putBlock(buf, chain.getFlags(i), chain.getKey(i).getHash(), keyBytes, body, nextRef);
+                    }
+                    BsonDataBlockPosition current = new BsonDataBlockPosition((byte) activeFileNumber, pos,
+                                                                              blockSize);
+                    if (i == 0) {
+                        chain.setHead(current);
+                    }
+                    chain.setLast(current);
+                    pos += blockSize;
+                }
+            }
+            flush(channel, writePos, buf);
+            writeAheadLog.appended(channel);
+            metrics.recordBytesWritten(activeFileNumber, end - dataPos);
+            if (logger.isTraceEnabled()) {
+                logger.trace("\twrite chains to data file, fileNumber:{}, dataPos:{}, chains:{}, length:{}",
+                             new Object[] { activeFileNumber, dataPos, to - from, end - dataPos });
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * Writes the bytes put into the buffer at the position, and clears the buffer.
+     *
+     * @return the position next to the bytes written.
+     */
+    protected long flush(FileChannel channel, long pos, ByteBuffer buf) throws IOException {
+        buf.flip();
+        long next = pos + buf.remaining();
+        FileChannels.write(channel, pos, buf);
+        buf.clear();
+        return next;
+    }
+
+    /**
+     * Returns the buffer reused by writeTo(List), which is called under the lock of this repository.
+     */
+    protected ByteBuffer getWriteBuffer() {
+        if (writeBuffer == null) {
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+        writeBuffer.clear();
+        return writeBuffer;
+    }
 
-        int idx = dataFileNumber - 1;
-        if (dataFileNumber <= dataFileList.size())
-            return dataFileList.get(idx);
-        String dataFilePath = getDataFilePath(dataFileNumber);
-        RandomAccessFile dataFile = new RandomAccessFile(dataFilePath, "rw");
-        dataFileList.add(idx, dataFile);
-        return dataFile;
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#relocate(net
+     * .wrap_trap.collections.fsm.store.bson.BsonDataBlock)
+     */
+    @Override
+    public synchronized BsonDataBlockPosition relocate(BsonDataBlock bsonDataBlock) throws IOException {
+        Preconditions.checkArgument(bsonDataBlock.hasBody(), "the body of data block has not been read.");
+        relocationFileNumber = prepareDataFile(relocationFileNumber, getBlockSize(bsonDataBlock));
+        // the body is copied as it is stored, so a compressed body is never decompressed.
+        BsonDataBlockPosition newRef = append(relocationFileNumber, bsonDataBlock.getFlags(),
+                                              bsonDataBlock.getKeyHash(), bsonDataBlock.getKeyBytes(),
+                                              bsonDataBlock.getStoredBody(), bsonDataBlock.getNextPosition());
+        markDead(bsonDataBlock);
+        return newRef;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.EntityRepository#
+     * finishRelocation()
+     */
+    @Override
+    public synchronized void finishRelocation() throws IOException {
+        try {
+            seal(relocationFileNumber);
+        } finally {
+            relocationFileNumber = 0;
+        }
     }
 
-    protected RandomAccessFile getLastDataFile() throws FileNotFoundException {
-        return getDataFile(getLastDataFileNumber());
+    /**
+     * Returns the data file number which has the room for the block of blockSize. A new data file is created if the
+     * specified one is full, but a data file is never left empty even if the block is larger than the data file size.
+     */
+    protected int prepareDataFile(int fileNumber, int blockSize) throws IOException {
+        if (fileNumber > 0) {
+            long dataPos = getDataChannel((byte) fileNumber).size();
+            if ((dataPos == 0) || ((dataPos + blockSize) <= configuration.getDataFileSize())) {
+                if (hintSizeMap.containsKey(fileNumber)) {
+                    // the data file sealed at closing is written again.
+                    deleteHintFile(fileNumber);
+                }
+                return fileNumber;
+            }
+            seal(fileNumber);
+        }
+        int newFileNumber = allocateFileNumber();
+        deleteHintFile(newFileNumber);
+        RandomAccessFile dataFile = new RandomAccessFile(getDataFilePath(newFileNumber), "rw");
+        dataFileMap.put(newFileNumber, dataFile);
+        if (logger.isTraceEnabled()) {
+            logger.trace("\tcreate data file, fileNumber:{}", newFileNumber);
+        }
+        return newFileNumber;
     }
 
-    public BsonDataBlockPosition writeTo(byte[] bytes) throws IOException {
+    protected BsonDataBlockPosition append(int fileNumber, byte flags, int keyHash, byte[] keyBytes, byte[] bytes,
+                                           BsonDataBlockPosition nextRef) throws IOException {
+        int length = getBlockSize(keyBytes.length, bytes.length) - DATA_LENGTH_FIELD_SIZE;
+        FileChannel channel = getDataChannel((byte) fileNumber);
+        long dataPos = channel.size();
+
+        ByteBuffer buf = ByteBuffer.allocate(DATA_LENGTH_FIELD_SIZE + length);
+        putBlock(buf, flags, keyHash, keyBytes, bytes, nextRef);
+        buf.flip();
+        FileChannels.write(channel, dataPos, buf);
+        writeAheadLog.appended(channel);
+        metrics.recordBytesWritten(fileNumber, DATA_LENGTH_FIELD_SIZE + length);
+
         if (logger.isTraceEnabled()) {
-            logger.trace("writeTo, bytes:{}", bytes);
+            logger.trace("\twrite to data file, fileNumber:{}, dataPos:{}, length:{}",
+                         new Object[] { fileNumber, dataPos, DATA_LENGTH_FIELD_SIZE + length });
+        }
+        return new BsonDataBlockPosition((byte) fileNumber, dataPos, DATA_LENGTH_FIELD_SIZE + length);
+    }
+
+    protected void putBlock(ByteBuffer buf, byte flags, int keyHash, byte[] keyBytes, byte[] bytes,
+                            BsonDataBlockPosition nextRef) {
+        buf.putInt(getBlockSize(keyBytes.length, bytes.length) - DATA_LENGTH_FIELD_SIZE);
+        buf.put(flags);
+        buf.putInt(keyHash);
+        buf.putShort((short) keyBytes.length);
+        buf.put(keyBytes);
+        buf.put(bytes);
+        buf.put(nextRef.getFileNumber()); // the file number of next data.
+        buf.putLong(nextRef.getPointer()); // the file position of next data.
+    }
+
+    protected byte[] checkKey(byte[] keyBytes) {
+        Preconditions.checkArgument((keyBytes.length <= MAX_KEY_LENGTH), "key is too long, length: %d",
+                                    keyBytes.length);
+        return keyBytes;
+    }
+
+    protected int getChainSize(BsonDataBlockChain chain) {
+        int size = 0;
+        for (int i = 0; i < chain.size(); i++) {
+            size += getBlockSize(checkKey(chain.getKeyBytes(i)).length, chain.getBody(i).length);
+        }
+        return size;
+    }
+
+    protected int getBlockSize(int keyLength, int bodySize) {
+        return DATA_LENGTH_FIELD_SIZE + BLOCK_HEADER_SIZE + keyLength + bodySize + NEXT_DATA_POINTER_SIZE;
+    }
+
+    protected int getBlockSize(BsonDataBlock bsonDataBlock) {
+        return DATA_LENGTH_FIELD_SIZE + bsonDataBlock.getDataLength();
+    }
+
+    /**
+     * Returns the lowest number which is not used by any data file. The numbers are reused after the data files are
+     * deleted by compaction, since a file number is stored in a byte.
+     */
+    protected int allocateFileNumber() throws IOException {
+        for (int i = 1; i <= MAX_DATA_FILE_NUMBER; i++) {
+            if (!dataFileMap.containsKey(i) && !new File(getDataFilePath(i)).exists()) {
+                return i;
+            }
+        }
+        throw new IOException(String.format("The number of data files reached the limit: %d", MAX_DATA_FILE_NUMBER));
+    }
+
+    /**
+     * Returns the data file number which new data are appended to, or 0 if no data file exists. After opening, the
+     * data file which was being written at closing is used at first, see findActiveFileNumber().
+     */
+    protected int getActiveFileNumber() {
+        if (activeFileNumber < 0) {
+            activeFileNumber = findActiveFileNumber();
+            if (logger.isDebugEnabled()) {
+                logger.debug("activeFileNumber:{}, savedActiveFileNumber:{}", activeFileNumber, savedActiveFileNumber);
+            }
+        }
+        return activeFileNumber;
+    }
+
+    /**
+     * Finds the data file which was being written at closing. The numbers are reused by compaction, so it is not
+     * always the largest one. Its number is saved with the dead bytes on close, and the data files being written have
+     * no hint files if the store was not closed. So the saved one is taken unless another data file has no hint file,
+     * then the largest one without a hint file, and the largest one for the files saved without the number.
+     */
+    protected int findActiveFileNumber() {
+        List<Integer> fileNumbers = getDataFileNumbers();
+        if (fileNumbers.isEmpty())
+            return 0;
+        List<Integer> unsealed = new ArrayList<Integer>();
+        for (int fileNumber : fileNumbers) {
+            if (!hintSizeMap.containsKey(fileNumber)) {
+                unsealed.add(fileNumber);
+            }
+        }
+        if (fileNumbers.contains(savedActiveFileNumber)
+                && (unsealed.isEmpty() || unsealed.contains(savedActiveFileNumber)))
+            return savedActiveFileNumber;
+        if (!unsealed.isEmpty())
+            return unsealed.get(unsealed.size() - 1);
+        return fileNumbers.get(fileNumbers.size() - 1);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.EntityRepository#
+     * getDataFileNumbers()
+     */
+    @Override
+    public List<Integer> getDataFileNumbers() {
+        List<Integer> fileNumbers = new ArrayList<Integer>();
+        String[] names = new File(configuration.getDirPath()).list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher matcher = DATA_FILE_NAME_PATTERN.matcher(name);
+                if (matcher.matches()) {
+                    fileNumbers.add(Integer.valueOf(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(fileNumbers);
+        return fileNumbers;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#markDead(net
+     * .wrap_trap.collections.fsm.store.bson.BsonDataBlock)
+     */
+    @Override
+    public synchronized void markDead(BsonDataBlock bsonDataBlock) throws IOException {
+        int fileNumber = toFileNumber(bsonDataBlock.getCurrentFileNumber());
+        long size = getBlockSize(bsonDataBlock);
+        Long deadBytes = deadBytesMap.get(fileNumber);
+        deadBytesMap.put(fileNumber, (deadBytes == null) ? size : deadBytes + size);
+
+        // the flags are updated in place through the write-ahead log as the links.
+        FileChannel channel = getDataChannel(bsonDataBlock.getCurrentFileNumber());
+        long flagsPos = bsonDataBlock.getCurrentPointer() + DATA_LENGTH_FIELD_SIZE;
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        buf.put((byte) (bsonDataBlock.getFlags() | BsonDataBlock.DELETED)).flip();
+        if (!writeAheadLog.log(channel, fileNumber, flagsPos, buf)) {
+            FileChannels.write(channel, flagsPos, buf);
+        }
+        metrics.recordBytesWritten(fileNumber, 1);
+
+        Long hintSize = hintSizeMap.get(fileNumber);
+        if (hintSize != null) {
+            FileChannel hintChannel = getHintFile(fileNumber).getChannel();
+            ByteBuffer record = ByteBuffer.allocate(HINT_DEAD_RECORD_SIZE);
+            record.put(HINT_DEAD_RECORD).putLong(bsonDataBlock.getCurrentPointer()).flip();
+            if (!writeAheadLog.log(hintChannel, HINT_TARGET_OFFSET + fileNumber, hintSize, record)) {
+                FileChannels.write(hintChannel, hintSize, record);
+            }
+            hintSizeMap.put(fileNumber, hintSize + HINT_DEAD_RECORD_SIZE);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#scan(int,
+     * net.wrap_trap.collections.fsm.store.bson.BsonDataBlockVisitor)
+     */
+    @Override
+    public void scan(int fileNumber, BsonDataBlockVisitor visitor) throws IOException {
+        if (!readHintFile(fileNumber, visitor)) {
+            scanDataFile(fileNumber, visitor);
         }
-        int length = bytes.length + NEXT_DATA_POINTER_SIZE;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#scanLiveBlocks
+     * (int, net.wrap_trap.collections.fsm.store.bson.BsonDataBlockVisitor)
+     */
+    @Override
+    public void scanLiveBlocks(int fileNumber, final BsonDataBlockVisitor visitor) throws IOException {
+        scanDataFile(fileNumber, getDataFileLength(fileNumber), true, new BsonDataBlockVisitor() {
+            @Override
+            public void visit(BsonDataBlock bsonDataBlock) throws IOException {
+                if (!bsonDataBlock.isDeleted()) {
+                    visitor.visit(bsonDataBlock);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the length of the data file, which is never in the middle of a block since the appends hold the lock of
+     * this repository.
+     */
+    protected synchronized long getDataFileLength(int fileNumber) throws IOException {
+        return getDataChannel((byte) fileNumber).size();
+    }
 
-        RandomAccessFile dataFile = getLastDataFile();
-        byte lastDataFileNumber = getLastDataFileNumber(); // keep the lastFileNumber for returning.
-        // FIXME getDataFile() and getLastDataFile() should return the data file with file number for keeping the consistency of lastDataFileNumber.
+    protected void scanDataFile(int fileNumber, BsonDataBlockVisitor visitor) throws IOException {
+        scanDataFile(fileNumber, getDataChannel((byte) fileNumber).size(), false, visitor);
+    }
 
-        long dataPos = dataFile.length();
-        if ((dataPos + 4/* size of length field */+ length) > configuration.getDataFileSize()) {
-            dataFile = getDataFile((byte) (++lastDataFileNumber));
-            dataPos = dataFile.length();
+    /**
+     * Reads the data file sequentially from the head to the size in the buffers of SCAN_BUFFER_SIZE, and passes the
+     * blocks read with or without the bodies to the visitor.
+     */
+    protected void scanDataFile(int fileNumber, long size, boolean withBody, BsonDataBlockVisitor visitor)
+            throws IOException {
+        FileChannel channel = getDataChannel((byte) fileNumber);
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        buf.flip();
+        long bufPos = 0L; // the file position of the head of buf.
+        while (bufPos + buf.position() < size) {
+            long dataPos = bufPos + buf.position();
+            if (buf.remaining() < DATA_LENGTH_FIELD_SIZE) {
+                bufPos = dataPos;
+                buf = fill(channel, buf, dataPos, Math.min(size - dataPos, buf.capacity()));
+                metrics.recordBytesRead(fileNumber, buf.remaining());
+                if (buf.remaining() < DATA_LENGTH_FIELD_SIZE)
+                    break;
+            }
+            int blockSize = DATA_LENGTH_FIELD_SIZE + buf.getInt(buf.position());
+            if (dataPos + blockSize > size) {
+                logger.warn("The block at the end of data file is broken, fileNumber:{}, dataPos:{}", fileNumber,
+                            dataPos);
+                break;
+            }
+            if (buf.remaining() < blockSize) {
+                bufPos = dataPos;
+                buf = fill(channel, buf, dataPos, Math.min(size - dataPos, Math.max(blockSize, buf.capacity())));
+                metrics.recordBytesRead(fileNumber, buf.remaining());
+            }
+            visitor.visit(toDataBlock(buf, (byte) fileNumber, dataPos, withBody));
         }
-        dataFile.seek(dataPos);
+    }
 
-        dataFile.writeInt(length);
-        dataFile.write(bytes);
-        dataFile.writeByte(0); // the file position of next data.
-        dataFile.writeLong(0L); // the file position of next data.
+    /**
+     * Reads the bytes of length from the position into the buffer, which is allocated again if it is too small.
+     */
+    protected ByteBuffer fill(FileChannel channel, ByteBuffer buf, long pos, long length) throws IOException {
+        ByteBuffer dest = (buf.capacity() < length) ? ByteBuffer.allocate((int) length) : buf;
+        dest.clear().limit((int) length);
+        FileChannels.read(channel, pos, dest);
+        dest.flip();
+        return dest;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#getSegmentStats
+     * ()
+     */
+    @Override
+    public synchronized List<SegmentStat> getSegmentStats() {
+        List<SegmentStat> stats = new ArrayList<SegmentStat>();
+        int active = getActiveFileNumber();
+        for (int fileNumber : getDataFileNumbers()) {
+            Long deadBytes = deadBytesMap.get(fileNumber);
+            long size = new File(getDataFilePath(fileNumber)).length();
+            boolean writable = (fileNumber == active) || (fileNumber == relocationFileNumber);
+            stats.add(new SegmentStat(fileNumber, size, (deadBytes == null) ? 0L : deadBytes, writable));
+        }
+        return stats;
+    }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.EntityRepository#deleteDataFile
+     * (int)
+     */
+    @Override
+    public synchronized void deleteDataFile(int fileNumber) throws IOException {
+        Preconditions.checkArgument((fileNumber != activeFileNumber) && (fileNumber != relocationFileNumber),
+                                    "data file %d is being written.", fileNumber);
+        Closeables.closeQuietly(dataFileMap.remove(fileNumber));
+        File file = new File(getDataFilePath(fileNumber));
+        if (file.exists() && !file.delete()) {
+            throw new IOException(String.format("Failed to delete data file: %s", file.getPath()));
+        }
+        deadBytesMap.remove(fileNumber);
+        saveDeadBytes();
+        deleteHintFile(fileNumber);
         if (logger.isTraceEnabled()) {
-            logger.trace("\twrite to data file, dataPos:{}, length:{}", dataPos, DATA_LENGTH_FIELD_SIZE + length);
+            logger.trace("deleteDataFile, fileNumber:{}", fileNumber);
         }
-        return new BsonDataBlockPosition(lastDataFileNumber, dataPos);
     }
 
-    protected byte getLastDataFileNumber() {
-        byte i = 1;
-        while (true) {
-            String dataFilePath = configuration.getDirPath() + File.separator + Integer.toString(i) + DATA_FILE_SUFFIX;
-            if (!new File(dataFilePath).exists()) {
-                return (byte) (i - 1);
-            } else {
-                i++;
+    public static String getHintFilePath(Configuration configuration, int fileNumber) {
+        return configuration.getDirPath() + File.separator + Integer.toString(fileNumber) + HINT_FILE_SUFFIX;
+    }
+
+    protected String getHintFilePath(int fileNumber) {
+        return getHintFilePath(configuration, fileNumber);
+    }
+
+    protected RandomAccessFile getHintFile(int fileNumber) throws FileNotFoundException {
+        RandomAccessFile hintFile = hintFileMap.get(fileNumber);
+        if (hintFile == null) {
+            hintFile = new RandomAccessFile(getHintFilePath(fileNumber), "rw");
+            hintFileMap.put(fileNumber, hintFile);
+        }
+        return hintFile;
+    }
+
+    /**
+     * Writes the hint file of the data file which no more blocks are appended to. The updates of the flags in the
+     * data file are committed before they are copied into the hint file.
+     */
+    protected void seal(int fileNumber) throws IOException {
+        if ((fileNumber <= 0) || hintSizeMap.containsKey(fileNumber))
+            return;
+        writeAheadLog.checkpoint();
+        writeHintFile(fileNumber);
+    }
+
+    protected void writeHintFile(int fileNumber) throws IOException {
+        if ((fileNumber <= 0) || hintSizeMap.containsKey(fileNumber) || !dataFileMap.containsKey(fileNumber))
+            return;
+        long start = System.currentTimeMillis();
+        FileChannel channel = getDataChannel((byte) fileNumber);
+        if (writeAheadLog.isEnabled()) {
+            channel.force(true);
+        }
+        File tmp = new File(getHintFilePath(fileNumber) + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(HINT_MAGIC);
+            out.writeByte(HINT_VERSION);
+            out.writeLong(channel.size());
+            scanDataFile(fileNumber, new BsonDataBlockVisitor() {
+                @Override
+                public void visit(BsonDataBlock bsonDataBlock) throws IOException {
+                    out.writeByte(HINT_BLOCK_RECORD);
+                    out.writeByte(bsonDataBlock.getFlags());
+                    out.writeInt(bsonDataBlock.getKeyHash());
+                    out.writeLong(bsonDataBlock.getCurrentPointer());
+                    out.writeInt(getBlockSize(bsonDataBlock));
+                    out.writeShort(bsonDataBlock.getKeyBytes().length);
+                    out.write(bsonDataBlock.getKeyBytes());
+                }
+            });
+            out.flush();
+            if (writeAheadLog.isEnabled()) {
+                fileOut.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+        File file = new File(getHintFilePath(fileNumber));
+        if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+            throw new IOException(String.format("Failed to write hint file: %s", file.getPath()));
+        }
+        hintSizeMap.put(fileNumber, file.length());
+        if (logger.isDebugEnabled()) {
+            logger.debug("writeHintFile, fileNumber:{}, size:{}, elapsed:{}ms",
+                         new Object[] { fileNumber, file.length(), System.currentTimeMillis() - start });
+        }
+    }
+
+    /**
+     * Passes the blocks in the hint file to the visitor, without the links. The dead blocks are flagged DELETED.
+     * 
+     * @return false if the hint file is missing or invalid, and nothing has been passed to the visitor.
+     */
+    protected boolean readHintFile(int fileNumber, BsonDataBlockVisitor visitor) throws IOException {
+        synchronized (this) {
+            if (!hintSizeMap.containsKey(fileNumber))
+                return false;
+        }
+        File file = new File(getHintFilePath(fileNumber));
+        long dataFileLength = getDataChannel((byte) fileNumber).size();
+        // the dead records are read at first, since they follow the block records.
+        Set<Long> deadPointers = new HashSet<Long>();
+        if (!readHintFile(fileNumber, file, dataFileLength, deadPointers, null))
+            return false;
+        return readHintFile(fileNumber, file, dataFileLength, deadPointers, visitor);
+    }
+
+    protected boolean readHintFile(int fileNumber, File file, long dataFileLength, Set<Long> deadPointers,
+                                   BsonDataBlockVisitor visitor) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ((in.readInt() != HINT_MAGIC) || (in.readByte() != HINT_VERSION) || (in.readLong() != dataFileLength)) {
+                logger.warn("The hint file is invalid, the data file is scanned. hint file:{}", file.getPath());
+                return false;
+            }
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    return true;
+                if (type == HINT_DEAD_RECORD) {
+                    long pointer = in.readLong();
+                    if (visitor == null) {
+                        deadPointers.add(pointer);
+                    }
+                } else if (type == HINT_BLOCK_RECORD) {
+                    byte flags = in.readByte();
+                    int keyHash = in.readInt();
+                    long pointer = in.readLong();
+                    int blockSize = in.readInt();
+                    byte[] keyBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(keyBytes);
+                    if (visitor != null) {
+                        if (deadPointers.contains(pointer)) {
+                            flags |= BsonDataBlock.DELETED;
+                        }
+                        visitor.visit(new BsonDataBlock(blockSize - DATA_LENGTH_FIELD_SIZE, flags, keyHash, keyBytes,
+                                                        null, pointer, (byte) fileNumber, 0L, (byte) 0));
+                    }
+                } else {
+                    logger.warn("The hint file is broken, the data file is scanned. hint file:{}", file.getPath());
+                    return false;
+                }
+            }
+        } catch (EOFException ex) {
+            logger.warn("The hint file is truncated, the data file is scanned. hint file:{}", file.getPath());
+            return false;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    protected synchronized void deleteHintFile(int fileNumber) throws IOException {
+        if (hintFileMap.containsKey(fileNumber)) {
+            // the dead records logged against the hint file are written before it is closed.
+            writeAheadLog.checkpoint();
+        }
+        Closeables.closeQuietly(hintFileMap.remove(fileNumber));
+        hintSizeMap.remove(fileNumber);
+        File file = new File(getHintFilePath(fileNumber));
+        if (file.exists() && !file.delete()) {
+            throw new IOException(String.format("Failed to delete hint file: %s", file.getPath()));
+        }
+    }
+
+    /**
+     * Loads the sizes of the hint files, and deletes the hint files whose data files have been deleted.
+     */
+    protected void loadHints() {
+        String[] names = new File(configuration.getDirPath()).list();
+        if (names == null)
+            return;
+        for (String name : names) {
+            Matcher matcher = HINT_FILE_NAME_PATTERN.matcher(name);
+            if (!matcher.matches())
+                continue;
+            int fileNumber = Integer.parseInt(matcher.group(1));
+            File file = new File(configuration.getDirPath(), name);
+            if ((matcher.group(2) != null) || !new File(getDataFilePath(fileNumber)).exists()) {
+                if (!file.delete()) {
+                    logger.warn("Failed to delete hint file: {}", file.getPath());
+                }
+                continue;
             }
+            hintSizeMap.put(fileNumber, file.length());
         }
     }
+
+    protected String getDeadBytesFilePath() {
+        return configuration.getDirPath() + File.separator + DEAD_BYTES_FILE_NAME;
+    }
+
+    protected void loadDeadBytes() {
+        File file = new File(getDeadBytesFilePath());
+        if (!file.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                deadBytesMap.put(in.readInt(), in.readLong());
+            }
+            // the active data file number follows, which is missing in the files saved by the older versions.
+            if (in.available() >= 4) {
+                savedActiveFileNumber = in.readInt();
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to load the dead bytes of data files, they are counted from 0.", ex);
+            deadBytesMap.clear();
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    protected void saveDeadBytes() throws IOException {
+        if (!new File(configuration.getDirPath()).exists())
+            // the directory has been deleted by clear().
+            return;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                                                             new FileOutputStream(getDeadBytesFilePath())));
+        try {
+            out.writeInt(deadBytesMap.size());
+            for (Map.Entry<Integer, Long> entry : deadBytesMap.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(getActiveFileNumber());
+        } finally {
+            out.close();
+        }
+    }
+
+    protected int toFileNumber(byte dataFileNumber) {
+        return dataFileNumber & 0xff;
+    }
 }
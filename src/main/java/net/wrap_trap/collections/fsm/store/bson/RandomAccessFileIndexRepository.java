@@ -3,8 +3,11 @@ package net.wrap_trap.collections.fsm.store.bson;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.store.bson.utils.FileChannels;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,28 +23,61 @@ import com.google.common.io.Closeables;
  * 
  * a. data file number(now always "1").[byte]
  * b. a offset of data file.[long]
+ * 
+ *  structure of header
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |     c.    |     d.    |           e.          |
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |     f.    |     g.    |           h.          |
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * 
+ * c. version.[integer]
+ * d. initial number of buckets.[integer]
+ * e. max size of data file.[long]
+ * f. entry count.[integer]
+ * g. level of linear hashing.[integer]
+ * h. split pointer of linear hashing(the next bucket to be split).[long]
+ * 
+ * The buckets are split one by one with linear hashing as the entries increase.
+ * The number of buckets is (d. * 2^g.) + h. and the index records of the buckets
+ * are placed in order of the bucket number after the header.
+ * 
+ * The index file is read and written with the positional I/O of FileChannel,
+ * so the records of different buckets can be accessed from multiple threads.
+ * g. and h. are updated by one thread at a time.
  * </pre>
  */
 public class RandomAccessFileIndexRepository implements IndexRepository {
 
-    private static final int INDEX_SIZE_PER_RECORD = 9;
-    private static final int HEADER_SIZE = 128;
+    protected static final int INDEX_SIZE_PER_RECORD = 9;
+    protected static final int HEADER_SIZE = 128;
 
-    private static final int VERSION = 1;
+    private static final int VERSION = 3;
+    // the data blocks have the key header since version 3. the older stores are upgraded by BsonStoreUpgrade.
+    protected static final int MIN_SUPPORTED_VERSION = 3;
 
     private static final String INDEX_FILE_SUFFIX = ".idx";
-    private static final int HEADER_ENTRYCOUNT_OFFSET = 8;
+    private static final int HEADER_DATAFILESIZE_OFFSET = 8;
+    protected static final int HEADER_ENTRYCOUNT_OFFSET = 16;
+    protected static final int HEADER_LEVEL_OFFSET = 20;
+    protected static final int HEADER_SPLIT_POINTER_OFFSET = 24;
 
     protected static Logger logger = LoggerFactory.getLogger(RandomAccessFileIndexRepository.class);
 
     private int currentVersion;
+    private volatile LinearHashState state = new LinearHashState(0, 0L);
+    private volatile int entryCount;
 
     private RandomAccessFile indexFile;
+    private FileChannel indexChannel;
 
     private Configuration configuration;
+    private WriteAheadLog writeAheadLog;
 
-    public RandomAccessFileIndexRepository(Configuration configuration) throws IOException {
+    public RandomAccessFileIndexRepository(Configuration configuration, WriteAheadLog writeAheadLog)
+            throws IOException {
         this.configuration = configuration;
+        this.writeAheadLog = writeAheadLog;
         loadIndexFile();
     }
 
@@ -54,20 +90,99 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
      */
     @Override
     public BsonDataBlockPosition getIndexRef(long hashCode) {
-        long pos = ((hashCode % configuration.getBucketSize()) * INDEX_SIZE_PER_RECORD) + HEADER_SIZE;
+        LinearHashState current = state;
+        long buckets = (long) configuration.getBucketSize() << current.level;
+        long bucketIndex = hashCode % buckets;
+        if (bucketIndex < current.splitPointer) {
+            // this bucket has been split already in the current level.
+            bucketIndex = hashCode % (buckets << 1);
+        }
+        return getBucketIndexRef(bucketIndex);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getBucketIndexRef
+     * (long)
+     */
+    @Override
+    public BsonDataBlockPosition getBucketIndexRef(long bucketIndex) {
+        long pos = (bucketIndex * INDEX_SIZE_PER_RECORD) + HEADER_SIZE;
         return new BsonDataBlockPosition((byte) 1, pos);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getBucketCount()
+     */
+    @Override
+    public long getBucketCount() {
+        LinearHashState current = state;
+        return ((long) configuration.getBucketSize() << current.level) + current.splitPointer;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.IndexRepository#supportsSplit()
+     */
+    @Override
+    public boolean supportsSplit() {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.wrap_trap.collections.fsm.store.bson.IndexRepository#split()
+     */
+    @Override
+    public synchronized BsonDataBlockPosition split() throws IOException {
+        int level = state.level;
+        long splitPointer = state.splitPointer;
+        long buckets = (long) configuration.getBucketSize() << level;
+        BsonDataBlockPosition splitRef = getBucketIndexRef(splitPointer);
+        if (splitPointer == 0) {
+            // reserve the index records of all buckets in the next level at once.
+            extendIndexFile(buckets << 1);
+        }
+        splitPointer++;
+        if (splitPointer == buckets) {
+            level++;
+            splitPointer = 0;
+        }
+        // level and splitPointer are published at once, getIndexRef never sees the half of them.
+        state = new LinearHashState(level, splitPointer);
+        writeHeaderInt(HEADER_LEVEL_OFFSET, level);
+        writeHeaderLong(HEADER_SPLIT_POINTER_OFFSET, splitPointer);
+        if (logger.isTraceEnabled()) {
+            logger.trace("split, splitRef:{}, level:{}, splitPointer:{}",
+                         new Object[] { splitRef.getPointer(), level, splitPointer });
+        }
+        return splitRef;
+    }
+
+    protected void extendIndexFile(long bucketCount) throws IOException {
+        long length = HEADER_SIZE + (INDEX_SIZE_PER_RECORD * bucketCount);
+        if (indexFile.length() < length) {
+            indexFile.setLength(length);
+        }
+    }
+
     protected RandomAccessFile loadIndexFile() throws IOException {
         if (indexFile != null) {
             return indexFile;
         }
 
-        String indexFilePath = configuration.getDirPath() + File.separator + "1" + INDEX_FILE_SUFFIX;
-        File file = new File(indexFilePath);
+        File file = new File(getIndexFilePath(configuration));
         boolean isNew = !file.exists();
 
         indexFile = new RandomAccessFile(file, "rw");
+        indexChannel = indexFile.getChannel();
         if (isNew) {
             initializeIndexfile(indexFile);
         } else {
@@ -76,8 +191,15 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
         return indexFile;
     }
 
+    public static String getIndexFilePath(Configuration configuration) {
+        return configuration.getDirPath() + File.separator + "1" + INDEX_FILE_SUFFIX;
+    }
+
     protected void loadHeader(RandomAccessFile indexFile) throws IOException {
         this.currentVersion = indexFile.readInt();
+        if ((this.currentVersion > VERSION) || (this.currentVersion < MIN_SUPPORTED_VERSION)) {
+            throw new IOException(String.format("Unsupported version of index file: %d", this.currentVersion));
+        }
 
         int loadedBucketSize = indexFile.readInt();
         int configBucketSize = this.configuration.getBucketSize();
@@ -96,13 +218,27 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
             logger.warn("Specified dataFileSize '{}' is ignored.", configDataFileSize);
         }
         this.configuration.setDataFileSize(loadedDataFileSize);
+
+        indexFile.seek(HEADER_ENTRYCOUNT_OFFSET);
+        this.entryCount = indexFile.readInt();
+        int level = indexFile.readInt();
+        long splitPointer = indexFile.readLong();
+        this.state = new LinearHashState(level, splitPointer);
+        // the extension on split may have been lost by a crash after the header was written.
+        long buckets = (long) configuration.getBucketSize() << level;
+        extendIndexFile((splitPointer == 0) ? buckets : (buckets << 1));
     }
 
     protected void initializeIndexfile(RandomAccessFile indexFile) throws IOException {
         this.currentVersion = VERSION;
+        this.entryCount = 0;
+        this.state = new LinearHashState(0, 0L);
         indexFile.writeInt(this.currentVersion);
         indexFile.writeInt(this.configuration.getBucketSize());
         indexFile.writeLong(this.configuration.getDataFileSize());
+        indexFile.writeInt(this.entryCount);
+        indexFile.writeInt(this.state.level);
+        indexFile.writeLong(this.state.splitPointer);
         indexFile.setLength(HEADER_SIZE + (INDEX_SIZE_PER_RECORD * this.configuration.getBucketSize()));
     }
 
@@ -117,10 +253,9 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
     @Override
     public BsonDataBlockPosition getDataPosition(BsonDataBlockPosition indexRef) throws IOException {
         long pos = indexRef.getPointer();
-        if (indexFile.length() < pos + INDEX_SIZE_PER_RECORD)
+        if (indexChannel.size() < pos + INDEX_SIZE_PER_RECORD)
             return null;
-        indexFile.seek(pos);
-        return read();
+        return readAt(pos);
     }
 
     @Override
@@ -146,9 +281,7 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
             logger.trace("updateIndex, indexPos:{}, dataPos:{}, dataFileNumber:{}", new Object[] { indexPos, dataPos,
                                                                                                   dataFileNumber });
         }
-        indexFile.seek(indexPos);
-        indexFile.writeByte(dataFileNumber);
-        indexFile.writeLong(dataPos);
+        writeAt(indexPos, dataFileNumber, dataPos);
         if (logger.isTraceEnabled()) {
             logger.trace("\twrite to index file, indexPos:{}, dataPos:{}, dataFileNumber:{}",
                          new Object[] { indexPos, dataPos, dataFileNumber });
@@ -164,20 +297,11 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
      */
     @Override
     public boolean indexUpdatable(BsonDataBlockPosition indexRef) throws IOException {
-        indexFile.seek(indexRef.getPointer());
-
-        long pos = indexFile.getFilePointer();
-        if (indexFile.length() < pos + INDEX_SIZE_PER_RECORD) {
+        long pos = indexRef.getPointer();
+        if (indexChannel.size() < pos + INDEX_SIZE_PER_RECORD) {
             return true;
-        } else {
-            byte dataFileNumber = indexFile.readByte();
-            long dataRef = indexFile.readLong();
-            BsonDataBlockPosition tmpPos = new BsonDataBlockPosition(dataFileNumber, dataRef);
-            if (tmpPos.isEmpty()) {
-                return true;
-            }
         }
-        return false;
+        return (readAt(pos) == null);
     }
 
     /*
@@ -193,9 +317,7 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
         if (logger.isTraceEnabled()) {
             logger.trace("clearIndex, pos:{}", pos);
         }
-        indexFile.seek(pos);
-        indexFile.writeByte(0);
-        indexFile.writeLong(0L);
+        writeAt(pos, (byte) 0, 0L);
     }
 
     /*
@@ -206,57 +328,90 @@ public class RandomAccessFileIndexRepository implements IndexRepository {
      * (int)
      */
     @Override
-    public void setEntryCount(int count) throws IOException {
-        indexFile.seek(HEADER_ENTRYCOUNT_OFFSET);
-        indexFile.writeInt(count);
+    public synchronized void setEntryCount(int count) throws IOException {
+        this.entryCount = count;
+        writeHeaderInt(HEADER_ENTRYCOUNT_OFFSET, count);
     }
 
     /*
      * (non-Javadoc)
      * 
      * @see
-     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getEntryCount()
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#addEntryCount
+     * (int)
      */
     @Override
-    public int getEntryCount() throws IOException {
-        indexFile.seek(HEADER_ENTRYCOUNT_OFFSET);
-        return indexFile.readInt();
+    public synchronized int addEntryCount(int delta) throws IOException {
+        setEntryCount(this.entryCount + delta);
+        return this.entryCount;
     }
 
     /*
      * (non-Javadoc)
      * 
      * @see
-     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#seekIndexHead()
+     * net.wrap_trap.collections.fsm.store.bson.IndexRepository#getEntryCount()
      */
     @Override
-    public void seekIndexHead() throws IOException {
-        indexFile.seek(HEADER_SIZE);
+    public int getEntryCount() throws IOException {
+        return this.entryCount;
     }
 
-    /*
-     * (non-Javadoc)
-     * 
-     * @see net.wrap_trap.collections.fsm.store.bson.IndexRepository#hasNext()
-     */
-    @Override
-    public boolean hasNext() throws IOException {
-        return (indexFile.getFilePointer() < (HEADER_SIZE + (this.configuration.getBucketSize() * INDEX_SIZE_PER_RECORD)));
+    protected void writeHeaderInt(int offset, int value) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(value).flip();
+        write(offset, buf);
     }
 
-    /*
-     * (non-Javadoc)
-     * 
-     * @see net.wrap_trap.collections.fsm.store.bson.IndexRepository#read()
-     */
-    @Override
-    public BsonDataBlockPosition read() throws IOException {
-        byte fileNumber = indexFile.readByte();
-        long pos = indexFile.readLong();
-        BsonDataBlockPosition ret = new BsonDataBlockPosition(fileNumber, pos);
+    protected void writeHeaderLong(int offset, long value) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putLong(value).flip();
+        write(offset, buf);
+    }
+
+    protected BsonDataBlockPosition readAt(long pos) throws IOException {
+        byte[] pending = writeAheadLog.getPending(WriteAheadLog.INDEX_TARGET, pos);
+        ByteBuffer buf = (pending != null) ? ByteBuffer.wrap(pending) : read(pos, INDEX_SIZE_PER_RECORD);
+        BsonDataBlockPosition ret = new BsonDataBlockPosition(buf.get(), buf.getLong());
         if (!ret.isEmpty()) {
             return ret;
         }
         return null;
     }
+
+    protected void writeAt(long pos, byte dataFileNumber, long dataPos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_SIZE_PER_RECORD);
+        buf.put(dataFileNumber).putLong(dataPos).flip();
+        write(pos, buf);
+    }
+
+    protected ByteBuffer read(long pos, int size) throws IOException {
+        return FileChannels.read(indexChannel, pos, size);
+    }
+
+    /**
+     * Updates the index file in place through the write-ahead log.
+     */
+    protected void write(long pos, ByteBuffer buf) throws IOException {
+        if (!writeAheadLog.log(indexChannel, WriteAheadLog.INDEX_TARGET, pos, buf)) {
+            FileChannels.write(indexChannel, pos, buf);
+        }
+    }
+
+    protected WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * The level and the split pointer of linear hashing, which are replaced together on split.
+     */
+    private static final class LinearHashState {
+        private final int level;
+        private final long splitPointer;
+
+        private LinearHashState(int level, long splitPointer) {
+            this.level = level;
+            this.splitPointer = splitPointer;
+        }
+    }
 }
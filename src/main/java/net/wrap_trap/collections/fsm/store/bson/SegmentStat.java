@@ -0,0 +1,50 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+/**
+ * The size and the dead bytes of a data file. The dead bytes are the blocks which have been removed from the chains
+ * and can be reclaimed by compaction.
+ */
+public class SegmentStat {
+
+    private int fileNumber;
+    private long size;
+    private long deadBytes;
+    private boolean writable;
+
+    public SegmentStat(int fileNumber, long size, long deadBytes, boolean writable) {
+        super();
+        this.fileNumber = fileNumber;
+        this.size = size;
+        this.deadBytes = deadBytes;
+        this.writable = writable;
+    }
+
+    public int getFileNumber() {
+        return fileNumber;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getDeadBytes() {
+        return deadBytes;
+    }
+
+    public double getDeadRatio() {
+        return (size == 0L) ? 0.0 : (double) deadBytes / size;
+    }
+
+    /**
+     * Returns true if new blocks are appended to this data file, which is not a target of compaction.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SegmentStat[fileNumber=%d, size=%d, deadBytes=%d, writable=%s]", fileNumber, size,
+                             deadBytes, writable);
+    }
+}
@@ -0,0 +1,423 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.Configuration.Durability;
+import net.wrap_trap.collections.fsm.store.bson.utils.FileChannels;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * <pre>
+ * Write-ahead log of the updates in place of the index file and the data files.
+ *
+ * The blocks are appended to the data files directly, but the updates in place
+ * (the index records, the links between the blocks and the header of the index file)
+ * are kept in memory and written to this log at first. Until they are written to the
+ * files, the readers see them through getPending(). A commit forces the data files
+ * which have been appended since the last commit, writes the pending updates to the
+ * log and forces the log, and then writes the updates to the files. So the files never
+ * point to the blocks which are not on disk.
+ *
+ * The commits are done by a background thread. In Durability.BATCHED, the thread
+ * commits at the interval of commitInterval. In Durability.SYNC, commit() waits for
+ * the commit including the updates of the current thread, and the updates which are
+ * written while a commit is being forced are committed together by the next commit.
+ * In Durability.NONE, the updates are written to the files directly and no log is kept.
+ *
+ * The log is truncated after the files are forced (checkpoint), when the log grows over
+ * checkpointSize or a data file is deleted. The log left by a crash is replayed on open.
+ *
+ *  structure of log
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ * |     a.    |     b.    |  c. |           d.          |  e. |   f.   |...
+ * +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
+ *
+ * a. a length of the records in this commit.[integer]
+ * b. CRC32 of the records in this commit.[integer]
+ * c. a target file.[unsigned short]
+ *    INDEX_TARGET(0): the index file.
+ *    N(1 to 255): the data file "N.dat".
+ *    RandomAccessFileEntityRepository.HINT_TARGET_OFFSET(256) + N: the hint file "N.hint".
+ * d. a file position to be written.[long]
+ * e. a length of the bytes.[short]
+ * f. the bytes to be written.[byte[]]
+ * (c. to f. are repeated in a commit, and a. to f. are repeated in the log.)
+ * </pre>
+ */
+public class WriteAheadLog implements Closeable {
+
+    public static final int INDEX_TARGET = 0;
+    private static final int MAX_TARGET = 0xffff; // c. is an unsigned short.
+
+    private static final String LOG_FILE_NAME = "wal.log";
+    private static final int COMMIT_HEADER_SIZE = 8; // a. and b.
+    private static final int RECORD_HEADER_SIZE = 12; // c. to e.
+
+    protected static Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /**
+     * Resolves the target files of the log on recovery, from the targets described in c. of the structure.
+     */
+    public interface TargetResolver {
+        File getFile(int target);
+    }
+
+    private Durability durability;
+    private long commitInterval;
+    private long checkpointSize;
+
+    private ConcurrentMap<Long, Record> overlay = new ConcurrentHashMap<Long, Record>();
+    private Object monitor = new Object();
+    private List<Record> pending = new ArrayList<Record>(); // guarded by monitor
+    private Set<FileChannel> appended = new LinkedHashSet<FileChannel>(); // guarded by monitor
+    private long lastSequence; // guarded by monitor
+    private long committedSequence; // guarded by monitor
+    private IOException failure; // guarded by monitor
+    private boolean closed; // guarded by monitor
+    private ThreadLocal<long[]> threadSequence = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private Object commitLock = new Object();
+    private Set<FileChannel> applied = new LinkedHashSet<FileChannel>(); // guarded by commitLock
+    private RandomAccessFile logFile;
+    private FileChannel logChannel;
+    private Thread committer;
+
+    public WriteAheadLog(Configuration configuration, TargetResolver resolver) throws IOException {
+        this.durability = configuration.getDurability();
+        this.commitInterval = configuration.getCommitInterval();
+        this.checkpointSize = configuration.getCheckpointSize();
+        File file = new File(configuration.getDirPath() + File.separator + LOG_FILE_NAME);
+        if (file.exists()) {
+            recover(file, resolver);
+        }
+        if (durability == Durability.NONE) {
+            return;
+        }
+        this.logFile = new RandomAccessFile(file, "rw");
+        this.logChannel = logFile.getChannel();
+        this.committer = new Thread(new Committer(), "fsm-wal-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public boolean isEnabled() {
+        return (durability != Durability.NONE);
+    }
+
+    /**
+     * Logs the update in place of the file. Returns false in Durability.NONE, and then the caller writes it to the
+     * file by itself.
+     */
+    public boolean log(FileChannel channel, int target, long pos, ByteBuffer buf) throws IOException {
+        if (!isEnabled())
+            return false;
+        Preconditions.checkArgument((target >= 0) && (target <= MAX_TARGET), "target: %s", target);
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        Record record = new Record(channel, target, pos, bytes);
+        synchronized (monitor) {
+            checkState();
+            record.sequence = ++lastSequence;
+            pending.add(record);
+            overlay.put(toKey(target, pos), record);
+        }
+        threadSequence.get()[0] = record.sequence;
+        return true;
+    }
+
+    /**
+     * Records the data file which the block has been appended to. The data file is forced before the next commit.
+     */
+    public void appended(FileChannel channel) {
+        if (!isEnabled())
+            return;
+        synchronized (monitor) {
+            appended.add(channel);
+        }
+    }
+
+    /**
+     * Returns the bytes logged but not written to the file yet, or null.
+     */
+    public byte[] getPending(int target, long pos) {
+        if (overlay.isEmpty())
+            return null;
+        Record record = overlay.get(toKey(target, pos));
+        return (record == null) ? null : record.bytes;
+    }
+
+    /**
+     * Waits for the commit of the updates logged by the current thread in Durability.SYNC.
+     */
+    public void commit() throws IOException {
+        if (durability != Durability.SYNC)
+            return;
+        long sequence = threadSequence.get()[0];
+        synchronized (monitor) {
+            monitor.notifyAll();
+            while ((committedSequence < sequence) && (failure == null) && !closed) {
+                try {
+                    monitor.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for commit.");
+                }
+            }
+            checkState();
+        }
+    }
+
+    /**
+     * Commits all the pending updates, forces the files and truncates the log.
+     */
+    public void checkpoint() throws IOException {
+        if (!isEnabled())
+            return;
+        synchronized (commitLock) {
+            commitPending();
+            for (FileChannel channel : applied) {
+                channel.force(true);
+            }
+            applied.clear();
+            logChannel.truncate(0L);
+            logChannel.force(true);
+            if (logger.isTraceEnabled()) {
+                logger.trace("checkpoint");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!isEnabled())
+            return;
+        synchronized (monitor) {
+            if (closed)
+                return;
+            closed = true;
+            monitor.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            checkpoint();
+        } finally {
+            Closeables.closeQuietly(logFile);
+        }
+    }
+
+    protected void checkState() throws IOException {
+        if (failure != null)
+            throw new IOException("failed to commit the write-ahead log.", failure);
+    }
+
+    /**
+     * Commits the updates logged so far. The commits are serialized by commitLock, so the updates are written to the
+     * files in the order of logging.
+     */
+    protected void commitPending() throws IOException {
+        synchronized (commitLock) {
+            List<Record> batch = null;
+            Set<FileChannel> dataChannels = null;
+            synchronized (monitor) {
+                checkState();
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                dataChannels = appended;
+                pending = new ArrayList<Record>();
+                appended = new LinkedHashSet<FileChannel>();
+            }
+            try {
+                for (FileChannel channel : dataChannels) {
+                    channel.force(true);
+                }
+                writeLog(batch);
+                for (Record record : batch) {
+                    FileChannels.write(record.channel, record.pos, ByteBuffer.wrap(record.bytes));
+                    applied.add(record.channel);
+                    overlay.remove(toKey(record.target, record.pos), record);
+                }
+            } catch (IOException ex) {
+                synchronized (monitor) {
+                    failure = ex;
+                    monitor.notifyAll();
+                }
+                throw ex;
+            }
+            synchronized (monitor) {
+                committedSequence = batch.get(batch.size() - 1).sequence;
+                monitor.notifyAll();
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("commit, records:{}, dataFiles:{}", batch.size(), dataChannels.size());
+            }
+        }
+        if (logChannel.size() > checkpointSize) {
+            checkpoint();
+        }
+    }
+
+    protected void writeLog(List<Record> batch) throws IOException {
+        int length = 0;
+        for (Record record : batch) {
+            length += RECORD_HEADER_SIZE + record.bytes.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(COMMIT_HEADER_SIZE + length);
+        buf.position(COMMIT_HEADER_SIZE);
+        for (Record record : batch) {
+            buf.putShort((short) record.target);
+            buf.putLong(record.pos);
+            buf.putShort((short) record.bytes.length);
+            buf.put(record.bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), COMMIT_HEADER_SIZE, length);
+        buf.putInt(0, length);
+        buf.putInt(4, (int) crc.getValue());
+        buf.rewind();
+        FileChannels.write(logChannel, logChannel.size(), buf);
+        logChannel.force(true);
+    }
+
+    /**
+     * Writes the committed updates in the log to the files. A commit which has been torn by a crash is detected by
+     * the length or CRC32, and it and the following are ignored.
+     */
+    protected void recover(File file, TargetResolver resolver) throws IOException {
+        Map<Integer, RandomAccessFile> targets = new HashMap<Integer, RandomAccessFile>();
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        int commits = 0;
+        try {
+            FileChannel channel = log.getChannel();
+            long pos = 0L;
+            while (pos + COMMIT_HEADER_SIZE <= channel.size()) {
+                ByteBuffer header = FileChannels.read(channel, pos, COMMIT_HEADER_SIZE);
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if ((length <= 0) || (pos + COMMIT_HEADER_SIZE + length > channel.size()))
+                    break;
+                ByteBuffer records = FileChannels.read(channel, pos + COMMIT_HEADER_SIZE, length);
+                CRC32 crc = new CRC32();
+                crc.update(records.array(), 0, length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                while (records.hasRemaining()) {
+                    int target = records.getShort() & 0xffff;
+                    long targetPos = records.getLong();
+                    byte[] bytes = new byte[records.getShort() & 0xffff];
+                    records.get(bytes);
+                    RandomAccessFile targetFile = getTargetFile(targets, target, resolver);
+                    if (targetFile != null) {
+                        FileChannels.write(targetFile.getChannel(), targetPos, ByteBuffer.wrap(bytes));
+                    }
+                }
+                commits++;
+                pos += COMMIT_HEADER_SIZE + length;
+            }
+            for (RandomAccessFile targetFile : targets.values()) {
+                targetFile.getChannel().force(true);
+            }
+            channel.truncate(0L);
+            channel.force(true);
+        } finally {
+            for (RandomAccessFile targetFile : targets.values()) {
+                Closeables.closeQuietly(targetFile);
+            }
+            Closeables.closeQuietly(log);
+        }
+        if (commits > 0) {
+            logger.info("Recovered {} commits from the write-ahead log.", commits);
+        }
+    }
+
+    protected RandomAccessFile getTargetFile(Map<Integer, RandomAccessFile> targets, int target,
+                                             TargetResolver resolver) throws IOException {
+        if (targets.containsKey(target))
+            return targets.get(target);
+        File file = resolver.getFile(target);
+        RandomAccessFile targetFile = null;
+        if (file.exists()) {
+            targetFile = new RandomAccessFile(file, "rw");
+        } else {
+            logger.warn("The target file of the write-ahead log does not exist: {}", file.getPath());
+        }
+        targets.put(target, targetFile);
+        return targetFile;
+    }
+
+    protected static long toKey(int target, long pos) {
+        Preconditions.checkArgument((pos >>> 48) == 0, "pos is too large: %d", pos);
+        return ((long) target << 48) | pos;
+    }
+
+    class Committer implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (monitor) {
+                    if (closed)
+                        return;
+                    try {
+                        if (durability == Durability.BATCHED) {
+                            monitor.wait(commitInterval);
+                        } else if (pending.isEmpty()) {
+                            monitor.wait();
+                        }
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                try {
+                    commitPending();
+                } catch (IOException ex) {
+                    logger.error("Failed to commit the write-ahead log.", ex);
+                    return;
+                }
+            }
+        }
+    }
+
+    static class Record {
+        private FileChannel channel;
+        private int target;
+        private long pos;
+        private byte[] bytes;
+        private long sequence;
+
+        Record(FileChannel channel, int target, long pos, byte[] bytes) {
+            this.channel = channel;
+            this.target = target;
+            this.pos = pos;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package net.wrap_trap.collections.fsm.store.bson.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional read/write helpers for FileChannel. They never move the position of the channel, so a channel can be
+ * shared by the threads which read and write different regions of the file.
+ */
+public final class FileChannels {
+
+    private FileChannels() {}
+
+    public static ByteBuffer read(FileChannel channel, long pos, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        read(channel, pos, buf);
+        buf.flip();
+        return buf;
+    }
+
+    public static void read(FileChannel channel, long pos, ByteBuffer buf) throws IOException {
+        long offset = pos;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, offset);
+            if (read < 0) {
+                throw new EOFException(String.format("reached the end of file, pos: %d", offset));
+            }
+            offset += read;
+        }
+    }
+
+    public static void write(FileChannel channel, long pos, ByteBuffer buf) throws IOException {
+        long offset = pos;
+        while (buf.hasRemaining()) {
+            offset += channel.write(buf, offset);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.wrap_trap.collections.fsm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TestName;
+
+/**
+ * <pre>
+ * Fixture of the tests of the stores on disk. Each test method gets its own empty
+ * directory, tmp/[test class]/[test method], and the maps and stores opened by
+ * open() are closed after the test even if it fails.
+ * </pre>
+ */
+public abstract class AbstractStoreTest {
+
+    @Rule
+    public TestName testName = new TestName();
+
+    protected String dirPath;
+
+    private List<Object> opened = new ArrayList<Object>();
+
+    @Before
+    public void setUpDirectory() {
+        this.dirPath = "tmp/" + getClass().getSimpleName() + "/" + testName.getMethodName();
+        TestUtils.deleteFiles(dirPath);
+        new File(dirPath).getParentFile().mkdirs();
+    }
+
+    @After
+    public void closeOpened() throws IOException {
+        while (!opened.isEmpty()) {
+            closeTarget(opened.remove(opened.size() - 1));
+        }
+    }
+
+    protected Configuration createConfiguration(int bucketSize) {
+        return TestUtils.createConfiguration(dirPath, bucketSize);
+    }
+
+    protected <T extends Closeable> T open(T closeable) {
+        opened.add(closeable);
+        return closeable;
+    }
+
+    protected <T extends GenericFileStoredMap<?, ?>> T open(T map) {
+        opened.add(map);
+        return map;
+    }
+
+    /**
+     * Closes the map or the store opened by open() before the test ends, e.g. to reopen it.
+     */
+    protected void close(Object target) throws IOException {
+        for (Iterator<Object> it = opened.iterator(); it.hasNext();) {
+            if (it.next() == target) {
+                it.remove();
+            }
+        }
+        closeTarget(target);
+    }
+
+    private void closeTarget(Object target) throws IOException {
+        if (target instanceof GenericFileStoredMap) {
+            ((GenericFileStoredMap<?, ?>) target).close();
+        } else {
+            ((Closeable) target).close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.wrap_trap.collections.fsm;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FileStoredLongMapTest extends AbstractStoreTest {
+
+    @Test
+    public void testLongKeyMap() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        FileStoredLongMap<String> map = open(new FileStoredLongMap<String>(configuration));
+        for (long i = 0; i < 1000; i++) {
+            assertThat(map.put(i, "value" + i), nullValue());
+        }
+        map.put(Long.MIN_VALUE, "min");
+        map.put(-1L, "minus");
+        assertThat(map.put(0L, "zero"), is("value0"));
+        assertThat(map.remove(1L), is("value1"));
+        assertThat(map.remove(1L), nullValue());
+        Map<Long, String> batch = new HashMap<Long, String>();
+        for (long i = 1000; i < 1100; i++) {
+            batch.put(i, "value" + i);
+        }
+        map.putAll(batch);
+        assertThat(map.containsKey(1099L), is(true));
+        assertThat(map.containsKey(1100L), is(false));
+        assertThat(map.size(), is(1101));
+        close(map);
+
+        map = open(new FileStoredLongMap<String>(configuration));
+        assertThat(map.get(0L), is("zero"));
+        assertThat(map.get(1L), nullValue());
+        assertThat(map.get(Long.MIN_VALUE), is("min"));
+        assertThat(map.get(-1L), is("minus"));
+        for (long i = 2; i < 1100; i++) {
+            assertThat(map.get(i), is("value" + i));
+        }
+        Set<Long> keys = new HashSet<Long>();
+        for (long key : map.keySet()) {
+            keys.add(key);
+        }
+        assertThat(keys.size(), is(1101));
+        assertThat(keys.contains(Long.MIN_VALUE), is(true));
+        assertThat(keys.contains(1L), is(false));
+    }
+}
@@ -0,0 +1,67 @@
+package net.wrap_trap.collections.fsm;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import net.wrap_trap.collections.fsm.codec.ByteArrayKeyCodec;
+import net.wrap_trap.collections.fsm.codec.UUIDKeyCodec;
+
+import org.junit.Test;
+
+public class GenericFileStoredMapTest extends AbstractStoreTest {
+
+    @Test
+    public void testUUIDKeyCodec() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int i = 0; i < 200; i++) {
+            uuids.add(UUID.randomUUID());
+        }
+        GenericFileStoredMap<UUID, Integer> map = open(new GenericFileStoredMap<UUID, Integer>(configuration,
+                new UUIDKeyCodec()));
+        for (int i = 0; i < uuids.size(); i++) {
+            map.put(uuids.get(i), i);
+        }
+        assertThat(map.remove(uuids.get(0)), is(0));
+        assertThat(map.get(new UUID(uuids.get(1).getMostSignificantBits(), uuids.get(1).getLeastSignificantBits())),
+                   is(1));
+        assertThat(map.containsKey(uuids.get(0)), is(false));
+        close(map);
+
+        map = open(new GenericFileStoredMap<UUID, Integer>(configuration, new UUIDKeyCodec()));
+        assertThat(map.size(), is(199));
+        Map<UUID, Integer> entries = new HashMap<UUID, Integer>();
+        for (Map.Entry<UUID, Integer> entry : map.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        assertThat(entries.size(), is(199));
+        for (int i = 1; i < uuids.size(); i++) {
+            assertThat(entries.get(uuids.get(i)), is(i));
+        }
+    }
+
+    @Test
+    public void testByteArrayKeyCodec() throws IOException {
+        GenericFileStoredMap<byte[], String> map = open(new GenericFileStoredMap<byte[], String>(
+                createConfiguration(4), new ByteArrayKeyCodec()));
+        Map<byte[], String> batch = new HashMap<byte[], String>();
+        for (int i = 0; i < 100; i++) {
+            batch.put(new byte[] { (byte) i, 0, (byte) (i * 7) }, "value" + i);
+        }
+        map.putAll(batch);
+        // the keys are compared by their contents.
+        assertThat(map.get(new byte[] { 3, 0, 21 }), is("value3"));
+        assertThat(map.put(new byte[] { 3, 0, 21 }, "updated"), is("value3"));
+        assertThat(map.get(new byte[] { 3, 0, 21 }), is("updated"));
+        assertThat(map.get(new byte[] { 3, 0 }), nullValue());
+        assertThat(map.size(), is(100));
+    }
+}
@@ -0,0 +1,68 @@
+package net.wrap_trap.collections.fsm;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import net.wrap_trap.collections.fsm.store.bson.BsonStore;
+
+import org.junit.Test;
+
+public class MapSnapshotTest extends AbstractStoreTest {
+
+    @Test
+    public void testSnapshot() throws IOException {
+        assertSnapshot(Configuration.IndexType.FILE);
+    }
+
+    @Test
+    public void testSnapshotWithKeyDirectory() throws IOException {
+        assertSnapshot(Configuration.IndexType.KEYDIR);
+    }
+
+    protected void assertSnapshot(Configuration.IndexType indexType) throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setIndexType(indexType);
+        configuration.setDataFileSize(4 * 1024);
+        configuration.setCompactionBytesPerSecond(0);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        BsonStore<String> store = (BsonStore<String>) map.getStore();
+        for (int i = 0; i < 200; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        MapSnapshot<String, String> snapshot = open(map.snapshot());
+        // the buckets are split by the entries put after the snapshot.
+        for (int i = 0; i < 200; i += 2) {
+            map.remove("key" + i);
+        }
+        for (int i = 1; i < 200; i += 4) {
+            map.put("key" + i, "value" + i + "-updated");
+        }
+        for (int i = 200; i < 600; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        // the blocks seen by the snapshot are not reclaimed.
+        assertThat(store.compact(), is(false));
+
+        assertThat(snapshot.size(), is(200));
+        Map<String, String> entries = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+            assertThat(entries.put(entry.getKey(), entry.getValue()), is(nullValue()));
+        }
+        assertThat(entries.size(), is(200));
+        for (int i = 0; i < 200; i++) {
+            assertThat(entries.get("key" + i), is("value" + i));
+        }
+        assertThat(new HashSet<String>(snapshot.keySet()), is(entries.keySet()));
+        close(snapshot);
+
+        assertThat(store.compact(), is(true));
+        assertThat(map.size(), is(500));
+        assertThat(map.get("key1"), is("value1-updated"));
+    }
+}
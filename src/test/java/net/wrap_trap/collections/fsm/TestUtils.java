@@ -4,6 +4,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Date;
 
@@ -45,4 +46,13 @@ public class TestUtils {
         return configuration;
     }
 
+    public static String[] listDataFiles(String dirPath) {
+        return new File(dirPath).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".dat");
+            }
+        });
+    }
+
 }
@@ -0,0 +1,138 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import net.wrap_trap.collections.fsm.Employee;
+import net.wrap_trap.collections.fsm.Employer;
+import net.wrap_trap.collections.fsm.TestUtils;
+
+import org.junit.Test;
+
+public class PojoValueCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        PojoValueCodec<Employer> codec = new PojoValueCodec<Employer>(Employer.class);
+        Employee emp1 = TestUtils.createEmployee("foo", 256, new Date());
+        Employee emp2 = TestUtils.createEmployee("bar", 65536, null);
+        for (int i = 0; i < 100; i++) {
+            Employer employer = TestUtils.createEmployer("boss" + i);
+            employer.addEmployee(emp1);
+            employer.addEmployee(emp2);
+            // the plan of the class is cached by the first value, and used by the others.
+            Employer decoded = codec.decode(codec.encode("emp" + i, employer));
+            assertThat(decoded.getName(), is("boss" + i));
+            assertThat(decoded.getEmpList().size(), is(2));
+            TestUtils.assertEmployeeEquivalent(emp1, decoded.getEmpList().get(0));
+            TestUtils.assertEmployeeEquivalent(emp2, decoded.getEmpList().get(1));
+        }
+        Employer empty = codec.decode(codec.encode("empty", new Employer()));
+        assertThat(empty.getName(), nullValue());
+        assertThat(empty.getEmpList().size(), is(0));
+    }
+
+    @Test
+    public void testWithoutValueClass() {
+        // the classes of the values are written without the value class.
+        PojoValueCodec<Object> codec = new PojoValueCodec<Object>();
+        Employee emp = TestUtils.createEmployee("foo", 256, new Date());
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("employee", emp);
+        value.put("sal", 100L);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> decoded = (Map<String, Object>) codec.decode(codec.encode("key", value));
+        TestUtils.assertEmployeeEquivalent(emp, (Employee) decoded.get("employee"));
+        assertThat((Long) decoded.get("sal"), is(100L));
+    }
+
+    @Test
+    public void testArrays() {
+        PojoValueCodec<Object> codec = new PojoValueCodec<Object>();
+        int[] ints = new int[] { 1, -2, Integer.MAX_VALUE };
+        assertThat(Arrays.equals((int[]) codec.decode(codec.encode("key", ints)), ints), is(true));
+        double[] doubles = new double[] { 0.5d, -1.25d };
+        assertThat(Arrays.equals((double[]) codec.decode(codec.encode("key", doubles)), doubles), is(true));
+        char[] chars = new char[] { 'a', '\u3042' };
+        assertThat(Arrays.equals((char[]) codec.decode(codec.encode("key", chars)), chars), is(true));
+        boolean[] booleans = new boolean[] { true, false };
+        assertThat(Arrays.equals((boolean[]) codec.decode(codec.encode("key", booleans)), booleans), is(true));
+        String[] strings = new String[] { "foo", null, "bar" };
+        assertThat(Arrays.equals((String[]) codec.decode(codec.encode("key", strings)), strings), is(true));
+        long[][] longs = new long[][] { { 1L, 2L }, {} };
+        long[][] decoded = (long[][]) codec.decode(codec.encode("key", longs));
+        assertThat(decoded.length, is(2));
+        assertThat(Arrays.equals(decoded[0], longs[0]), is(true));
+        assertThat(decoded[1].length, is(0));
+
+        Employee emp = TestUtils.createEmployee("foo", 256, new Date());
+        Object[] objects = (Object[]) codec.decode(codec.encode("key", new Object[] { emp, 1 }));
+        TestUtils.assertEmployeeEquivalent(emp, (Employee) objects[0]);
+        assertThat((Integer) objects[1], is(1));
+    }
+
+    @Test
+    public void testJdkValues() {
+        PojoValueCodec<Object> codec = new PojoValueCodec<Object>();
+        BigDecimal decimal = new BigDecimal("-12345678901234567890.0012300");
+        assertThat((BigDecimal) codec.decode(codec.encode("key", decimal)), is(decimal));
+        BigInteger integer = BigInteger.ONE.shiftLeft(100).negate();
+        assertThat((BigInteger) codec.decode(codec.encode("key", integer)), is(integer));
+        UUID uuid = UUID.randomUUID();
+        assertThat((UUID) codec.decode(codec.encode("key", uuid)), is(uuid));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedJdkValue() {
+        new PojoValueCodec<Object>().encode("key", new Timestamp(System.currentTimeMillis()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedJdkProperty() {
+        Holder holder = new Holder();
+        holder.setValue(Calendar.getInstance());
+        new PojoValueCodec<Holder>(Holder.class).encode("key", holder);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWithoutDefaultConstructor() {
+        new PojoValueCodec<Object>().encode("key", new Immutable("foo"));
+    }
+
+    public static class Holder {
+
+        private Object value;
+
+        public Object getValue() {
+            return value;
+        }
+
+        public void setValue(Object value) {
+            this.value = value;
+        }
+    }
+
+    public static class Immutable {
+
+        private final String name;
+
+        public Immutable(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
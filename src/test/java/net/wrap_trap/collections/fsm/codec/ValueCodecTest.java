@@ -0,0 +1,64 @@
+package net.wrap_trap.collections.fsm.codec;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Test;
+
+public class ValueCodecTest extends AbstractStoreTest {
+
+    @Test
+    public void testRoundTrip() {
+        StringValueCodec stringCodec = new StringValueCodec();
+        assertThat(stringCodec.decode(stringCodec.encode("key", "\u3042value")), is("\u3042value"));
+        assertThat(stringCodec.decode(stringCodec.encode("key", "")), is(""));
+        IntegerValueCodec integerCodec = new IntegerValueCodec();
+        assertThat(integerCodec.decode(integerCodec.encode("key", Integer.MIN_VALUE)), is(Integer.MIN_VALUE));
+        LongValueCodec longCodec = new LongValueCodec();
+        assertThat(longCodec.decode(longCodec.encode("key", -1L)), is(-1L));
+        ByteArrayValueCodec bytesCodec = new ByteArrayValueCodec();
+        assertThat(bytesCodec.decode(bytesCodec.encode("key", new byte[] { 0, 1, 2 })), is(new byte[] { 0, 1, 2 }));
+        assertThat(bytesCodec.decode(bytesCodec.encode("key", new byte[0])).length, is(0));
+    }
+
+    @Test
+    public void testStringValueCodec() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setValueCodec(new StringValueCodec());
+        configuration.setCacheType(Configuration.CacheType.HEAP);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        assertThat(map.put("key0", "\u3042"), is("value0"));
+        assertThat(map.remove("key1"), is("value1"));
+        assertThat(map.get("key2"), is("value2"));
+        close(map);
+
+        map = open(new FileStoredMap<String>(configuration));
+        assertThat(map.get("key0"), is("\u3042"));
+        assertThat(map.get("key1"), nullValue());
+        for (int i = 2; i < 100; i++) {
+            assertThat(map.get("key" + i), is("value" + i));
+        }
+        assertThat(map.size(), is(99));
+    }
+
+    @Test
+    public void testByteArrayValueCodec() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setValueCodec(new ByteArrayValueCodec());
+        FileStoredMap<byte[]> map = open(new FileStoredMap<byte[]>(configuration));
+        map.put("key", new byte[] { 0, 1, 2 });
+        assertThat(map.get("key"), is(new byte[] { 0, 1, 2 }));
+        assertThat(map.put("key", new byte[0]), is(new byte[] { 0, 1, 2 }));
+        assertThat(map.get("key").length, is(0));
+    }
+}
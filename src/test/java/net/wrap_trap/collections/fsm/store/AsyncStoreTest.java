@@ -0,0 +1,50 @@
+package net.wrap_trap.collections.fsm.store;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.AsyncFileStoredMap;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class AsyncStoreTest extends AbstractStoreTest {
+
+    @Test
+    public void testAsync() throws Exception {
+        FileStoredMap<String> map = open(new FileStoredMap<String>(createConfiguration(16)));
+        AsyncFileStoredMap<String, String> asyncMap = open(new AsyncFileStoredMap<String, String>(map, 4));
+        List<ListenableFuture<String>> futures = new ArrayList<ListenableFuture<String>>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(asyncMap.putAsync("key" + i, "value" + i));
+        }
+        for (ListenableFuture<String> future : futures) {
+            assertThat(future.get(), is(nullValue()));
+        }
+        // the requests of the same key are run in order.
+        asyncMap.putAsync("key1", "value1-updated");
+        ListenableFuture<String> removed = asyncMap.removeAsync("key2");
+        assertThat(asyncMap.getAsync("key1").get(), is("value1-updated"));
+        assertThat(removed.get(), is("value2"));
+        assertThat(asyncMap.containsKeyAsync("key2").get(), is(false));
+        for (int i = 3; i < 500; i++) {
+            assertThat(asyncMap.getAsync("key" + i).get(), is("value" + i));
+        }
+        assertThat(map.size(), is(499));
+
+        close(asyncMap);
+        try {
+            asyncMap.getAsync("key1");
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
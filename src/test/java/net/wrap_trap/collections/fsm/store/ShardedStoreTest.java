@@ -0,0 +1,74 @@
+package net.wrap_trap.collections.fsm.store;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.EntryVisitor;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+
+import org.junit.Test;
+
+public class ShardedStoreTest extends AbstractStoreTest {
+
+    @Test
+    public void testShardedStore() throws IOException {
+        List<String> shardDirPaths = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            shardDirPaths.add(dirPath + "/shard" + i);
+        }
+        Configuration configuration = TestUtils.createConfiguration(dirPath + "/shards", 16);
+        configuration.setShardDirPaths(shardDirPaths);
+        new File(dirPath).mkdir();
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 500; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        Map<String, String> batch = new HashMap<String, String>();
+        for (int i = 500; i < 1000; i++) {
+            batch.put("key" + i, "value" + i);
+        }
+        map.putAll(batch);
+        map.remove("key0");
+        assertThat(map.size(), is(999));
+        for (String shardDirPath : shardDirPaths) {
+            assertThat(TestUtils.listDataFiles(shardDirPath).length > 0, is(true));
+        }
+        assertThat(new File(dirPath, "shards").exists(), is(false));
+
+        final Map<String, String> visited = new ConcurrentHashMap<String, String>();
+        map.parallelForEach(new EntryVisitor<String, String>() {
+            @Override
+            public void visit(String key, String value) {
+                visited.put(key, value);
+            }
+        }, 3);
+        assertThat(visited.size(), is(999));
+        Set<String> keys = new HashSet<String>();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            assertThat(entry.getValue(), is(visited.get(entry.getKey())));
+            keys.add(entry.getKey());
+        }
+        assertThat(keys.size(), is(999));
+        close(map);
+
+        map = open(new FileStoredMap<String>(configuration));
+        assertThat(map.get("key0"), is(nullValue()));
+        for (int i = 1; i < 1000; i++) {
+            assertThat(map.get("key" + i), is("value" + i));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.wrap_trap.collections.fsm.store;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.store.StoreMetrics.Operation;
+import net.wrap_trap.collections.fsm.store.bson.BsonStore;
+
+import org.junit.Test;
+
+public class StoreMetricsTest extends AbstractStoreTest {
+
+    @Test
+    public void testCounters() {
+        StoreMetrics metrics = new StoreMetrics(true);
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(Operation.GET, System.nanoTime() - i * 1000L);
+        }
+        metrics.recordIndexLookup(true);
+        metrics.recordIndexLookup(false);
+        metrics.recordReadLookup(1);
+        metrics.recordReadLookup(3);
+        metrics.recordBytesRead(2, 100L);
+        metrics.recordBytesRead(2, 28L);
+        assertThat(metrics.getCount(Operation.GET), is(100L));
+        assertThat(metrics.getPercentileNanos(Operation.GET, 50.0) <= metrics.getPercentileNanos(Operation.GET, 99.0),
+                   is(true));
+        assertThat(metrics.getPercentileNanos(Operation.GET, 100.0), is(metrics.getMaxNanos(Operation.GET)));
+        assertThat(metrics.getIndexHitRate(), is(0.5));
+        assertThat(metrics.getAverageBlocksPerRead(), is(2.0));
+        assertThat(metrics.getBytesReadPerFile().get(2), is(128L));
+
+        metrics.reset();
+        assertThat(metrics.getCount(Operation.GET), is(0L));
+        assertThat(metrics.getPercentileNanos(Operation.GET, 99.0), is(0L));
+        assertThat(metrics.getBytesRead(), is(0L));
+
+        // nothing is counted while disabled.
+        StoreMetrics disabled = new StoreMetrics(false);
+        disabled.record(Operation.PUT, disabled.start());
+        disabled.recordIndexLookup(true);
+        assertThat(disabled.getCount(Operation.PUT), is(0L));
+        assertThat(disabled.getIndexHits(), is(0L));
+    }
+
+    @Test
+    public void testStoreMetrics() throws Exception {
+        Configuration configuration = createConfiguration(4);
+        configuration.setLoadFactor(0);
+        configuration.setMetricsEnabled(true);
+        configuration.setJmxEnabled(true);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("net.wrap_trap.collections.fsm:type=BsonStore,name=" +
+                                               ObjectName.quote(new File(dirPath).getAbsolutePath()));
+        BsonStore<String> store = open(new BsonStore<String>(configuration));
+        for (int i = 0; i < 20; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 25; i++) {
+            store.get("key" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            store.remove("key" + i);
+        }
+
+        StoreMetrics metrics = store.getMetrics();
+        assertThat(metrics.getCount(Operation.PUT), is(20L));
+        assertThat(metrics.getCount(Operation.GET), is(25L));
+        assertThat(metrics.getCount(Operation.REMOVE), is(5L));
+        assertThat(metrics.getIndexHits() + metrics.getIndexMisses(), is(50L));
+        // 20 keys are chained in 4 buckets.
+        assertThat(metrics.getAverageBlocksPerRead() > 1.0, is(true));
+        assertThat(metrics.getAverageBlocksPerRemove() >= 1.0, is(true));
+        assertThat(metrics.getBytesWritten() > 0L, is(true));
+        assertThat(metrics.getBytesReadPerFile().get(1) > 0L, is(true));
+
+        long[] histogram = store.getChainLengthHistogram();
+        long buckets = 0L;
+        long blocks = 0L;
+        for (int i = 0; i < histogram.length; i++) {
+            buckets += histogram[i];
+            blocks += i * histogram[i];
+        }
+        assertThat(buckets, is(4L));
+        assertThat(blocks, is(15L));
+
+        assertThat(server.isRegistered(objectName), is(true));
+        assertThat((Long) server.getAttribute(objectName, "BytesWritten"), is(metrics.getBytesWritten()));
+        assertThat((Integer) server.getAttribute(objectName, "Size"), is(15));
+        server.invoke(objectName, "resetMetrics", null, null);
+        assertThat(metrics.getCount(Operation.PUT), is(0L));
+        close(store);
+        assertThat(server.isRegistered(objectName), is(false));
+    }
+}
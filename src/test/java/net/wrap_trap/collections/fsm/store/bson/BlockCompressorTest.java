@@ -0,0 +1,92 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+import net.wrap_trap.collections.fsm.codec.StringValueCodec;
+
+import org.junit.Test;
+
+public class BlockCompressorTest extends AbstractStoreTest {
+
+    @Test
+    public void testCompress() {
+        BlockCompressor compressor = new BlockCompressor(64);
+        byte[] body = new byte[1000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('0' + i % 10);
+        }
+        byte[] compressed = compressor.compress(body);
+        assertThat(compressed.length < body.length, is(true));
+        assertThat(BlockCompressor.decompress(compressed), is(body));
+
+        // the bodies shorter than the threshold, and the bodies not made shorter, are written as they are.
+        assertThat(compressor.compress(new byte[63]), nullValue());
+        byte[] random = new byte[1000];
+        new Random(0L).nextBytes(random);
+        assertThat(compressor.compress(random), nullValue());
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setValueCodec(new StringValueCodec());
+        configuration.setCompressionType(Configuration.CompressionType.DEFLATE);
+        configuration.setCompressionThreshold(64);
+        configuration.setDataFileSize(16 * 1024);
+        configuration.setCompactionBytesPerSecond(0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("0123456789");
+        }
+        String large = sb.toString();
+        BsonStore<String> store = open(new BsonStore<String>(configuration));
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, large + i);
+            store.put("small" + i, "value" + i);
+        }
+        Map<String, String> batch = new HashMap<String, String>();
+        for (int i = 100; i < 200; i++) {
+            batch.put("key" + i, large + i);
+        }
+        store.putAll(batch);
+        for (int i = 0; i < 50; i++) {
+            assertThat(store.put("key" + i, large + "updated" + i), is(large + i));
+        }
+        long dataBytes = 0L;
+        for (String dataFile : TestUtils.listDataFiles(dirPath)) {
+            dataBytes += new File(dirPath, dataFile).length();
+        }
+        assertThat(dataBytes < 100 * large.length(), is(true));
+
+        while (store.compact())
+            ;
+        for (int i = 0; i < 200; i++) {
+            assertThat(store.get("key" + i), is(large + ((i < 50) ? "updated" : "") + i));
+        }
+        close(store);
+
+        // the compressed blocks are read even if the compression is disabled.
+        configuration.setCompressionType(Configuration.CompressionType.NONE);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 200; i++) {
+            assertThat(map.get("key" + i), is(large + ((i < 50) ? "updated" : "") + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertThat(map.get("small" + i), is("value" + i));
+        }
+        assertThat(map.remove("key199"), is(large + 199));
+        assertThat(map.size(), is(299));
+    }
+}
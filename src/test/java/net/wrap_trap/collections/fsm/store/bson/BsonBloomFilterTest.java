@@ -0,0 +1,128 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+import org.junit.Test;
+
+public class BsonBloomFilterTest extends AbstractStoreTest {
+
+    @Test
+    public void testFalsePositiveRate() {
+        BsonBloomFilter filter = new BsonBloomFilter(0.01, 10000);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(new BinaryKey("key" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertThat(filter.mightContain(new BinaryKey("key" + i)), is(true));
+        }
+        assertThat(countFalsePositives(filter, 100000) < 1500, is(true));
+    }
+
+    @Test
+    public void testGrow() {
+        // the filter grows far beyond the expected entries, and the false positive rate is kept.
+        BsonBloomFilter filter = new BsonBloomFilter(0.01, 0);
+        for (int i = 0; i < 50000; i++) {
+            filter.put(new BinaryKey("key" + i));
+        }
+        assertThat(filter.getCapacity() >= 50000L, is(true));
+        for (int i = 0; i < 50000; i++) {
+            assertThat(filter.mightContain(new BinaryKey("key" + i)), is(true));
+        }
+        assertThat(countFalsePositives(filter, 100000) < 1500, is(true));
+    }
+
+    @Test
+    public void testWriteTo() throws IOException {
+        BsonBloomFilter filter = new BsonBloomFilter(0.01, 1000);
+        for (int i = 0; i < 5000; i++) {
+            filter.put(new BinaryKey("key" + i));
+        }
+        new File(dirPath).mkdir();
+        File file = new File(dirPath, "bloom.filter");
+        filter.writeTo(file);
+        BsonBloomFilter read = BsonBloomFilter.readFrom(file);
+        assertThat(read.getInsertions(), is(filter.getInsertions()));
+        assertThat(read.getCapacity(), is(filter.getCapacity()));
+        for (int i = 0; i < 5000; i++) {
+            assertThat(read.mightContain(new BinaryKey("key" + i)), is(true));
+        }
+        assertThat(countFalsePositives(read, 10000), is(countFalsePositives(filter, 10000)));
+
+        // a stale file is not read until it is written again.
+        BsonBloomFilter.markStale(file);
+        assertThat(BsonBloomFilter.readFrom(file), is(nullValue()));
+        read.writeTo(file);
+        assertThat(BsonBloomFilter.readFrom(file).getInsertions(), is(filter.getInsertions()));
+    }
+
+    @Test
+    public void testBloomFilter() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setBloomFilterEnabled(true);
+        configuration.setMetricsEnabled(true);
+        File file = new File(dirPath, "bloom.filter");
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 500; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        Map<String, String> batch = new HashMap<String, String>();
+        for (int i = 500; i < 1000; i++) {
+            batch.put("key" + i, "value" + i);
+        }
+        map.putAll(batch);
+        map.remove("key0");
+        assertBloomFilter(map);
+        close(map);
+        assertThat(file.exists(), is(true));
+
+        // the saved filter is loaded, and marked stale until the store is closed.
+        map = open(new FileStoredMap<String>(configuration));
+        assertThat(file.exists(), is(true));
+        assertThat(BsonBloomFilter.readFrom(file), is(nullValue()));
+        assertBloomFilter(map);
+        close(map);
+        assertThat(BsonBloomFilter.readFrom(file).getInsertions() >= 999L, is(true));
+
+        // the filter is rebuilt from the chains without the saved one.
+        assertThat(file.delete(), is(true));
+        map = open(new FileStoredMap<String>(configuration));
+        assertBloomFilter(map);
+    }
+
+    protected int countFalsePositives(BsonBloomFilter filter, int count) {
+        int falsePositives = 0;
+        for (int i = 0; i < count; i++) {
+            if (filter.mightContain(new BinaryKey("missing" + i)))
+                falsePositives++;
+        }
+        return falsePositives;
+    }
+
+    protected void assertBloomFilter(FileStoredMap<String> map) {
+        map.getMetrics().reset();
+        assertThat(map.get("key0"), is(nullValue()));
+        for (int i = 1; i < 1000; i++) {
+            assertThat(map.get("key" + i), is("value" + i));
+            assertThat(map.containsKey("key" + i), is(true));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertThat(map.get("missing" + i), is(nullValue()));
+            assertThat(map.containsKey("missing" + i), is(false));
+        }
+        // the false positive rate is 1% by default.
+        assertThat(map.getMetrics().getFilterNegatives() > 1900, is(true));
+    }
+}
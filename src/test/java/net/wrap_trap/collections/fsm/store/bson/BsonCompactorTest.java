@@ -0,0 +1,99 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+
+import org.junit.Test;
+
+public class BsonCompactorTest extends AbstractStoreTest {
+
+    @Test
+    public void testCompaction() throws IOException {
+        Configuration configuration = createConfiguration(2);
+        configuration.setDataFileSize(1024);
+        configuration.setCompactionBytesPerSecond(0);
+        BsonStore<String> store = open(new BsonStore<String>(configuration));
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + (i % 10), "value" + i);
+        }
+        int dataFiles = TestUtils.listDataFiles(dirPath).length;
+        assertThat(dataFiles > 1, is(true));
+
+        while (store.compact())
+            ;
+        assertThat(TestUtils.listDataFiles(dirPath).length < dataFiles, is(true));
+        for (SegmentStat stat : store.getSegmentStats()) {
+            assertThat(stat.isWritable() || (stat.getDeadRatio() < configuration.getCompactionDeadRatio()), is(true));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(store.get("key" + i), is("value" + (190 + i)));
+        }
+        close(store);
+
+        FileStoredMap<String> map = open(new FileStoredMap<String>(createConfiguration(2)));
+        for (int i = 0; i < 10; i++) {
+            assertThat(map.get("key" + i), is("value" + (190 + i)));
+        }
+        assertThat(map.size(), is(10));
+        map.put("key10", "value200");
+        assertThat(map.get("key10"), is("value200"));
+    }
+
+    @Test
+    public void testActiveFileAfterCompaction() throws IOException {
+        Configuration configuration = createConfiguration(2);
+        configuration.setDataFileSize(1024);
+        configuration.setCompactionBytesPerSecond(0);
+        BsonStore<String> store = open(new BsonStore<String>(configuration));
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + (i % 10), "value" + i);
+        }
+        while (store.compact())
+            ;
+        // the number freed by compaction is reused by the next data file.
+        for (int i = 0; i < 30; i++) {
+            store.put("new" + i, "value" + i);
+        }
+        int active = getWritableFileNumber(store);
+        int largest = 0;
+        for (SegmentStat stat : store.getSegmentStats()) {
+            largest = Math.max(largest, stat.getFileNumber());
+        }
+        assertThat(active < largest, is(true));
+        close(store);
+
+        // the appends go to the data file which was being written at closing, not to a sealed one.
+        store = open(new BsonStore<String>(configuration));
+        assertThat(getWritableFileNumber(store), is(active));
+        store.put("new30", "value30");
+        assertThat(new File(RandomAccessFileEntityRepository.getHintFilePath(configuration, largest)).exists(),
+                   is(true));
+        close(store);
+
+        // the data file without the hint file is taken after a crash.
+        assertThat(new File(RandomAccessFileEntityRepository.getHintFilePath(configuration, active)).delete(),
+                   is(true));
+        assertThat(new File(dirPath, "dead.stat").delete(), is(true));
+        store = open(new BsonStore<String>(configuration));
+        assertThat(getWritableFileNumber(store), is(active));
+        for (int i = 0; i <= 30; i++) {
+            assertThat(store.get("new" + i), is("value" + i));
+        }
+    }
+
+    protected int getWritableFileNumber(BsonStore<String> store) {
+        for (SegmentStat stat : store.getSegmentStats()) {
+            if (stat.isWritable())
+                return stat.getFileNumber();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,39 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Test;
+
+public class BsonDataBlockTest extends AbstractStoreTest {
+
+    @Test
+    public void testSameKeyHash() throws IOException {
+        // "Aa" and "BB" have the same hash code, so they are told from the key in the block header.
+        assertThat("Aa".hashCode(), is("BB".hashCode()));
+        FileStoredMap<String> map = open(new FileStoredMap<String>(dirPath));
+        map.put("Aa", "foo");
+        map.put("BB", "bar");
+        map.put("AaBB", "baz");
+        map.put("BBAa", "qux");
+        assertThat(map.get("Aa"), is("foo"));
+        assertThat(map.get("BB"), is("bar"));
+        assertThat(map.remove("Aa"), is("foo"));
+        assertThat(map.get("Aa"), nullValue());
+        assertThat(map.get("BB"), is("bar"));
+        assertThat(map.remove("AaAa"), nullValue());
+        close(map);
+
+        map = open(new FileStoredMap<String>(dirPath));
+        assertThat(map.get("BB"), is("bar"));
+        assertThat(map.get("AaBB"), is("baz"));
+        assertThat(map.get("BBAa"), is("qux"));
+        assertThat(map.size(), is(3));
+    }
+}
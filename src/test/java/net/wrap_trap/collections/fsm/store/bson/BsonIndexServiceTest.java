@@ -0,0 +1,34 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Test;
+
+public class BsonIndexServiceTest extends AbstractStoreTest {
+
+    @Test
+    public void testBucketSplit() throws IOException {
+        FileStoredMap<String> map = open(new FileStoredMap<String>(createConfiguration(2)));
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            assertThat(map.remove("key" + i), is("value" + i));
+        }
+        assertThat(map.size(), is(50));
+        close(map);
+
+        map = open(new FileStoredMap<String>(createConfiguration(2)));
+        for (int i = 0; i < 100; i++) {
+            assertThat(map.get("key" + i), is((i % 2 == 0) ? null : "value" + i));
+        }
+        assertThat(map.size(), is(50));
+        assertThat(map.keySet().size(), is(50));
+    }
+}
@@ -0,0 +1,62 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Test;
+
+public class BsonStoreConcurrencyTest extends AbstractStoreTest {
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final int threads = 8;
+        final int keysPerThread = 500;
+        Configuration configuration = createConfiguration(16);
+        configuration.setConcurrencyLevel(8);
+        final FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        String key = "key" + thread + "-" + i;
+                        map.put(key, "value" + i);
+                        assertThat(map.get(key), is("value" + i));
+                        if (i % 3 == 0) {
+                            assertThat(map.remove(key), is("value" + i));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        int expected = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < keysPerThread; i++) {
+                assertThat(map.get("key" + t + "-" + i), is((i % 3 == 0) ? null : "value" + i));
+                if (i % 3 != 0)
+                    expected++;
+            }
+        }
+        assertThat(map.size(), is(expected));
+    }
+}
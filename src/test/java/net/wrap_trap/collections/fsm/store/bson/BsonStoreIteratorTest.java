@@ -0,0 +1,103 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Test;
+
+public class BsonStoreIteratorTest extends AbstractStoreTest {
+
+    @Test
+    public void testIndependentIterators() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        // no bucket is split, so the chains are long.
+        configuration.setLoadFactor(0F);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 200; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        Iterator<Map.Entry<String, String>> entries = map.entrySet().iterator();
+        Iterator<String> values = map.values().iterator();
+        Map<String, String> visitedEntries = new HashMap<String, String>();
+        Set<String> visitedValues = new HashSet<String>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            assertThat(visitedEntries.put(entry.getKey(), entry.getValue()), is(nullValue()));
+            // the iterators are interleaved, and each of them has its own position.
+            assertThat(values.hasNext(), is(true));
+            assertThat(visitedValues.add(values.next()), is(true));
+        }
+        assertThat(values.hasNext(), is(false));
+        assertThat(visitedEntries.size(), is(200));
+        assertThat(visitedValues.size(), is(200));
+        for (int i = 0; i < 200; i++) {
+            assertThat(visitedEntries.get("key" + i), is("value" + i));
+            assertThat(visitedValues.contains("value" + i), is(true));
+        }
+    }
+
+    @Test
+    public void testSplitWhileIterating() throws IOException {
+        BsonStore<String> store = open(new BsonStore<String>(createConfiguration(2)));
+        for (int i = 0; i < 50; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        long buckets = getBucketCount();
+        Set<String> visited = new HashSet<String>();
+        int added = 0;
+        for (String key : store.keySet()) {
+            if (!key.startsWith("key"))
+                continue;
+            assertThat(key, visited.add(key), is(true));
+            // the puts split the buckets, and move the keys to the buckets added after the iterator was created.
+            for (int i = 0; i < 10; i++) {
+                store.put("added" + added++, "value");
+            }
+        }
+        assertThat(visited.size(), is(50));
+        assertThat(getBucketCount() > buckets, is(true));
+        assertThat(store.size(), is(50 + added));
+    }
+
+    @Test
+    public void testSplitWithAbandonedIterator() throws IOException {
+        BsonStore<String> store = open(new BsonStore<String>(createConfiguration(2)));
+        for (int i = 0; i < 50; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        long buckets = getBucketCount();
+        Iterator<String> keys = store.keySet().iterator();
+        assertThat(keys.next().startsWith("key"), is(true));
+        for (int i = 0; i < 500; i++) {
+            store.put("added" + i, "value");
+        }
+        assertThat(getBucketCount() > buckets, is(true));
+        assertThat(keys.hasNext(), is(true));
+    }
+
+    protected long getBucketCount() throws IOException {
+        RandomAccessFile indexFile = new RandomAccessFile(dirPath + "/1.idx", "r");
+        try {
+            indexFile.seek(4);
+            long bucketSize = indexFile.readInt();
+            indexFile.seek(RandomAccessFileIndexRepository.HEADER_LEVEL_OFFSET);
+            int level = indexFile.readInt();
+            return (bucketSize << level) + indexFile.readLong();
+        } finally {
+            indexFile.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.EntryVisitor;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Test;
+
+public class BsonStoreParallelForEachTest extends AbstractStoreTest {
+
+    @Test
+    public void testParallelForEach() throws IOException {
+        assertParallelForEach(Configuration.IndexType.FILE);
+    }
+
+    @Test
+    public void testParallelForEachWithKeyDirectory() throws IOException {
+        assertParallelForEach(Configuration.IndexType.KEYDIR);
+    }
+
+    protected void assertParallelForEach(Configuration.IndexType indexType) throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setIndexType(indexType);
+        final FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 2000; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        final ConcurrentMap<String, String> visited = new ConcurrentHashMap<String, String>();
+        final AtomicInteger count = new AtomicInteger();
+        map.parallelForEach(new EntryVisitor<String, String>() {
+            @Override
+            public void visit(String key, String value) {
+                count.incrementAndGet();
+                visited.put(key, value);
+                // the visitor may update the map.
+                map.put(key, value + "-updated");
+            }
+        }, 4);
+        assertThat(count.get(), is(2000));
+        for (int i = 0; i < 2000; i++) {
+            assertThat(visited.get("key" + i), is("value" + i));
+            assertThat(map.get("key" + i), is("value" + i + "-updated"));
+        }
+    }
+}
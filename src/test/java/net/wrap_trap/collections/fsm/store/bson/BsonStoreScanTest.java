@@ -0,0 +1,49 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.EntryVisitor;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+
+import org.junit.Test;
+
+public class BsonStoreScanTest extends AbstractStoreTest {
+
+    @Test
+    public void testScan() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setDataFileSize(16 * 1024);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            map.remove("key" + i);
+        }
+        for (int i = 1; i < 1000; i += 4) {
+            map.put("key" + i, "value" + i + "-updated");
+        }
+        assertThat(TestUtils.listDataFiles(dirPath).length > 1, is(true));
+
+        final Map<String, String> visited = new HashMap<String, String>();
+        map.scan(new EntryVisitor<String, String>() {
+            @Override
+            public void visit(String key, String value) {
+                assertThat(visited.put(key, value), is(nullValue()));
+            }
+        });
+        assertThat(visited.size(), is(500));
+        for (int i = 1; i < 1000; i += 2) {
+            assertThat(visited.get("key" + i), is(map.get("key" + i)));
+        }
+    }
+}
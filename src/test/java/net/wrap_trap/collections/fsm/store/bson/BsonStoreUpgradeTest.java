@@ -0,0 +1,87 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Properties;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+import net.wrap_trap.collections.fsm.codec.StringValueCodec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class BsonStoreUpgradeTest extends AbstractStoreTest {
+
+    @Test
+    public void testUpgradeVersion1() throws IOException, URISyntaxException {
+        assertUpgrade("legacy-v1", 1);
+    }
+
+    @Test
+    public void testUpgradeVersion2() throws IOException, URISyntaxException {
+        assertUpgrade("legacy-v2", 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUpgradeWithOtherValueCodec() throws IOException, URISyntaxException {
+        copyLegacyStore("legacy-v1");
+        Configuration configuration = new Configuration();
+        configuration.setDirPath(dirPath);
+        configuration.setValueCodec(new StringValueCodec());
+        new BsonStoreUpgrade(configuration).upgrade();
+    }
+
+    @Test
+    public void testNoUpgrade() throws IOException {
+        open(new FileStoredMap<String>(dirPath)).put("foo", "bar");
+        assertThat(new BsonStoreUpgrade(TestUtils.createConfiguration(dirPath, 4096)).upgrade(), is(false));
+    }
+
+    protected void assertUpgrade(String name, int version) throws IOException, URISyntaxException {
+        copyLegacyStore(name);
+        Properties expected = loadExpected(name);
+
+        FileStoredMap<String> map = open(new FileStoredMap<String>(dirPath));
+        assertThat(new File(dirPath + ".v" + version).isDirectory(), is(true));
+        assertThat(map.size(), is(expected.size()));
+        for (Object key : expected.keySet()) {
+            assertThat((String) key, map.get((String) key), is(expected.getProperty((String) key)));
+        }
+        assertThat(map.get("key10"), nullValue());
+        map.put("key10", "\u3046");
+        map.remove("Aa");
+        close(map);
+
+        map = open(new FileStoredMap<String>(dirPath));
+        assertThat(map.size(), is(expected.size()));
+        assertThat(map.get("key10"), is("\u3046"));
+        assertThat(map.get("Aa"), nullValue());
+        assertThat(map.get("\u3042"), is("\u3044"));
+    }
+
+    protected void copyLegacyStore(String name) throws IOException, URISyntaxException {
+        TestUtils.deleteFiles(dirPath + ".v1");
+        TestUtils.deleteFiles(dirPath + ".v2");
+        FileUtils.copyDirectory(new File(getClass().getResource(name).toURI()), new File(dirPath));
+    }
+
+    protected Properties loadExpected(String name) throws IOException {
+        Properties expected = new Properties();
+        InputStream in = getClass().getResourceAsStream(name + ".properties");
+        try {
+            expected.load(in);
+        } finally {
+            in.close();
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,150 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.store.BinaryKey;
+
+import org.junit.Test;
+
+public class BsonValueCacheTest extends AbstractStoreTest {
+
+    @Test
+    public void testHeapCache() throws IOException {
+        assertValueCache(Configuration.CacheType.HEAP);
+    }
+
+    @Test
+    public void testDirectCache() throws IOException {
+        assertValueCache(Configuration.CacheType.DIRECT);
+    }
+
+    @Test
+    public void testDirectSlab() {
+        Configuration configuration = new Configuration();
+        configuration.setCacheType(Configuration.CacheType.DIRECT);
+        configuration.setCacheMaximumBytes(64);
+        BsonValueCache cache = new BsonValueCache(configuration);
+        for (int i = 0; i < 3; i++) {
+            cache.put(new BinaryKey("key" + i), createBytes(i, 20));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertThat(cache.get(new BinaryKey("key" + i)), is(createBytes(i, 20)));
+        }
+        // the rest of the slab is skipped, and key0 is overwritten.
+        cache.put(new BinaryKey("key3"), createBytes(3, 20));
+        assertThat(cache.get(new BinaryKey("key0")), nullValue());
+        assertThat(cache.get(new BinaryKey("key1")), is(createBytes(1, 20)));
+        assertThat(cache.get(new BinaryKey("key3")), is(createBytes(3, 20)));
+        cache.put(new BinaryKey("key1"), createBytes(4, 20));
+        assertThat(cache.get(new BinaryKey("key1")), is(createBytes(4, 20)));
+        assertThat(cache.get(new BinaryKey("key2")), is(createBytes(2, 20)));
+
+        cache.put(new BinaryKey("large"), createBytes(5, 65));
+        assertThat(cache.get(new BinaryKey("large")), nullValue());
+        cache.invalidate(new BinaryKey("key3"));
+        assertThat(cache.get(new BinaryKey("key3")), nullValue());
+    }
+
+    @Test
+    public void testDirectSlabOverwrittenWhileReading() throws Exception {
+        Configuration configuration = new Configuration();
+        configuration.setCacheType(Configuration.CacheType.DIRECT);
+        configuration.setCacheMaximumBytes(64);
+        final BsonValueCache cache = new BsonValueCache(configuration);
+        final int keys = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 4; t++) {
+                final boolean writer = (t % 2 == 0);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < 100000; i++) {
+                            int key = i % keys;
+                            if (writer) {
+                                cache.put(new BinaryKey("key" + key), createBytes(key * 16 + (i % 16), 20));
+                                continue;
+                            }
+                            // the slab of 3 values is overwritten all the time, but a torn value is a miss.
+                            byte[] bytes = cache.get(new BinaryKey("key" + key));
+                            if (bytes != null) {
+                                assertThat(bytes[0] / 16, is(key));
+                                assertThat(bytes, is(createBytes(bytes[0], 20)));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDirectCacheWithoutMaximumBytes() {
+        Configuration configuration = new Configuration();
+        configuration.setCacheType(Configuration.CacheType.DIRECT);
+        new BsonValueCache(configuration);
+    }
+
+    protected byte[] createBytes(int value, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    protected void assertValueCache(Configuration.CacheType cacheType) throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setCacheType(cacheType);
+        configuration.setCacheMaximumBytes(1024);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 100; i++) {
+                assertThat(map.get("key" + i), is("value" + i));
+            }
+        }
+        for (int i = 0; i < 100; i += 2) {
+            map.put("key" + i, "new value" + i);
+        }
+        Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 1; i < 100; i += 4) {
+            entries.put("key" + i, "new value" + i);
+        }
+        map.putAll(entries);
+        for (int i = 3; i < 100; i += 4) {
+            assertThat(map.remove("key" + i), is("value" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertThat(map.get("key" + i), is((i % 4 == 3) ? null : "new value" + i));
+            assertThat(map.containsKey("key" + i), is(i % 4 != 3));
+        }
+        map.clear();
+        close(map);
+        map = open(new FileStoredMap<String>(configuration));
+        assertThat(map.get("key0"), nullValue());
+    }
+}
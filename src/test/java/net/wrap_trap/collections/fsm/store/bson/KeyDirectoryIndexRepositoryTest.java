@@ -0,0 +1,62 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+
+import org.junit.Test;
+
+public class KeyDirectoryIndexRepositoryTest extends AbstractStoreTest {
+
+    @Test
+    public void testKeyDirectory() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setIndexType(Configuration.IndexType.KEYDIR);
+        configuration.setDataFileSize(1024);
+        configuration.setCompactionBytesPerSecond(0);
+        BsonStore<String> store = open(new BsonStore<String>(configuration));
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + (i % 20), "value" + i);
+        }
+        // "Aa" and "BB" have the same hash code.
+        store.put("Aa", "hoge");
+        store.put("BB", "foo");
+        store.put("AaAa", "bar");
+        assertThat(store.remove("key0"), is("value180"));
+        assertThat(store.remove("Aa"), is("hoge"));
+        while (store.compact())
+            ;
+        assertThat(store.size(), is(21));
+        close(store);
+
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        assertThat(map.get("key0"), nullValue());
+        for (int i = 1; i < 20; i++) {
+            assertThat(map.get("key" + i), is("value" + (180 + i)));
+        }
+        assertThat(map.get("Aa"), nullValue());
+        assertThat(map.get("BB"), is("foo"));
+        assertThat(map.get("AaAa"), is("bar"));
+        assertThat(map.size(), is(21));
+        assertThat(map.keySet().size(), is(21));
+        assertThat(new File(RandomAccessFileIndexRepository.getIndexFilePath(configuration)).exists(), is(false));
+    }
+
+    @Test
+    public void testNoSplit() throws IOException {
+        KeyDirectoryIndexRepository repository = new KeyDirectoryIndexRepository();
+        assertThat(repository.supportsSplit(), is(false));
+        try {
+            repository.split();
+            fail("the buckets of the key directory are never split.");
+        } catch (IllegalStateException expected) {}
+    }
+}
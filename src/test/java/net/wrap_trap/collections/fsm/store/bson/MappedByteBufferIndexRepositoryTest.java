@@ -0,0 +1,80 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.Employee;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+
+import org.junit.Test;
+
+public class MappedByteBufferIndexRepositoryTest extends AbstractStoreTest {
+
+    @Test
+    public void testMappedIndex() throws IOException {
+        Employee emp1 = TestUtils.createEmployee("foo", 256, new Date());
+        Employee emp2 = TestUtils.createEmployee("bar", 128, new Date());
+        Configuration configuration = createConfiguration(2);
+        configuration.setIndexType(Configuration.IndexType.MAPPED);
+        FileStoredMap<Employee> map = open(new FileStoredMap<Employee>(configuration));
+        map.put("emp1", emp1);
+        map.put("emp2", emp2);
+        map.put("emp3", TestUtils.createEmployee("baz", 64, new Date()));
+        assertThat(map.remove("emp3"), is(notNullValue()));
+        TestUtils.assertEmployeeEquivalent(emp1, map.get("emp1"));
+        TestUtils.assertEmployeeEquivalent(emp2, map.get("emp2"));
+        assertThat(map.size(), is(2));
+        close(map);
+
+        // the index file written through MappedByteBuffer is readable by RandomAccessFile.
+        map = open(new FileStoredMap<Employee>(createConfiguration(2)));
+        TestUtils.assertEmployeeEquivalent(emp1, map.get("emp1"));
+        TestUtils.assertEmployeeEquivalent(emp2, map.get("emp2"));
+        assertThat(map.get("emp3"), nullValue());
+        assertThat(map.size(), is(2));
+    }
+
+    @Test
+    public void testRegions() throws IOException {
+        new File(dirPath).mkdir();
+        Configuration configuration = createConfiguration(100);
+        WriteAheadLog writeAheadLog = new WriteAheadLog(configuration, null);
+        // many records lie across the boundaries of the small regions.
+        MappedByteBufferIndexRepository repository = new MappedByteBufferIndexRepository(configuration,
+                writeAheadLog, 64);
+        try {
+            for (int i = 0; i < 150; i++) {
+                repository.split();
+            }
+            assertThat(repository.getBucketCount(), is(250L));
+            for (long i = 0; i < 250; i++) {
+                repository.updateIndex(repository.getBucketIndexRef(i), new BsonDataBlockPosition((byte) 1, i + 1));
+            }
+            for (long i = 0; i < 250; i++) {
+                assertThat(repository.getDataPosition(repository.getBucketIndexRef(i)).getPointer(), is(i + 1));
+            }
+        } finally {
+            repository.close();
+        }
+
+        RandomAccessFileIndexRepository reopened = new RandomAccessFileIndexRepository(configuration, writeAheadLog);
+        try {
+            assertThat(reopened.getBucketCount(), is(250L));
+            for (long i = 0; i < 250; i++) {
+                assertThat(reopened.getDataPosition(reopened.getBucketIndexRef(i)).getPointer(), is(i + 1));
+            }
+        } finally {
+            reopened.close();
+            writeAheadLog.close();
+        }
+    }
+}
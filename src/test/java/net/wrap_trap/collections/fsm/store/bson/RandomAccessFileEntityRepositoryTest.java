@@ -0,0 +1,152 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.Configuration.Durability;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+
+import org.junit.Test;
+
+public class RandomAccessFileEntityRepositoryTest extends AbstractStoreTest {
+
+    @Test
+    public void testBulkPutAll() throws IOException {
+        Configuration configuration = createConfiguration(2);
+        configuration.setDataFileSize(4096);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 50; i < 1000; i++) {
+            entries.put("key" + i, "new value" + i);
+        }
+        map.putAll(entries);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(map.get("key" + i), is(((i < 50) ? "value" : "new value") + i));
+        }
+        assertThat(map.size(), is(1000));
+        close(map);
+
+        map = open(new FileStoredMap<String>(createConfiguration(2)));
+        for (int i = 0; i < 1000; i++) {
+            assertThat(map.get("key" + i), is(((i < 50) ? "value" : "new value") + i));
+        }
+        assertThat(map.size(), is(1000));
+        assertThat(map.remove("key500"), is("new value500"));
+        assertThat(map.size(), is(999));
+    }
+
+    @Test
+    public void testPutAllLargerThanWriteBuffer() throws IOException {
+        FileStoredMap<String> map = open(new FileStoredMap<String>(createConfiguration(16)));
+        Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 3000; i++) {
+            entries.put("key" + i, createValue(i, 1000));
+        }
+        // a block larger than the write buffer of 1MB.
+        entries.put("large", createValue(-1, 1536 * 1024));
+        map.putAll(entries);
+        close(map);
+
+        map = open(new FileStoredMap<String>(createConfiguration(16)));
+        for (int i = 0; i < 3000; i++) {
+            assertThat(map.get("key" + i), is(createValue(i, 1000)));
+        }
+        assertThat(map.get("large"), is(createValue(-1, 1536 * 1024)));
+        assertThat(map.size(), is(3001));
+    }
+
+    @Test
+    public void testHintFiles() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setIndexType(Configuration.IndexType.KEYDIR);
+        configuration.setDataFileSize(1024);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        // the blocks in the sealed data files die.
+        for (int i = 0; i < 100; i += 2) {
+            map.remove("key" + i);
+        }
+        close(map);
+        String[] dataFiles = TestUtils.listDataFiles(dirPath);
+        assertThat(dataFiles.length > 1, is(true));
+        for (String dataFile : dataFiles) {
+            assertThat(new File(dirPath, dataFile.replace(".dat", ".hint")).exists(), is(true));
+        }
+
+        for (int n = 0; n < 2; n++) {
+            map = open(new FileStoredMap<String>(configuration));
+            for (int i = 0; i < 100; i++) {
+                assertThat(map.get("key" + i), is((i % 2 == 0) ? null : "value" + i));
+            }
+            assertThat(map.size(), is(50));
+            close(map);
+            // the data file is scanned instead of the broken hint file.
+            RandomAccessFile hintFile = new RandomAccessFile(new File(dirPath, "1.hint"), "rw");
+            try {
+                hintFile.setLength(16);
+            } finally {
+                hintFile.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReopenAndUpdateWithSyncDurability() throws IOException {
+        assertReopenAndUpdate(Durability.SYNC);
+    }
+
+    @Test
+    public void testReopenAndUpdateWithBatchedDurability() throws IOException {
+        assertReopenAndUpdate(Durability.BATCHED);
+    }
+
+    protected void assertReopenAndUpdate(Durability durability) throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setDurability(durability);
+        configuration.setCommitInterval(10L);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 10; i++) {
+            map.put("k" + i, "value" + i);
+        }
+        close(map);
+
+        // the data file sealed at closing is appended again, and its hint file is deleted.
+        map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 10; i++) {
+            map.put("k" + i, "new value" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(map.get("k" + i), is("new value" + i));
+        }
+        close(map);
+
+        map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 10; i++) {
+            assertThat(map.get("k" + i), is("new value" + i));
+        }
+        assertThat(map.size(), is(10));
+    }
+
+    protected String createValue(int i, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(i).append(':');
+        while (sb.length() < length) {
+            sb.append((char) ('a' + (sb.length() % 26)));
+        }
+        return sb.toString();
+    }
+}
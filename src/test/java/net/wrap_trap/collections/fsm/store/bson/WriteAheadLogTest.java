@@ -0,0 +1,77 @@
+package net.wrap_trap.collections.fsm.store.bson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.wrap_trap.collections.fsm.AbstractStoreTest;
+import net.wrap_trap.collections.fsm.Configuration;
+import net.wrap_trap.collections.fsm.FileStoredMap;
+import net.wrap_trap.collections.fsm.TestUtils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class WriteAheadLogTest extends AbstractStoreTest {
+
+    @Test
+    public void testBatchedDurability() throws IOException {
+        Configuration configuration = createConfiguration(4);
+        configuration.setDurability(Configuration.Durability.BATCHED);
+        configuration.setCommitInterval(1L);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            assertThat(map.remove("key" + i), is("value" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertThat(map.get("key" + i), is((i % 2 == 0) ? null : "value" + i));
+        }
+        close(map);
+        // the log is truncated on close.
+        assertThat(new File(dirPath, "wal.log").length(), is(0L));
+
+        map = open(new FileStoredMap<String>(createConfiguration(4)));
+        for (int i = 0; i < 100; i++) {
+            assertThat(map.get("key" + i), is((i % 2 == 0) ? null : "value" + i));
+        }
+        assertThat(map.size(), is(50));
+    }
+
+    @Test
+    public void testWriteAheadLogRecovery() throws IOException {
+        String crashedDirPath = dirPath + "-crashed";
+        TestUtils.deleteFiles(crashedDirPath);
+        Configuration configuration = createConfiguration(4);
+        configuration.setDurability(Configuration.Durability.SYNC);
+        FileStoredMap<String> map = open(new FileStoredMap<String>(configuration));
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        assertThat(map.remove("key0"), is("value0"));
+
+        // take the files as if crashed before the updates of the index file reached disk.
+        FileUtils.copyDirectory(new File(dirPath), new File(crashedDirPath));
+        RandomAccessFile indexFile = new RandomAccessFile(new File(crashedDirPath, "1.idx"), "rw");
+        try {
+            indexFile.setLength(128);
+        } finally {
+            indexFile.close();
+        }
+        close(map);
+
+        map = open(new FileStoredMap<String>(TestUtils.createConfiguration(crashedDirPath, 4)));
+        assertThat(map.get("key0"), nullValue());
+        for (int i = 1; i < 100; i++) {
+            assertThat(map.get("key" + i), is("value" + i));
+        }
+        assertThat(map.size(), is(99));
+        assertThat(new File(crashedDirPath, "wal.log").length(), is(0L));
+    }
+}